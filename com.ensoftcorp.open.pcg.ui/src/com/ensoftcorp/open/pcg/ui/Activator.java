@@ -3,6 +3,10 @@ package com.ensoftcorp.open.pcg.ui;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
+import com.ensoftcorp.open.pcg.ui.builder.PCGBuilderView;
+import com.ensoftcorp.open.pcg.ui.smart.SmartViewCache;
+
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -14,6 +18,9 @@ public class Activator extends AbstractUIPlugin {
 	// The shared instance
 	private static Activator plugin;
 	
+	// invalidates cached smart view results and builder state of changed functions when the index changes
+	private FunctionChangeTracker.ChangeListener changeListener;
+	
 	/**
 	 * The constructor
 	 */
@@ -27,6 +34,15 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		
+		changeListener = new FunctionChangeTracker.ChangeListener(){
+			@Override
+			public void functionsChanged(FunctionChangeTracker.Changes changes) {
+				SmartViewCache.invalidate(changes);
+				PCGBuilderView.retainPCGs(changes);
+			}
+		};
+		FunctionChangeTracker.addListener(changeListener);
 	}
 
 	/*
@@ -34,6 +50,11 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		if(changeListener != null){
+			FunctionChangeTracker.removeListener(changeListener);
+			changeListener = null;
+		}
+		SmartViewCache.invalidateAll();
 		plugin = null;
 		super.stop(context);
 	}
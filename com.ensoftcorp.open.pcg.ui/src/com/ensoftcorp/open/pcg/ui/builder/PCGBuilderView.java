@@ -50,9 +50,11 @@ import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.commons.highlighter.CFGHighlighter;
 import com.ensoftcorp.open.commons.ui.utilities.DisplayUtils;
 import com.ensoftcorp.open.commons.utilities.selection.GraphSelectionListenerView;
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
 import com.ensoftcorp.open.pcg.common.ICFGPCGFactory;
 import com.ensoftcorp.open.pcg.common.IPCG;
 import com.ensoftcorp.open.pcg.common.highlighter.PCGHighlighter;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
 
 public class PCGBuilderView extends GraphSelectionListenerView {
 
@@ -279,9 +281,9 @@ public class PCGBuilderView extends GraphSelectionListenerView {
 							if(humanConsumerCheckbox.getSelection()) {
 								Q selectedAncestors = Common.toQ(pcg.getIncludedAncestorFunctions());
 								Q selectedExpansions = Common.toQ(pcg.getExpandedFunctions());
-								Q pcgResult = IPCG.getIPCG(events, selectedAncestors, selectedExpansions, exceptionalControlFlowCheckbox.getSelection());
-								IMarkup pcgResultMarkup = PCGHighlighter.getIPCGMarkup(pcgResult, events, selectedAncestors, selectedExpansions);
-								DisplayUtils.show(pcgResult, pcgResultMarkup, pcg.isExtendStructureEnabled(), pcg.getName());
+								IPCG ipcg = IPCG.getIPCG(events, selectedAncestors, selectedExpansions, exceptionalControlFlowCheckbox.getSelection());
+								IMarkup pcgResultMarkup = PCGHighlighter.getIPCGMarkup(ipcg);
+								DisplayUtils.show(ipcg.getIPCG(), pcgResultMarkup, pcg.isExtendStructureEnabled(), pcg.getName());
 							} else {
 								Q containingFunctions = Common.toQ(pcg.getContainingFunctions());
 								Q selectedAncestors = Common.toQ(pcg.getIncludedAncestorFunctions());
@@ -673,14 +675,51 @@ public class PCGBuilderView extends GraphSelectionListenerView {
 		for(CTabItem tab : VIEW.pcgFolder.getItems()) {
 			tab.dispose();
 		}
-		// all PCGs are invalidated
-		// FIXME: if the view is closed when the index becomes unaccessible, the PCGs should be cleared the next time the view opens
-		pcgs.clear();
+		if(!PCGPreferences.getSnapshot().isFunctionChangeTrackingEnabled()){
+			// all PCGs are invalidated
+			// FIXME: if the view is closed when the index becomes unaccessible, the PCGs should be cleared the next time the view opens
+			pcgs.clear();
+		}
+		// otherwise the PCGs of unchanged functions are retained once the changes are known (see retainPCGs)
 	}
 
 	@Override
 	public void indexBecameAccessible() {
-		createPCGAndTab();
+		if(!FunctionChangeTracker.isPending()){
+			refreshTabs();
+		}
+	}
+	
+	/**
+	 * Removes the PCGs that involve changed functions after the index
+	 * changed and refreshes the builder tabs
+	 * @param changes
+	 */
+	public static void retainPCGs(final FunctionChangeTracker.Changes changes){
+		// the builder state is only modified on the UI thread
+		Display.getDefault().asyncExec(new Runnable(){
+			@Override
+			public void run() {
+				pcgs.removeIf(pcg -> !pcg.isRetained(changes));
+				PCGBuilderView view = VIEW;
+				if(view != null && view.pcgFolder != null && !view.pcgFolder.isDisposed()){
+					view.refreshTabs();
+				}
+			}
+		});
+	}
+	
+	private void refreshTabs() {
+		for(CTabItem tab : pcgFolder.getItems()) {
+			tab.dispose();
+		}
+		if(pcgs.isEmpty()){
+			createPCGAndTab();
+		} else {
+			for(PCGComponents pcg : pcgs){
+				createTab(pcgFolder, pcg);
+			}
+		}
 	}
 	
-}
\ No newline at end of file
+}
@@ -6,6 +6,7 @@ import com.ensoftcorp.atlas.core.db.set.AtlasSet;
 import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.script.Common;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
 import com.ensoftcorp.open.pcg.common.IPCG;
 
 public class PCGComponents {
@@ -66,7 +67,7 @@ public class PCGComponents {
 	}
 	
 	public AtlasSet<Node> getExpandableFunctions() {
-		return IPCG.getExpandableFunctions(Common.toQ(getControlFlowEvents()), Common.toQ(getIncludedAncestorFunctions())).eval().nodes();
+		return IPCG.getExpandableFunctionSet(Common.toQ(getControlFlowEvents()), getIncludedAncestorFunctions());
 	}
 	
 	public AtlasSet<Node> getExpandedFunctions() {
@@ -88,7 +89,7 @@ public class PCGComponents {
 	}
 	
 	public AtlasSet<Node> getAncestorFunctions(){
-		return IPCG.getAncestorFunctions(Common.toQ(getControlFlowEvents())).eval().nodes();
+		return IPCG.getAncestorFunctionSet(Common.toQ(getControlFlowEvents()));
 	}
 	
 	public AtlasSet<Node> getContainingFunctions(){
@@ -116,6 +117,32 @@ public class PCGComponents {
 		return this.controlFlowEvents.remove(controlFlowEvent);
 	}
 
+	/**
+	 * Returns true if this PCG only involves functions whose elements are
+	 * retained under the given index changes
+	 * @param changes
+	 * @return
+	 */
+	public boolean isRetained(FunctionChangeTracker.Changes changes) {
+		if(changes.isFullInvalidation()){
+			return false;
+		}
+		try {
+			AtlasSet<Node> functions = new AtlasHashSet<Node>(getContainingFunctions());
+			functions.addAll(includedAncestors);
+			functions.addAll(expandedFunctions);
+			for(Node function : functions){
+				if(!changes.isRetained(function)){
+					return false;
+				}
+			}
+			return true;
+		} catch (Exception e){
+			// the PCG refers to elements of the previous index
+			return false;
+		}
+	}
+
 	public void setHumanConsumer(boolean humanConsumer) {
 		this.humanConsumer = humanConsumer;
 	}
@@ -29,7 +29,9 @@ import com.ensoftcorp.atlas.core.markup.IMarkup;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.commons.ui.utilities.DisplayUtils;
 import com.ensoftcorp.open.pcg.common.PCG;
+import com.ensoftcorp.open.pcg.common.PCGCollector;
 import com.ensoftcorp.open.pcg.common.highlighter.PCGHighlighter;
+import com.ensoftcorp.open.pcg.ui.smart.SmartViewCache;
 
 public class PCGLogView extends ViewPart {
 
@@ -234,7 +236,7 @@ public class PCGLogView extends ViewPart {
 		parent.setLayout(new GridLayout(1, false));
 		
 		Group tableSelectionControlsGroup = new Group(parent, SWT.NONE);
-		tableSelectionControlsGroup.setLayout(new GridLayout(3, false));
+		tableSelectionControlsGroup.setLayout(new GridLayout(4, false));
 		tableSelectionControlsGroup.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false, 1, 1));
 		tableSelectionControlsGroup.setText("Table Controls");
 		
@@ -289,6 +291,23 @@ public class PCGLogView extends ViewPart {
 			}
 		});
 		
+		Button collectButton = new Button(tableSelectionControlsGroup, SWT.NONE);
+		collectButton.setText("Collect");
+		collectButton.setToolTipText("Evicts the least recently accessed PCGs beyond the configured maximum and removes unreferenced PCG edges");
+		collectButton.addSelectionListener(new SelectionAdapter() {
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				try {
+					PCGCollector.collect();
+					// cached smart view results may reference collected edges
+					SmartViewCache.invalidateAll();
+					updateTable();
+				} catch (Exception ex){
+					DisplayUtils.showError(ex, "Error collecting PCGs.");
+				}
+			}
+		});
+		
 		table = new Table(parent, SWT.BORDER | SWT.FULL_SELECTION);
 		table.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true, 1, 1));
 		table.setHeaderVisible(true);
@@ -467,7 +486,7 @@ public class PCGLogView extends ViewPart {
 			givenName = "";
 		}
 		String title = givenName.equals("") ? CommonQueries.getQualifiedFunctionName(pcg.getFunction()) : givenName;
-		IMarkup markup = PCGHighlighter.getPCGMarkup(pcg.getEvents());
+		IMarkup markup = PCGHighlighter.getPCGMarkup(pcg.getPCG(), pcg.getEvents());
 		pcg.updateLastAccessTime();
 		DisplayUtils.show(pcg.getPCG(), markup, true, title);
 	}
@@ -3,6 +3,7 @@ package com.ensoftcorp.open.pcg.ui.preferences;
 import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.util.IPropertyChangeListener;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
@@ -18,6 +19,32 @@ public class PCGPreferencesPage extends FieldEditorPreferencePage implements IWo
 
 	private static final String SERIALIZE_PCG_INSTANCES_DESCRIPTION = "Serialize PCG instances into the Atlas graph (required for the PCG Log views to work)";
 
+	private static final String SMART_VIEW_CACHE_SIZE_DESCRIPTION = "Smart view result cache size (0 disables caching)";
+
+	private static final String MAX_PCG_INSTANCES_DESCRIPTION = "Maximum PCG instances retained when collecting stale PCGs";
+
+	private static final String WORKER_THREADS_DESCRIPTION = "Worker threads for batch and IPCG construction";
+
+	private static final String FRONTIER_CACHE_SIZE_DESCRIPTION = "Frontier cache size (0 disables caching)";
+
+	private static final String PCG_CACHE_SIZE_DESCRIPTION = "PCG instance cache size (0 disables caching)";
+
+	private static final String MAX_PCG_INSTANCES_PER_FUNCTION_DESCRIPTION = "Maximum serialized PCG instances per function (0 is unlimited)";
+
+	private static final String CONSTRUCTION_TIME_BUDGET_DESCRIPTION = "PCG construction time budget in milliseconds (0 is unlimited)";
+
+	private static final String PERSISTENT_PCG_CACHE_DESCRIPTION = "Cache PCGs on disk so PCGs of unchanged functions survive re-indexing";
+
+	private static final String TRACK_FUNCTION_CHANGES_DESCRIPTION = "Only invalidate cached results of changed functions after re-indexing";
+
+	private static final String REGION_PRECOMPACTION_DESCRIPTION = "Collapse event-free single entry/single exit regions before compacting nodes";
+
+	private static final String EXCEPTIONAL_CONTROL_FLOW_PRUNING_DESCRIPTION = "Prune exceptional control flow that cannot affect the projection onto the events";
+
+	private static final String EDGE_PROVENANCE_DESCRIPTION = "Record the control flow nodes summarized by each PCG edge";
+
+	private static final String SMART_VIEW_FUNCTION_LIMIT_DESCRIPTION = "Maximum functions spanned by a smart view selection";
+
 	private static boolean changeListenerAdded = false;
 	
 	public PCGPreferencesPage() {
@@ -45,6 +72,35 @@ public class PCGPreferencesPage extends FieldEditorPreferencePage implements IWo
 	@Override
 	protected void createFieldEditors() {
 		addField(new BooleanFieldEditor(PCGPreferences.SERIALIZE_PCG_INSTANCES, "&" + SERIALIZE_PCG_INSTANCES_DESCRIPTION, getFieldEditorParent()));
+		IntegerFieldEditor smartViewCacheSize = new IntegerFieldEditor(PCGPreferences.SMART_VIEW_CACHE_SIZE, "&" + SMART_VIEW_CACHE_SIZE_DESCRIPTION, getFieldEditorParent());
+		smartViewCacheSize.setValidRange(0, Integer.MAX_VALUE);
+		addField(smartViewCacheSize);
+		IntegerFieldEditor maxPCGInstances = new IntegerFieldEditor(PCGPreferences.MAX_PCG_INSTANCES, "&" + MAX_PCG_INSTANCES_DESCRIPTION, getFieldEditorParent());
+		maxPCGInstances.setValidRange(0, Integer.MAX_VALUE);
+		addField(maxPCGInstances);
+		IntegerFieldEditor workerThreads = new IntegerFieldEditor(PCGPreferences.WORKER_THREADS, "&" + WORKER_THREADS_DESCRIPTION, getFieldEditorParent());
+		workerThreads.setValidRange(1, 256);
+		addField(workerThreads);
+		IntegerFieldEditor frontierCacheSize = new IntegerFieldEditor(PCGPreferences.FRONTIER_CACHE_SIZE, "&" + FRONTIER_CACHE_SIZE_DESCRIPTION, getFieldEditorParent());
+		frontierCacheSize.setValidRange(0, Integer.MAX_VALUE);
+		addField(frontierCacheSize);
+		IntegerFieldEditor pcgCacheSize = new IntegerFieldEditor(PCGPreferences.PCG_CACHE_SIZE, "&" + PCG_CACHE_SIZE_DESCRIPTION, getFieldEditorParent());
+		pcgCacheSize.setValidRange(0, Integer.MAX_VALUE);
+		addField(pcgCacheSize);
+		IntegerFieldEditor maxPCGInstancesPerFunction = new IntegerFieldEditor(PCGPreferences.MAX_PCG_INSTANCES_PER_FUNCTION, "&" + MAX_PCG_INSTANCES_PER_FUNCTION_DESCRIPTION, getFieldEditorParent());
+		maxPCGInstancesPerFunction.setValidRange(0, Integer.MAX_VALUE);
+		addField(maxPCGInstancesPerFunction);
+		IntegerFieldEditor constructionTimeBudget = new IntegerFieldEditor(PCGPreferences.CONSTRUCTION_TIME_BUDGET, "&" + CONSTRUCTION_TIME_BUDGET_DESCRIPTION, getFieldEditorParent());
+		constructionTimeBudget.setValidRange(0, Integer.MAX_VALUE);
+		addField(constructionTimeBudget);
+		addField(new BooleanFieldEditor(PCGPreferences.PERSISTENT_PCG_CACHE, "&" + PERSISTENT_PCG_CACHE_DESCRIPTION, getFieldEditorParent()));
+		addField(new BooleanFieldEditor(PCGPreferences.TRACK_FUNCTION_CHANGES, "&" + TRACK_FUNCTION_CHANGES_DESCRIPTION, getFieldEditorParent()));
+		addField(new BooleanFieldEditor(PCGPreferences.REGION_PRECOMPACTION, "&" + REGION_PRECOMPACTION_DESCRIPTION, getFieldEditorParent()));
+		addField(new BooleanFieldEditor(PCGPreferences.EXCEPTIONAL_CONTROL_FLOW_PRUNING, "&" + EXCEPTIONAL_CONTROL_FLOW_PRUNING_DESCRIPTION, getFieldEditorParent()));
+		addField(new BooleanFieldEditor(PCGPreferences.EDGE_PROVENANCE, "&" + EDGE_PROVENANCE_DESCRIPTION, getFieldEditorParent()));
+		IntegerFieldEditor smartViewFunctionLimit = new IntegerFieldEditor(PCGPreferences.SMART_VIEW_FUNCTION_LIMIT, "&" + SMART_VIEW_FUNCTION_LIMIT_DESCRIPTION, getFieldEditorParent());
+		smartViewFunctionLimit.setValidRange(1, 256);
+		addField(smartViewFunctionLimit);
 	}
 	
 }
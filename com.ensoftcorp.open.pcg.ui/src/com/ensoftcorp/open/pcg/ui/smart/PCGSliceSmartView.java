@@ -1,5 +1,10 @@
 package com.ensoftcorp.open.pcg.ui.smart;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
 import com.ensoftcorp.atlas.core.markup.IMarkup;
 import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.script.Common;
@@ -14,8 +19,10 @@ import com.ensoftcorp.atlas.ui.selection.event.FrontierEdgeExploreEvent;
 import com.ensoftcorp.atlas.ui.selection.event.IAtlasSelectionEvent;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.pcg.common.PCG;
+import com.ensoftcorp.open.pcg.common.PCGFactory;
 import com.ensoftcorp.open.pcg.common.PCGSlice;
 import com.ensoftcorp.open.pcg.common.highlighter.PCGHighlighter;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
 
 public class PCGSliceSmartView extends FilteringAtlasSmartViewScript implements IResizableScript, IExplorableScript {
 
@@ -50,10 +57,21 @@ public class PCGSliceSmartView extends FilteringAtlasSmartViewScript implements
 			return null;
 		}
 		
-		// don't respond to inputs of events that span multiple functions
-		if(CommonQueries.getContainingFunctions(events).eval().nodes().size() > 1){
+		// don't respond to inputs of events that span too many functions
+		AtlasSet<Node> functions = CommonQueries.getContainingFunctions(events).eval().nodes();
+		if(functions.size() > PCGPreferences.getSnapshot().getSmartViewFunctionLimit()){
 			return null;
 		}
+		if(functions.size() > 1){
+			return evaluate(functions, events, reverse, forward);
+		}
+		
+		// reuse the result if this selection was recently viewed at the same depths
+		SmartViewCache.Key key = SmartViewCache.getKey(getClass(), functions.one(), events, false, reverse, forward);
+		StyledResult cachedResult = SmartViewCache.get(key);
+		if(cachedResult instanceof FrontierStyledResult){
+			return (FrontierStyledResult) cachedResult;
+		}
 
 		// compute the selected PCG slice
 		PCG current = PCGSlice.getPCGSlice(events, reverse, forward);
@@ -68,13 +86,51 @@ public class PCGSliceSmartView extends FilteringAtlasSmartViewScript implements
 		frontierForward = (forward == Integer.MAX_VALUE ? Common.empty() : frontierForward);
 		
 		// style and return the result
-		IMarkup markup = PCGHighlighter.getPCGMarkup(current.getEvents());
+		IMarkup markup = PCGHighlighter.getPCGMarkup(current.getPCG(), current.getEvents());
 		
 		// uncomment to show frontier edges (although they can be really confusing in this context)
 //		FrontierStyledResult result = new FrontierStyledResult(current.getPCG(), frontierReverse, frontierForward, markup);
 		FrontierStyledResult result = new FrontierStyledResult(current.getPCG(), Common.empty(), Common.empty(), markup);
 		
 		result.setInput(events);
+		SmartViewCache.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Returns the union of the PCG slices of each of the given functions for
+	 * the events they contain. The slice events are computed per function and
+	 * the PCGs of the slices are constructed in parallel (see
+	 * PCGFactory.createPerFunction).
+	 * @param functions
+	 * @param events
+	 * @param reverse
+	 * @param forward
+	 * @return
+	 */
+	private FrontierStyledResult evaluate(AtlasSet<Node> functions, Q events, int reverse, int forward){
+		// reuse the result if this selection was recently viewed at the same depths
+		SmartViewCache.Key key = SmartViewCache.getKey(getClass(), functions, events, false, reverse, forward);
+		StyledResult cachedResult = SmartViewCache.get(key);
+		if(cachedResult instanceof FrontierStyledResult){
+			return (FrontierStyledResult) cachedResult;
+		}
+		
+		Q sliceEvents = Common.empty();
+		for(Node function : functions){
+			sliceEvents = sliceEvents.union(PCGSlice.getSliceEvents(events.intersection(Common.toQ(function).contained()), reverse, forward));
+		}
+		List<Q> slices = new ArrayList<Q>();
+		Q slice = Common.empty();
+		for(PCG pcg : PCGFactory.createPerFunction(sliceEvents, false, false).values()){
+			slices.add(pcg.getPCG());
+			slice = slice.union(pcg.getPCG());
+		}
+		
+		// the frontier is not shown for slices (see the single function case)
+		FrontierStyledResult result = new FrontierStyledResult(slice, Common.empty(), Common.empty(), PCGHighlighter.getPCGMarkup(slices, sliceEvents));
+		result.setInput(events);
+		SmartViewCache.put(key, result);
 		return result;
 	}
 
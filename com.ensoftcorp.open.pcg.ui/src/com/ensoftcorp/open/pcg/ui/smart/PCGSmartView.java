@@ -1,17 +1,25 @@
 package com.ensoftcorp.open.pcg.ui.smart;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import com.ensoftcorp.atlas.core.db.graph.Node;
 import com.ensoftcorp.atlas.core.db.set.AtlasSet;
 import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.script.Common;
 import com.ensoftcorp.atlas.core.script.StyledResult;
 import com.ensoftcorp.atlas.core.xcsg.XCSG;
 import com.ensoftcorp.atlas.ui.scripts.selections.AtlasSmartViewScript;
 import com.ensoftcorp.atlas.ui.scripts.selections.FilteringAtlasSmartViewScript;
 import com.ensoftcorp.atlas.ui.selection.event.IAtlasSelectionEvent;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.common.PCG;
 import com.ensoftcorp.open.pcg.common.PCGFactory;
+import com.ensoftcorp.open.pcg.common.PCGPair;
 import com.ensoftcorp.open.pcg.common.highlighter.PCGHighlighter;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
 
 /**
  * Input:
@@ -21,7 +29,9 @@ import com.ensoftcorp.open.pcg.common.highlighter.PCGHighlighter;
  * ControlFlow_Nodes are interpreted as selected events.
  * 
  * Output:
- * The Event Flow Graph, where events are selected ControlFlow_Nodes.
+ * The Event Flow Graph, where events are selected ControlFlow_Nodes. If the
+ * events span several functions (up to the smart view function limit) the
+ * result is the union of the Event Flow Graphs of each function.
  * 
  * Highlights: 
  * GREEN = true ControlFlow_Edges
@@ -60,20 +70,92 @@ public class PCGSmartView extends FilteringAtlasSmartViewScript implements Atlas
 			return null;
 		}
 		
-		// don't respond to inputs of events that span multiple functions
+		// don't respond to inputs of events that span too many functions
 		AtlasSet<Node> functions = CommonQueries.getContainingFunctions(events).eval().nodes();
-		if(functions.size() > 1){
+		if(functions.size() > PCGPreferences.getSnapshot().getSmartViewFunctionLimit()){
 			return null;
 		}
+		if(functions.size() > 1){
+			return getMultipleFunctionResult(functions, events);
+		}
 		
 		Node function = functions.one();
-		Q cfg = inlcudeExceptionalControlFlow() ? CommonQueries.excfg(function) : CommonQueries.cfg(function);
-		Q pcg = PCGFactory.create(cfg, events, true).getPCG();
 		
+		// reuse the result if this selection was recently viewed
+		SmartViewCache.Key key = SmartViewCache.getKey(getClass(), function, events, inlcudeExceptionalControlFlow(), SmartViewCache.NO_SLICE, SmartViewCache.NO_SLICE);
+		StyledResult result = SmartViewCache.get(key);
+		if(result != null){
+			return result;
+		}
+		
+		// the normal and exceptional PCG are constructed together (sharing the
+		// work for their common part) and the other flavour is cached for the
+		// view that displays it, so switching views for this selection is free
+		boolean exceptionalControlFlow = inlcudeExceptionalControlFlow();
+		Class<?> otherView = exceptionalControlFlow ? PCGSmartView.class : ExceptionalPCGSmartView.class;
+		SmartViewCache.Key otherKey = SmartViewCache.getKey(otherView, function, events, !exceptionalControlFlow, SmartViewCache.NO_SLICE, SmartViewCache.NO_SLICE);
+		if(SmartViewCache.get(otherKey) != null){
+			// the other flavour is still cached, only this flavour is needed
+			Q cfg = exceptionalControlFlow ? CommonQueries.excfg(function) : CommonQueries.cfg(function);
+			result = toStyledResult(PCGFactory.create(cfg, events, true).getPCG(), events);
+		} else {
+			PCGPair pcgs = PCGFactory.createNormalAndExceptional(Common.toQ(function), events, true);
+			result = toStyledResult(pcgs.get(exceptionalControlFlow).getPCG(), events);
+			StyledResult otherResult = pcgs.isShared() ? result : toStyledResult(pcgs.get(!exceptionalControlFlow).getPCG(), events);
+			SmartViewCache.put(otherKey, otherResult);
+		}
+		SmartViewCache.put(key, result);
+		return result;
+	}
+	
+	/**
+	 * Returns the union of the PCGs of each of the given functions for the
+	 * events they contain. The PCGs are constructed in parallel and as each
+	 * function's PCG completes it is cached as the result of selecting the
+	 * function's events alone, so a selection of any of the functions is
+	 * available immediately and a later selection spanning the same functions
+	 * only waits for the PCGs that had not completed. The union is cached
+	 * for the whole selection.
+	 * @param functions
+	 * @param events
+	 * @return
+	 */
+	private StyledResult getMultipleFunctionResult(AtlasSet<Node> functions, Q events){
+		boolean exceptionalControlFlow = inlcudeExceptionalControlFlow();
+		Class<?> view = getClass();
+		
+		// reuse the result if this selection was recently viewed
+		SmartViewCache.Key key = SmartViewCache.getKey(view, functions, events, exceptionalControlFlow, SmartViewCache.NO_SLICE, SmartViewCache.NO_SLICE);
+		StyledResult cachedResult = SmartViewCache.get(key);
+		if(cachedResult != null){
+			return cachedResult;
+		}
+		
+		Map<Node,PCG> pcgs = PCGFactory.createPerFunction(events, exceptionalControlFlow, true, (function, pcg) -> {
+			Q functionEvents = events.intersection(Common.toQ(function).contained());
+			SmartViewCache.Key functionKey = SmartViewCache.getKey(view, function, functionEvents, exceptionalControlFlow, SmartViewCache.NO_SLICE, SmartViewCache.NO_SLICE);
+			if(SmartViewCache.get(functionKey) == null){
+				SmartViewCache.put(functionKey, toStyledResult(pcg.getPCG(), functionEvents));
+			}
+		}, null);
+		
+		List<Q> functionPCGs = new ArrayList<Q>();
+		Q result = Common.empty();
+		for(PCG pcg : pcgs.values()){
+			functionPCGs.add(pcg.getPCG());
+			result = result.union(pcg.getPCG());
+		}
+		// need to union in the contains edges because they are not contained in the default index
+		result = result.union(Query.universe().edges(XCSG.Contains).reverse(result));
+		StyledResult styledResult = new StyledResult(result, PCGHighlighter.getPCGMarkup(functionPCGs, events));
+		SmartViewCache.put(key, styledResult);
+		return styledResult;
+	}
+	
+	private static StyledResult toStyledResult(Q pcg, Q events){
 		// need to union in the contains edges because they are not contained in the default index
 		pcg = pcg.union(Query.universe().edges(XCSG.Contains).reverse(pcg));
-		
-		return new StyledResult(pcg, PCGHighlighter.getPCGMarkup(events));
+		return new StyledResult(pcg, PCGHighlighter.getPCGMarkup(pcg, events));
 	}
 	
 	private static class ControlFlowSelection {
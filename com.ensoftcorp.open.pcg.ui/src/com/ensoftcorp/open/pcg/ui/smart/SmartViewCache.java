@@ -0,0 +1,191 @@
+package com.ensoftcorp.open.pcg.ui.smart;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.script.StyledResult;
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
+import com.ensoftcorp.open.pcg.common.cache.BoundedCache;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * A bounded cache of prepared smart view results so that reselecting a
+ * recently viewed set of statements does not recompute the PCG.
+ *
+ * Results are keyed by the smart view, the containing functions, the canonical
+ * (sorted) set of event addresses, whether exceptional control flow was
+ * included and the slice depths (if any). The results of changed functions
+ * are invalidated whenever the index changes (see FunctionChangeTracker) and
+ * the cache is sized by the smart view cache size preference.
+ */
+public class SmartViewCache {
+
+	/**
+	 * Slice depth used for smart views that do not slice
+	 */
+	public static final int NO_SLICE = -1;
+
+	private static final BoundedCache<Key,StyledResult> cache = new BoundedCache<Key,StyledResult>("Smart View", () -> PCGPreferences.getSnapshot().getSmartViewCacheSize());
+
+	private SmartViewCache(){}
+
+	/**
+	 * Identifies a smart view result
+	 */
+	public static class Key {
+		private final String view;
+		private final List<String> functions;
+		private final List<String> events;
+		private final boolean exceptionalControlFlow;
+		private final int reverse;
+		private final int forward;
+		private final int hash;
+
+		private Key(String view, List<String> functions, List<String> events, boolean exceptionalControlFlow, int reverse, int forward){
+			this.view = view;
+			this.functions = functions;
+			this.events = events;
+			this.exceptionalControlFlow = exceptionalControlFlow;
+			this.reverse = reverse;
+			this.forward = forward;
+
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + view.hashCode();
+			result = prime * result + functions.hashCode();
+			result = prime * result + events.hashCode();
+			result = prime * result + (exceptionalControlFlow ? 1231 : 1237);
+			result = prime * result + reverse;
+			result = prime * result + forward;
+			this.hash = result;
+		}
+
+		/**
+		 * Returns the addresses of the functions the result was computed for
+		 * @return
+		 */
+		public List<String> getFunctionAddresses(){
+			return functions;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash
+					&& exceptionalControlFlow == other.exceptionalControlFlow
+					&& reverse == other.reverse
+					&& forward == other.forward
+					&& view.equals(other.view)
+					&& functions.equals(other.functions)
+					&& events.equals(other.events);
+		}
+	}
+
+	/**
+	 * Creates a cache key for the given smart view parameters
+	 * @param view the smart view class computing the result
+	 * @param function the function containing the events
+	 * @param events the selected events
+	 * @param exceptionalControlFlow true if exceptional control flow is included
+	 * @param reverse the reverse slice depth or NO_SLICE
+	 * @param forward the forward slice depth or NO_SLICE
+	 * @return
+	 */
+	public static Key getKey(Class<?> view, Node function, Q events, boolean exceptionalControlFlow, int reverse, int forward){
+		return new Key(view.getName(), Collections.singletonList(function.address().toAddressString()), getSortedAddresses(events.eval().nodes()), exceptionalControlFlow, reverse, forward);
+	}
+
+	/**
+	 * Creates a cache key for the given smart view parameters of a selection
+	 * whose events span several functions
+	 * @param view the smart view class computing the result
+	 * @param functions the functions containing the events
+	 * @param events the selected events
+	 * @param exceptionalControlFlow true if exceptional control flow is included
+	 * @param reverse the reverse slice depth or NO_SLICE
+	 * @param forward the forward slice depth or NO_SLICE
+	 * @return
+	 */
+	public static Key getKey(Class<?> view, AtlasSet<Node> functions, Q events, boolean exceptionalControlFlow, int reverse, int forward){
+		return new Key(view.getName(), getSortedAddresses(functions), getSortedAddresses(events.eval().nodes()), exceptionalControlFlow, reverse, forward);
+	}
+
+	private static List<String> getSortedAddresses(AtlasSet<Node> nodes){
+		List<String> addresses = new ArrayList<String>();
+		for(Node node : nodes){
+			addresses.add(node.address().toAddressString());
+		}
+		Collections.sort(addresses);
+		return addresses;
+	}
+
+	/**
+	 * Returns the cached result for the given key or null if there is no cached result
+	 * @param key
+	 * @return
+	 */
+	public static StyledResult get(Key key){
+		return cache.get(key);
+	}
+
+	/**
+	 * Caches the given result
+	 * @param key
+	 * @param result
+	 */
+	public static void put(Key key, StyledResult result){
+		cache.put(key, result);
+	}
+
+	/**
+	 * Removes the cached results that may not be retained under the given changes
+	 * @param changes
+	 */
+	public static void invalidate(FunctionChangeTracker.Changes changes){
+		if(changes.isFullInvalidation()){
+			cache.invalidateAll();
+		} else {
+			cache.invalidateIf(key -> !isRetained(key, changes));
+		}
+	}
+
+	private static boolean isRetained(Key key, FunctionChangeTracker.Changes changes){
+		for(String functionAddress : key.getFunctionAddresses()){
+			if(!changes.isRetained(functionAddress)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all cached results
+	 */
+	public static void invalidateAll(){
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Returns the underlying cache (for statistics)
+	 * @return
+	 */
+	public static BoundedCache<Key,StyledResult> getCache(){
+		return cache;
+	}
+
+}
@@ -3,6 +3,11 @@ package com.ensoftcorp.open.pcg;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import com.ensoftcorp.atlas.core.indexing.IIndexListener;
+import com.ensoftcorp.atlas.core.indexing.IndexingUtil;
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
+
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -14,6 +19,9 @@ public class Activator extends AbstractUIPlugin {
 	// The shared instance
 	private static Activator plugin;
 	
+	// invalidates cached results of changed functions when the index changes
+	private IIndexListener indexListener;
+	
 	/**
 	 * The constructor
 	 */
@@ -27,6 +35,32 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		
+		indexListener = new IIndexListener(){
+			@Override
+			public void indexOperationCancelled(IndexOperation op) {
+				FunctionChangeTracker.indexAbandoned();
+			}
+
+			@Override
+			public void indexOperationComplete(IndexOperation op) {
+				FunctionChangeTracker.indexComplete();
+			}
+
+			@Override
+			public void indexOperationError(IndexOperation op, Throwable error) {
+				FunctionChangeTracker.indexAbandoned();
+			}
+
+			@Override
+			public void indexOperationScheduled(IndexOperation op) {}
+
+			@Override
+			public void indexOperationStarted(IndexOperation op) {
+				FunctionChangeTracker.indexStarted();
+			}
+		};
+		IndexingUtil.addListener(indexListener);
 	}
 
 	/*
@@ -34,6 +68,11 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		if(indexListener != null){
+			IndexingUtil.removeListener(indexListener);
+			indexListener = null;
+		}
+		PCGCaches.invalidateAll();
 		plugin = null;
 		super.stop(context);
 	}
@@ -0,0 +1,355 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.pcg.log.Log;
+
+/**
+ * An in-memory reachability index of the call graph that answers the
+ * ancestor and between queries of IPCGs without traversing the Atlas graph.
+ *
+ * The call graph is condensed into its strongly connected components (Tarjan's
+ * algorithm), so recursive functions share a component. The ancestor and
+ * descendant components of a component are computed on first use by a search
+ * of the condensation and kept as a bitset, so repeated queries (such as the
+ * queries of the PCG builder on each refresh) are lookups. Only the queried
+ * components retain a bitset, which keeps the index small for large call
+ * graphs.
+ *
+ * The index is built once per index generation, it is discarded whenever
+ * the index changes (see FunctionChangeTracker). Functions without call
+ * edges are not indexed and are only related to themselves.
+ */
+public class CallGraphIndex {
+
+	private static CallGraphIndex instance = null;
+
+	/**
+	 * Returns the call graph index of the current index generation
+	 * @return
+	 */
+	public static synchronized CallGraphIndex getInstance(){
+		if(instance == null){
+			instance = new CallGraphIndex();
+		}
+		return instance;
+	}
+
+	/**
+	 * Discards the call graph index, it is rebuilt on next use
+	 */
+	public static synchronized void invalidate(){
+		instance = null;
+	}
+
+	// the component of each function and the functions of each component
+	private final Map<Node,Integer> components;
+	private final Node[][] members;
+
+	// condensation adjacency
+	private final int[][] callees;
+	private final int[][] callers;
+
+	// memoized reflexive ancestor and descendant components (null until queried)
+	private final BitSet[] ancestors;
+	private final BitSet[] descendants;
+
+	private CallGraphIndex(){
+		long start = System.currentTimeMillis();
+		Graph callGraph = Query.universe().edges(XCSG.Call).eval();
+
+		// number the functions
+		int size = (int) callGraph.nodes().size();
+		Node[] nodes = new Node[size];
+		Map<Node,Integer> numbers = new HashMap<Node,Integer>();
+		for(Node function : callGraph.nodes()){
+			nodes[numbers.size()] = function;
+			numbers.put(function, numbers.size());
+		}
+		List<Set<Integer>> successorSets = new ArrayList<Set<Integer>>();
+		for(int i=0; i<size; i++){
+			successorSets.add(new LinkedHashSet<Integer>());
+		}
+		for(Edge call : callGraph.edges()){
+			Integer from = numbers.get(call.from());
+			Integer to = numbers.get(call.to());
+			if(from != null && to != null){
+				successorSets.get(from).add(to);
+			}
+		}
+		int[][] successors = new int[size][];
+		for(int i=0; i<size; i++){
+			successors[i] = toArray(successorSets.get(i));
+		}
+
+		// condense the call graph
+		int[] component = computeComponents(successors);
+		int componentCount = 0;
+		for(int c : component){
+			componentCount = Math.max(componentCount, c + 1);
+		}
+		List<List<Node>> memberLists = new ArrayList<List<Node>>();
+		List<Set<Integer>> calleeSets = new ArrayList<Set<Integer>>();
+		List<Set<Integer>> callerSets = new ArrayList<Set<Integer>>();
+		for(int c=0; c<componentCount; c++){
+			memberLists.add(new ArrayList<Node>());
+			calleeSets.add(new LinkedHashSet<Integer>());
+			callerSets.add(new LinkedHashSet<Integer>());
+		}
+		this.components = new HashMap<Node,Integer>();
+		for(int i=0; i<size; i++){
+			components.put(nodes[i], component[i]);
+			memberLists.get(component[i]).add(nodes[i]);
+			for(int successor : successors[i]){
+				if(component[i] != component[successor]){
+					calleeSets.get(component[i]).add(component[successor]);
+					callerSets.get(component[successor]).add(component[i]);
+				}
+			}
+		}
+		this.members = new Node[componentCount][];
+		this.callees = new int[componentCount][];
+		this.callers = new int[componentCount][];
+		for(int c=0; c<componentCount; c++){
+			members[c] = memberLists.get(c).toArray(new Node[memberLists.get(c).size()]);
+			callees[c] = toArray(calleeSets.get(c));
+			callers[c] = toArray(callerSets.get(c));
+		}
+		this.ancestors = new BitSet[componentCount];
+		this.descendants = new BitSet[componentCount];
+		Log.info("Indexed call graph of " + size + " functions (" + componentCount + " components) in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Returns the given functions and the functions that transitively call
+	 * any of the given functions
+	 * @param functions
+	 * @return
+	 */
+	public AtlasSet<Node> getAncestors(AtlasSet<Node> functions){
+		return toFunctions(getAncestorComponents(functions), functions);
+	}
+
+	/**
+	 * Returns the given functions and the functions that are transitively
+	 * called by any of the given functions
+	 * @param functions
+	 * @return
+	 */
+	public AtlasSet<Node> getDescendants(AtlasSet<Node> functions){
+		return toFunctions(getDescendantComponents(functions), functions);
+	}
+
+	/**
+	 * Returns the functions on call paths from any of the from functions to
+	 * any of the to functions (including the functions in both sets)
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public AtlasSet<Node> getBetween(AtlasSet<Node> from, AtlasSet<Node> to){
+		BitSet between = getDescendantComponents(from);
+		between.and(getAncestorComponents(to));
+		AtlasSet<Node> common = new AtlasHashSet<Node>();
+		for(Node function : from){
+			if(to.contains(function)){
+				common.add(function);
+			}
+		}
+		return toFunctions(between, common);
+	}
+
+	/**
+	 * Returns true if the given ancestor function is the given function or
+	 * transitively calls the given function
+	 * @param ancestor
+	 * @param function
+	 * @return
+	 */
+	public boolean isAncestor(Node ancestor, Node function){
+		if(ancestor.equals(function)){
+			return true;
+		}
+		Integer ancestorComponent = components.get(ancestor);
+		Integer functionComponent = components.get(function);
+		if(ancestorComponent == null || functionComponent == null){
+			return false;
+		}
+		return getAncestorClosure(functionComponent).get(ancestorComponent);
+	}
+
+	/**
+	 * Returns the given functions and the call edges between them
+	 * @param functions
+	 * @return
+	 */
+	public static Q getCallGraph(AtlasSet<Node> functions){
+		return Common.toQ(functions).induce(Query.universe().edges(XCSG.Call));
+	}
+
+	private BitSet getAncestorComponents(AtlasSet<Node> functions){
+		BitSet result = new BitSet(members.length);
+		for(Node function : functions){
+			Integer component = components.get(function);
+			if(component != null){
+				result.or(getAncestorClosure(component));
+			}
+		}
+		return result;
+	}
+
+	private BitSet getDescendantComponents(AtlasSet<Node> functions){
+		BitSet result = new BitSet(members.length);
+		for(Node function : functions){
+			Integer component = components.get(function);
+			if(component != null){
+				result.or(getDescendantClosure(component));
+			}
+		}
+		return result;
+	}
+
+	private synchronized BitSet getAncestorClosure(int component){
+		if(ancestors[component] == null){
+			ancestors[component] = search(component, callers, ancestors);
+		}
+		return ancestors[component];
+	}
+
+	private synchronized BitSet getDescendantClosure(int component){
+		if(descendants[component] == null){
+			descendants[component] = search(component, callees, descendants);
+		}
+		return descendants[component];
+	}
+
+	/**
+	 * Returns the components reachable from the given component along the
+	 * given adjacency, reusing the memoized results of reached components
+	 */
+	private BitSet search(int component, int[][] adjacency, BitSet[] memo){
+		BitSet reached = new BitSet(members.length);
+		reached.set(component);
+		Deque<Integer> worklist = new ArrayDeque<Integer>();
+		worklist.push(component);
+		while(!worklist.isEmpty()){
+			int current = worklist.pop();
+			for(int next : adjacency[current]){
+				if(reached.get(next)){
+					continue;
+				}
+				if(memo[next] != null){
+					reached.or(memo[next]);
+				} else {
+					reached.set(next);
+					worklist.push(next);
+				}
+			}
+		}
+		return reached;
+	}
+
+	/**
+	 * Returns the functions of the given components and the given (possibly
+	 * unindexed) functions
+	 */
+	private AtlasSet<Node> toFunctions(BitSet componentSet, AtlasSet<Node> functions){
+		AtlasSet<Node> result = new AtlasHashSet<Node>();
+		for(int c = componentSet.nextSetBit(0); c >= 0; c = componentSet.nextSetBit(c + 1)){
+			for(Node member : members[c]){
+				result.add(member);
+			}
+		}
+		result.addAll(functions);
+		return result;
+	}
+
+	/**
+	 * Computes the strongly connected component of each node (Tarjan's
+	 * algorithm), components are numbered in reverse topological order
+	 */
+	private static int[] computeComponents(int[][] successors){
+		int size = successors.length;
+		int[] component = new int[size];
+		int[] index = new int[size];
+		int[] lowlink = new int[size];
+		boolean[] onStack = new boolean[size];
+		Arrays.fill(index, -1);
+		Deque<Integer> componentStack = new ArrayDeque<Integer>();
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		int counter = 0;
+		int components = 0;
+		for(int root=0; root<size; root++){
+			if(index[root] != -1){
+				continue;
+			}
+			index[root] = lowlink[root] = counter++;
+			componentStack.push(root);
+			onStack[root] = true;
+			stack.push(root);
+			positions.push(0);
+			while(!stack.isEmpty()){
+				int node = stack.peek();
+				int position = positions.pop();
+				if(position < successors[node].length){
+					positions.push(position + 1);
+					int successor = successors[node][position];
+					if(index[successor] == -1){
+						index[successor] = lowlink[successor] = counter++;
+						componentStack.push(successor);
+						onStack[successor] = true;
+						stack.push(successor);
+						positions.push(0);
+					} else if(onStack[successor]){
+						lowlink[node] = Math.min(lowlink[node], index[successor]);
+					}
+				} else {
+					stack.pop();
+					if(!stack.isEmpty()){
+						int parent = stack.peek();
+						lowlink[parent] = Math.min(lowlink[parent], lowlink[node]);
+					}
+					if(lowlink[node] == index[node]){
+						int member;
+						do {
+							member = componentStack.pop();
+							onStack[member] = false;
+							component[member] = components;
+						} while(member != node);
+						components++;
+					}
+				}
+			}
+		}
+		return component;
+	}
+
+	private static int[] toArray(Set<Integer> set){
+		int[] result = new int[set.size()];
+		int i = 0;
+		for(Integer value : set){
+			result[i++] = value;
+		}
+		return result;
+	}
+
+}
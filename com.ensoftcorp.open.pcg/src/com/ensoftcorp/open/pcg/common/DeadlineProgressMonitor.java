@@ -0,0 +1,56 @@
+package com.ensoftcorp.open.pcg.common;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.ProgressMonitorWrapper;
+
+/**
+ * A progress monitor that reports itself as canceled once a deadline has
+ * passed (or the wrapped monitor was canceled). Used to give a PCG factory
+ * a time budget in place of (or in addition to) a progress monitor.
+ */
+public class DeadlineProgressMonitor extends ProgressMonitorWrapper {
+
+	private final long deadline;
+
+	/**
+	 * Creates a monitor that is canceled after the given number of milliseconds
+	 * @param milliseconds
+	 */
+	public DeadlineProgressMonitor(long milliseconds){
+		this(new NullProgressMonitor(), milliseconds);
+	}
+
+	/**
+	 * Creates a monitor that is canceled after the given number of
+	 * milliseconds or when the given monitor is canceled
+	 * @param monitor
+	 * @param milliseconds
+	 */
+	public DeadlineProgressMonitor(IProgressMonitor monitor, long milliseconds){
+		super(monitor == null ? new NullProgressMonitor() : monitor);
+		this.deadline = System.currentTimeMillis() + milliseconds;
+	}
+
+	/**
+	 * Returns the time (unix time) after which this monitor is canceled
+	 * @return
+	 */
+	public long getDeadline(){
+		return deadline;
+	}
+
+	/**
+	 * Returns true if the deadline has passed
+	 * @return
+	 */
+	public boolean isExpired(){
+		return System.currentTimeMillis() > deadline;
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return super.isCanceled() || isExpired();
+	}
+
+}
@@ -0,0 +1,279 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.graph.UncheckedGraph;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitControlFlowGraph;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.commons.sandbox.SandboxEdge;
+import com.ensoftcorp.open.commons.sandbox.SandboxGraph;
+import com.ensoftcorp.open.commons.sandbox.SandboxNode;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * An in-memory PCG that is not written to the Atlas graph.
+ *
+ * The nodes of an ephemeral PCG are existing Atlas nodes (control flow nodes
+ * and the master entry/exit nodes of the unique entry/exit control flow
+ * graph), but its edges are virtual. A virtual edge that corresponds to a
+ * retained control flow edge refers to that Atlas edge, all other edges only
+ * exist in memory. The master entry/exit nodes are not tagged and no edges,
+ * tags or attributes are written, so ephemeral PCGs are suited to read-only
+ * analyses and batch statistics. An ephemeral PCG can be materialized into
+ * a regular PCG if it needs to be displayed or queried with Q.
+ *
+ * Note: back edges are not labeled in ephemeral PCGs.
+ */
+public class EphemeralPCG {
+
+	/**
+	 * A PCG edge that may not exist in the Atlas graph
+	 */
+	public static class VirtualEdge {
+		private final Node from;
+		private final Node to;
+		private final Object conditionValue;
+		private final boolean infeasible;
+		private final Edge atlasEdge;
+
+		private VirtualEdge(Node from, Node to, Object conditionValue, boolean infeasible, Edge atlasEdge){
+			this.from = from;
+			this.to = to;
+			this.conditionValue = conditionValue;
+			this.infeasible = infeasible;
+			this.atlasEdge = atlasEdge;
+		}
+
+		public Node from(){
+			return from;
+		}
+
+		public Node to(){
+			return to;
+		}
+
+		/**
+		 * Returns the condition value of the edge or null if the edge is unconditional
+		 * @return
+		 */
+		public Object getConditionValue(){
+			return conditionValue;
+		}
+
+		public boolean isInfeasible(){
+			return infeasible;
+		}
+
+		/**
+		 * Returns the corresponding Atlas edge or null if the edge only exists in memory
+		 * @return
+		 */
+		public Edge getAtlasEdge(){
+			return atlasEdge;
+		}
+
+		/**
+		 * Returns true if the edge does not exist in the Atlas graph
+		 * @return
+		 */
+		public boolean isVirtual(){
+			return atlasEdge == null;
+		}
+
+		@Override
+		public String toString() {
+			return from.getAttr(XCSG.name) + " -> " + to.getAttr(XCSG.name) + (conditionValue == null ? "" : (" [" + conditionValue + "]"));
+		}
+	}
+
+	private final UniqueEntryExitControlFlowGraph ucfg;
+	private final AtlasSet<Node> events;
+	private final AtlasSet<Node> nodes;
+	private final List<VirtualEdge> edges;
+	private final Map<Node,List<VirtualEdge>> outEdges;
+	private final Map<Node,List<VirtualEdge>> inEdges;
+
+	EphemeralPCG(SandboxGraph pcg, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		this.ucfg = ucfg;
+		this.events = events;
+		this.nodes = new AtlasHashSet<Node>();
+		this.edges = new ArrayList<VirtualEdge>();
+		this.outEdges = new HashMap<Node,List<VirtualEdge>>();
+		this.inEdges = new HashMap<Node,List<VirtualEdge>>();
+
+		// assert: the sandboxed nodes are all mirrors of existing Atlas nodes
+		Map<SandboxNode,Node> nodeMap = new HashMap<SandboxNode,Node>();
+		for(SandboxNode node : pcg.nodes()){
+			Node atlasNode = CommonQueries.getNodeByAddress(node.getAddress());
+			nodeMap.put(node, atlasNode);
+			nodes.add(atlasNode);
+		}
+		for(SandboxEdge edge : pcg.edges()){
+			Edge atlasEdge = edge.isMirror() ? (Edge) CommonQueries.getGraphElementByAddress(edge.getAddress()) : null;
+			VirtualEdge virtualEdge = new VirtualEdge(nodeMap.get(edge.from()), nodeMap.get(edge.to()),
+					edge.getAttr(XCSG.conditionValue), edge.taggedWith("INFEASIBLE"), atlasEdge);
+			edges.add(virtualEdge);
+			index(outEdges, virtualEdge.from(), virtualEdge);
+			index(inEdges, virtualEdge.to(), virtualEdge);
+		}
+	}
+
+	private static void index(Map<Node,List<VirtualEdge>> index, Node node, VirtualEdge edge){
+		List<VirtualEdge> edges = index.get(node);
+		if(edges == null){
+			edges = new ArrayList<VirtualEdge>();
+			index.put(node, edges);
+		}
+		edges.add(edge);
+	}
+
+	/**
+	 * Returns the instance ID the equivalent (materialized) PCG would have
+	 * @return
+	 */
+	public String getInstanceID(){
+		return PCG.getCanonicalPCGInstanceID(ucfg, events);
+	}
+
+	/**
+	 * Returns the nodes of the PCG
+	 * @return
+	 */
+	public AtlasSet<Node> getNodes(){
+		return nodes;
+	}
+
+	/**
+	 * Returns the edges of the PCG
+	 * @return
+	 */
+	public List<VirtualEdge> getEdges(){
+		return Collections.unmodifiableList(edges);
+	}
+
+	/**
+	 * Returns the edges of the PCG incident to the given node in the given direction
+	 * @param node
+	 * @param direction
+	 * @return
+	 */
+	public List<VirtualEdge> getEdges(Node node, NodeDirection direction){
+		List<VirtualEdge> result = (direction == NodeDirection.OUT ? outEdges : inEdges).get(node);
+		return result == null ? Collections.<VirtualEdge>emptyList() : Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Returns the CFG the PCG was constructed from
+	 * @return
+	 */
+	public Q getCFG(){
+		return Common.toQ(ucfg.getCFG());
+	}
+
+	/**
+	 * Returns the master entry node
+	 * @return
+	 */
+	public Node getMasterEntry(){
+		return ucfg.getEntryNode();
+	}
+
+	/**
+	 * Returns the master exit node
+	 * @return
+	 */
+	public Node getMasterExit(){
+		return ucfg.getExitNode();
+	}
+
+	/**
+	 * Returns the CFG roots
+	 * @return
+	 */
+	public Q getRoots(){
+		return Common.toQ(ucfg.getRoots());
+	}
+
+	/**
+	 * Returns the CFG exits
+	 * @return
+	 */
+	public Q getExits(){
+		return Common.toQ(ucfg.getExits());
+	}
+
+	/**
+	 * Returns the explicit events of the PCG
+	 * @return
+	 */
+	public Q getEvents(){
+		return Common.toQ(events);
+	}
+
+	/**
+	 * Writes the PCG edges, tags and attributes to the Atlas graph and
+	 * returns the equivalent PCG
+	 * @return
+	 */
+	public PCG materialize(){
+		AtlasSet<Edge> pcgEdges = new AtlasHashSet<Edge>();
+		for(VirtualEdge edge : edges){
+			Edge atlasEdge = edge.getAtlasEdge();
+			if(atlasEdge == null){
+				atlasEdge = findPCGEdge(edge);
+			}
+			if(atlasEdge == null){
+				atlasEdge = Graph.U.createEdge(edge.from(), edge.to());
+				atlasEdge.tag(XCSG.Edge);
+				if(edge.getConditionValue() != null){
+					atlasEdge.putAttr(XCSG.conditionValue, edge.getConditionValue());
+				}
+				if(edge.isInfeasible()){
+					atlasEdge.tag("INFEASIBLE");
+				}
+			}
+			atlasEdge.tag(PCG.PCGEdge.PCGEdge);
+			pcgEdges.add(atlasEdge);
+		}
+		getMasterEntry().tag(PCG.PCGNode.PCGMasterEntry);
+		getMasterExit().tag(PCG.PCGNode.PCGMasterExit);
+		PCG pcg = new PCG(new UncheckedGraph(nodes, pcgEdges), ucfg, events);
+		if(PCGPreferences.getSnapshot().isSerializePCGInstancesEnabled()){
+			PCG.save(pcg);
+		}
+		return pcg;
+	}
+
+	/** find a compatible existing PCG Edge with respect to adjacent nodes and XCSG.conditionValue */
+	private static Edge findPCGEdge(VirtualEdge edge){
+		for(Edge candidate : Graph.U.edges(edge.from(), NodeDirection.OUT)){
+			if(!candidate.to().equals(edge.to()) || !candidate.taggedWith(PCG.PCGEdge.PCGEdge)){
+				continue;
+			}
+			Object conditionValue = candidate.getAttr(XCSG.conditionValue);
+			if(edge.getConditionValue() == null ? conditionValue == null : edge.getConditionValue().equals(conditionValue)){
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "Ephemeral PCG [nodes=" + nodes.size() + ", edges=" + edges.size() + "]";
+	}
+
+}
@@ -0,0 +1,395 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.graph.UncheckedGraph;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.pcg.log.Log;
+
+/**
+ * Removes exceptional control flow that cannot affect the projection of a
+ * control flow graph onto a set of events.
+ *
+ * The exceptional out edges of a non-event node u are pruned when all of the
+ * following hold, where j is the immediate post-dominator of u:
+ *
+ * 1) j is a node of the control flow graph (not the virtual exit),
+ * 2) every node reachable from u without passing through j is a non-event
+ * node that can reach an exit, and
+ * 3) u keeps a non-exceptional successor that is j or that reaches an exit
+ * along non-exceptional edges.
+ *
+ * Under these conditions every path leaving u reaches j without passing an
+ * event and at least one such path survives the pruning, so the events
+ * reachable from any predecessor of u (and the conditions under which they
+ * are reached) are unchanged. Handler nodes that become unreachable from the
+ * roots are dropped with their edges. The PCG of the pruned graph has the
+ * same nodes and edges as the PCG of the original graph.
+ */
+public class ExceptionalControlFlowPruner {
+
+	private ExceptionalControlFlowPruner(){}
+
+	/**
+	 * Returns the given control flow graph without the exceptional control
+	 * flow that cannot affect the projection onto the given events. If the
+	 * graph has no exceptional control flow edges the given graph is
+	 * returned.
+	 *
+	 * @param cfg
+	 * @param cfRoots
+	 * @param cfExits
+	 * @param events
+	 * @return
+	 */
+	public static Q prune(Q cfg, Q cfRoots, Q cfExits, Q events){
+		long exceptionalEdges = cfg.edges(XCSG.ExceptionalControlFlow_Edge).eval().edges().size();
+		if(exceptionalEdges == 0){
+			return cfg;
+		}
+		Graph graph = cfg.eval();
+
+		// index the graph, the virtual exit is numbered after the graph nodes
+		List<Node> nodes = new ArrayList<Node>((int) graph.nodes().size());
+		Map<Node,Integer> ids = new HashMap<Node,Integer>();
+		for(Node node : graph.nodes()){
+			ids.put(node, nodes.size());
+			nodes.add(node);
+		}
+		int exit = nodes.size();
+		List<Edge> edges = new ArrayList<Edge>((int) graph.edges().size());
+		for(Edge edge : graph.edges()){
+			edges.add(edge);
+		}
+		int[] from = new int[edges.size()];
+		int[] to = new int[edges.size()];
+		boolean[] exceptional = new boolean[edges.size()];
+		List<List<Integer>> outEdges = new ArrayList<List<Integer>>();
+		List<List<Integer>> inEdges = new ArrayList<List<Integer>>();
+		for(int i=0; i<=exit; i++){
+			outEdges.add(new ArrayList<Integer>());
+			inEdges.add(new ArrayList<Integer>());
+		}
+		for(int e=0; e<edges.size(); e++){
+			Edge edge = edges.get(e);
+			from[e] = ids.get(edge.from());
+			to[e] = ids.get(edge.to());
+			exceptional[e] = edge.taggedWith(XCSG.ExceptionalControlFlow_Edge);
+			outEdges.get(from[e]).add(e);
+			inEdges.get(to[e]).add(e);
+		}
+		boolean[] isEvent = new boolean[exit];
+		for(Node event : events.eval().nodes()){
+			Integer id = ids.get(event);
+			if(id != null){
+				isEvent[id] = true;
+			}
+		}
+		List<Integer> roots = getIndices(cfRoots, ids);
+		List<Integer> exits = getIndices(cfExits, ids);
+
+		int[] postDominators = getImmediatePostDominators(exit, exits, from, to, outEdges, inEdges);
+		boolean[] reachesExitNormally = getNormallyReachingExit(exits, from, exceptional, inEdges);
+
+		// visit the candidates in reverse postorder so that enclosing regions
+		// are checked first and their results can be reused for nested nodes
+		boolean[] pruned = new boolean[edges.size()];
+		boolean[] noPruning = new boolean[edges.size()];
+		int[] region = new int[exit];
+		Arrays.fill(region, -1);
+		List<Integer> postorder = getPostorder(roots, to, outEdges, noPruning, exit);
+		int prunedEdges = 0;
+		for(int i=postorder.size()-1; i>=0; i--){
+			int node = postorder.get(i);
+			if(isEvent[node] || !hasExceptionalSuccessor(node, exceptional, outEdges)){
+				continue;
+			}
+			int postDominator = postDominators[node];
+			if(postDominator == -1 || postDominator == exit){
+				continue;
+			}
+			if(!hasRetainedSuccessor(node, postDominator, to, exceptional, outEdges, reachesExitNormally)){
+				continue;
+			}
+			// a node inside an already verified region with the same
+			// post-dominator only reaches a subset of that region
+			if(region[node] != postDominator){
+				List<Integer> members = getEventFreeRegion(node, postDominator, to, outEdges, isEvent, postDominators);
+				if(members == null){
+					continue;
+				}
+				for(int member : members){
+					region[member] = postDominator;
+				}
+			}
+			for(int e : outEdges.get(node)){
+				if(exceptional[e]){
+					pruned[e] = true;
+					prunedEdges++;
+				}
+			}
+		}
+		if(prunedEdges == 0){
+			return cfg;
+		}
+
+		// drop the nodes that were only reachable through pruned edges
+		boolean[] reachableBefore = getReachable(roots, to, outEdges, noPruning, exit);
+		boolean[] reachableAfter = getReachable(roots, to, outEdges, pruned, exit);
+		AtlasSet<Node> keptNodes = new AtlasHashSet<Node>();
+		boolean[] kept = new boolean[exit];
+		for(int n=0; n<exit; n++){
+			if(!reachableBefore[n] || reachableAfter[n] || isEvent[n]){
+				kept[n] = true;
+				keptNodes.add(nodes.get(n));
+			}
+		}
+		AtlasSet<Edge> keptEdges = new AtlasHashSet<Edge>();
+		for(int e=0; e<edges.size(); e++){
+			if(!pruned[e] && kept[from[e]] && kept[to[e]]){
+				keptEdges.add(edges.get(e));
+			}
+		}
+
+		long removedEdges = edges.size() - keptEdges.size();
+		long removedNodes = nodes.size() - keptNodes.size();
+		Log.info(String.format("Pruned %d of %d exceptional control flow edges, removing %d of %d edges (%.1f%%) and %d of %d nodes (%.1f%%)",
+				prunedEdges, exceptionalEdges,
+				removedEdges, edges.size(), (100.0 * removedEdges) / edges.size(),
+				removedNodes, nodes.size(), (100.0 * removedNodes) / nodes.size()));
+
+		return Common.toQ(new UncheckedGraph(keptNodes, keptEdges));
+	}
+
+	private static List<Integer> getIndices(Q q, Map<Node,Integer> ids){
+		List<Integer> result = new ArrayList<Integer>();
+		for(Node node : q.eval().nodes()){
+			Integer id = ids.get(node);
+			if(id != null){
+				result.add(id);
+			}
+		}
+		return result;
+	}
+
+	private static boolean hasExceptionalSuccessor(int node, boolean[] exceptional, List<List<Integer>> outEdges){
+		for(int e : outEdges.get(node)){
+			if(exceptional[e]){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the node has a non-exceptional successor that is the
+	 * given post-dominator or that reaches an exit along non-exceptional edges
+	 * (which are never pruned)
+	 */
+	private static boolean hasRetainedSuccessor(int node, int postDominator, int[] to, boolean[] exceptional, List<List<Integer>> outEdges, boolean[] reachesExitNormally){
+		for(int e : outEdges.get(node)){
+			if(!exceptional[e] && (to[e] == postDominator || reachesExitNormally[to[e]])){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the nodes reachable from the given node without passing through
+	 * the given post-dominator or null if one of them is an event or cannot
+	 * reach an exit
+	 */
+	private static List<Integer> getEventFreeRegion(int entry, int postDominator, int[] to, List<List<Integer>> outEdges, boolean[] isEvent, int[] postDominators){
+		List<Integer> region = new ArrayList<Integer>();
+		boolean[] visited = new boolean[isEvent.length];
+		Deque<Integer> worklist = new ArrayDeque<Integer>();
+		visited[entry] = true;
+		worklist.add(entry);
+		while(!worklist.isEmpty()){
+			int node = worklist.poll();
+			if(isEvent[node] || postDominators[node] == -1){
+				return null;
+			}
+			region.add(node);
+			for(int e : outEdges.get(node)){
+				int successor = to[e];
+				if(successor != postDominator && !visited[successor]){
+					visited[successor] = true;
+					worklist.add(successor);
+				}
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Returns the nodes that reach an exit using only non-exceptional edges
+	 */
+	private static boolean[] getNormallyReachingExit(List<Integer> exits, int[] from, boolean[] exceptional, List<List<Integer>> inEdges){
+		boolean[] result = new boolean[inEdges.size() - 1];
+		Deque<Integer> worklist = new ArrayDeque<Integer>();
+		for(int exit : exits){
+			if(!result[exit]){
+				result[exit] = true;
+				worklist.add(exit);
+			}
+		}
+		while(!worklist.isEmpty()){
+			int node = worklist.poll();
+			for(int e : inEdges.get(node)){
+				if(!exceptional[e] && !result[from[e]]){
+					result[from[e]] = true;
+					worklist.add(from[e]);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean[] getReachable(List<Integer> roots, int[] to, List<List<Integer>> outEdges, boolean[] removed, int size){
+		boolean[] reachable = new boolean[size];
+		Deque<Integer> worklist = new ArrayDeque<Integer>();
+		for(int root : roots){
+			if(!reachable[root]){
+				reachable[root] = true;
+				worklist.add(root);
+			}
+		}
+		while(!worklist.isEmpty()){
+			int node = worklist.poll();
+			for(int e : outEdges.get(node)){
+				if(!removed[e] && !reachable[to[e]]){
+					reachable[to[e]] = true;
+					worklist.add(to[e]);
+				}
+			}
+		}
+		return reachable;
+	}
+
+	/**
+	 * Returns the nodes reachable from the given roots in depth first postorder
+	 */
+	private static List<Integer> getPostorder(List<Integer> roots, int[] to, List<List<Integer>> outEdges, boolean[] removed, int size){
+		List<Integer> postorder = new ArrayList<Integer>();
+		boolean[] visited = new boolean[size];
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		for(int root : roots){
+			if(visited[root]){
+				continue;
+			}
+			visited[root] = true;
+			stack.push(root);
+			positions.push(0);
+			while(!stack.isEmpty()){
+				int node = stack.peek();
+				int position = positions.pop();
+				List<Integer> successors = outEdges.get(node);
+				if(position < successors.size()){
+					positions.push(position + 1);
+					int e = successors.get(position);
+					if(!removed[e] && !visited[to[e]]){
+						visited[to[e]] = true;
+						stack.push(to[e]);
+						positions.push(0);
+					}
+				} else {
+					postorder.add(stack.pop());
+				}
+			}
+		}
+		return postorder;
+	}
+
+	/**
+	 * Computes the immediate post-dominators with respect to a virtual exit
+	 * that succeeds the given exits using the iterative algorithm of Cooper,
+	 * Harvey and Kennedy
+	 * @return the immediate post-dominator of each node (-1 if the node cannot reach an exit)
+	 */
+	private static int[] getImmediatePostDominators(int exit, List<Integer> exits, int[] from, int[] to, List<List<Integer>> outEdges, List<List<Integer>> inEdges){
+		// depth first postorder of the reverse graph from the virtual exit
+		List<Integer> postorder = new ArrayList<Integer>();
+		boolean[] visited = new boolean[exit + 1];
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		visited[exit] = true;
+		stack.push(exit);
+		positions.push(0);
+		while(!stack.isEmpty()){
+			int node = stack.peek();
+			int position = positions.pop();
+			int predecessors = node == exit ? exits.size() : inEdges.get(node).size();
+			if(position < predecessors){
+				positions.push(position + 1);
+				int predecessor = node == exit ? exits.get(position) : from[inEdges.get(node).get(position)];
+				if(!visited[predecessor]){
+					visited[predecessor] = true;
+					stack.push(predecessor);
+					positions.push(0);
+				}
+			} else {
+				postorder.add(stack.pop());
+			}
+		}
+		int[] numbers = new int[exit + 1];
+		for(int i=0; i<postorder.size(); i++){
+			numbers[postorder.get(i)] = i;
+		}
+		boolean[] isExit = new boolean[exit];
+		for(int node : exits){
+			isExit[node] = true;
+		}
+		int[] postDominators = new int[exit + 1];
+		Arrays.fill(postDominators, -1);
+		postDominators[exit] = exit;
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			// reverse postorder, skipping the virtual exit which is last in postorder
+			for(int i=postorder.size()-2; i>=0; i--){
+				int node = postorder.get(i);
+				int postDominator = isExit[node] ? exit : -1;
+				for(int e : outEdges.get(node)){
+					int successor = to[e];
+					if(postDominators[successor] != -1){
+						postDominator = (postDominator == -1) ? successor : intersect(successor, postDominator, postDominators, numbers);
+					}
+				}
+				if(postDominator != -1 && postDominator != postDominators[node]){
+					postDominators[node] = postDominator;
+					changed = true;
+				}
+			}
+		}
+		return postDominators;
+	}
+
+	private static int intersect(int a, int b, int[] dominators, int[] numbers){
+		while(a != b){
+			while(numbers[a] < numbers[b]){
+				a = dominators[a];
+			}
+			while(numbers[b] < numbers[a]){
+				b = dominators[b];
+			}
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,364 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.Activator;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
+import com.ensoftcorp.open.pcg.log.Log;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * Tracks which functions changed between index generations by comparing
+ * function fingerprints (see FunctionFingerprint).
+ *
+ * When function change tracking is enabled, the fingerprints of all functions
+ * are recorded each time indexing completes and compared to the fingerprints
+ * of the previous index generation. Cached results of a function are retained
+ * through a re-index only if the function is unchanged and the re-index
+ * preserved the function's graph elements (its address and the addresses of
+ * its control flow nodes), otherwise they are invalidated. When tracking is
+ * disabled (or the index generation is unknown) all cached results are
+ * invalidated.
+ *
+ * The PCG, frontier and PDG caches are invalidated by the tracker itself, other
+ * caches (such as the smart view cache) can register a ChangeListener.
+ */
+public class FunctionChangeTracker {
+
+	private static final String FINGERPRINTS_FILE = "function-fingerprints.json";
+
+	/**
+	 * The changes between two index generations
+	 */
+	public static class Changes {
+
+		/**
+		 * Changes that invalidate all cached results
+		 */
+		public static final Changes ALL = new Changes(true, Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+		private final boolean all;
+		private final Set<String> retainedFunctionAddresses;
+		private final Set<String> addedFunctions;
+		private final Set<String> changedFunctions;
+		private final Set<String> removedFunctions;
+
+		private Changes(boolean all, Set<String> retainedFunctionAddresses, Set<String> addedFunctions, Set<String> changedFunctions, Set<String> removedFunctions){
+			this.all = all;
+			this.retainedFunctionAddresses = retainedFunctionAddresses;
+			this.addedFunctions = addedFunctions;
+			this.changedFunctions = changedFunctions;
+			this.removedFunctions = removedFunctions;
+		}
+
+		/**
+		 * Returns true if all cached results must be invalidated
+		 * @return
+		 */
+		public boolean isFullInvalidation(){
+			return all;
+		}
+
+		/**
+		 * Returns true if cached results of the function with the given address may be retained
+		 * @param functionAddress
+		 * @return
+		 */
+		public boolean isRetained(String functionAddress){
+			return !all && retainedFunctionAddresses.contains(functionAddress);
+		}
+
+		/**
+		 * Returns true if cached results of the given function may be retained
+		 * @param function
+		 * @return
+		 */
+		public boolean isRetained(Node function){
+			return isRetained(function.address().toAddressString());
+		}
+
+		/**
+		 * Returns the identities of functions that were added
+		 * @return
+		 */
+		public Set<String> getAddedFunctions(){
+			return Collections.unmodifiableSet(addedFunctions);
+		}
+
+		/**
+		 * Returns the identities of functions that were changed
+		 * @return
+		 */
+		public Set<String> getChangedFunctions(){
+			return Collections.unmodifiableSet(changedFunctions);
+		}
+
+		/**
+		 * Returns the identities of functions that were removed
+		 * @return
+		 */
+		public Set<String> getRemovedFunctions(){
+			return Collections.unmodifiableSet(removedFunctions);
+		}
+
+		@Override
+		public String toString() {
+			if(all){
+				return "Function changes [all functions invalidated]";
+			}
+			return "Function changes [retained=" + retainedFunctionAddresses.size()
+					+ ", added=" + addedFunctions.size()
+					+ ", changed=" + changedFunctions.size()
+					+ ", removed=" + removedFunctions.size() + "]";
+		}
+	}
+
+	/**
+	 * A listener that is notified of the changes after each index operation
+	 */
+	public static interface ChangeListener {
+
+		/**
+		 * Invoked after the index changed
+		 * @param changes
+		 */
+		public void functionsChanged(Changes changes);
+	}
+
+	private static class Record {
+		private final String contentHash;
+		private final String addressHash;
+
+		private Record(String contentHash, String addressHash){
+			this.contentHash = contentHash;
+			this.addressHash = addressHash;
+		}
+	}
+
+	private static final Object lock = new Object();
+	private static final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private static Map<String,Record> generation = null;
+	private static volatile boolean pending = false;
+
+	private FunctionChangeTracker(){}
+
+	/**
+	 * Registers a change listener
+	 * @param listener
+	 */
+	public static void addListener(ChangeListener listener){
+		listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Removes a change listener
+	 * @param listener
+	 */
+	public static void removeListener(ChangeListener listener){
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns true if an index operation has started and its changes have not
+	 * been reported yet
+	 * @return
+	 */
+	public static boolean isPending(){
+		return pending;
+	}
+
+	/**
+	 * Invoked when an index operation starts
+	 */
+	public static void indexStarted(){
+		pending = true;
+		if(!PCGPreferences.getSnapshot().isFunctionChangeTrackingEnabled()){
+			// without tracking nothing can be retained
+			notifyListeners(Changes.ALL);
+		}
+	}
+
+	/**
+	 * Invoked when an index operation completes
+	 */
+	public static void indexComplete(){
+		Changes changes;
+		if(PCGPreferences.getSnapshot().isFunctionChangeTrackingEnabled()){
+			try {
+				changes = update();
+			} catch (Exception e){
+				Log.warning("Could not compare function fingerprints, invalidating all cached results.", e);
+				reset();
+				changes = Changes.ALL;
+			}
+		} else {
+			reset();
+			changes = Changes.ALL;
+		}
+		pending = false;
+		notifyListeners(changes);
+	}
+
+	/**
+	 * Invoked when an index operation is cancelled or fails, in which case the
+	 * index generation is unknown
+	 */
+	public static void indexAbandoned(){
+		reset();
+		pending = false;
+		notifyListeners(Changes.ALL);
+	}
+
+	/**
+	 * Forgets the recorded fingerprints
+	 */
+	public static void reset(){
+		synchronized (lock) {
+			generation = new HashMap<String,Record>();
+			File file = getFingerprintsFile();
+			if(file != null && file.exists() && !file.delete()){
+				Log.warning("Could not delete " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Fingerprints all functions in the index and compares the fingerprints
+	 * to the previous index generation
+	 * @return
+	 */
+	public static Changes update(){
+		synchronized (lock) {
+			long start = System.currentTimeMillis();
+			Map<String,Record> previous = getGeneration();
+			Map<String,Record> current = new HashMap<String,Record>();
+			Map<String,String> addresses = new HashMap<String,String>();
+			Set<String> ambiguous = new HashSet<String>();
+			for(Node function : CommonQueries.getContainingFunctions(Query.universe().nodes(XCSG.controlFlowRoot)).eval().nodes()){
+				FunctionFingerprint fingerprint = FunctionFingerprint.compute(function);
+				String identity = fingerprint.getFunctionIdentity();
+				if(current.put(identity, new Record(fingerprint.getContentHash(), fingerprint.getAddressHash())) != null){
+					// functions that cannot be told apart are always treated as changed
+					ambiguous.add(identity);
+				}
+				addresses.put(identity, fingerprint.getFunctionAddress());
+			}
+
+			Set<String> retained = new HashSet<String>();
+			Set<String> added = new HashSet<String>();
+			Set<String> changed = new HashSet<String>();
+			Set<String> removed = new HashSet<String>(previous.keySet());
+			removed.removeAll(current.keySet());
+			for(Map.Entry<String,Record> entry : current.entrySet()){
+				String identity = entry.getKey();
+				Record record = previous.get(identity);
+				if(record == null){
+					added.add(identity);
+				} else if(ambiguous.contains(identity) || !record.contentHash.equals(entry.getValue().contentHash)){
+					changed.add(identity);
+				} else if(record.addressHash.equals(entry.getValue().addressHash)){
+					retained.add(addresses.get(identity));
+				}
+			}
+
+			generation = current;
+			save(current);
+
+			// cached PCGs of changed and removed functions can never be restored
+			Set<String> stale = new HashSet<String>(changed);
+			stale.addAll(removed);
+			PersistentPCGCache.remove(stale);
+
+			Changes changes = new Changes(false, retained, added, changed, removed);
+			Log.info(changes.toString() + " computed in " + (System.currentTimeMillis() - start) + "ms");
+			return changes;
+		}
+	}
+
+	private static void notifyListeners(Changes changes){
+		PCGCaches.invalidate(changes);
+		// call edges of retained functions may change, so the call graph
+		// index is rebuilt for every index generation
+		CallGraphIndex.invalidate();
+		for(ChangeListener listener : listeners){
+			try {
+				listener.functionsChanged(changes);
+			} catch (Exception e){
+				Log.error("Error notifying function change listener", e);
+			}
+		}
+	}
+
+	private static Map<String,Record> getGeneration(){
+		if(generation == null){
+			generation = load();
+		}
+		return generation;
+	}
+
+	private static File getFingerprintsFile(){
+		try {
+			return Activator.getDefault().getStateLocation().append(FINGERPRINTS_FILE).toFile();
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	private static Map<String,Record> load(){
+		Map<String,Record> result = new HashMap<String,Record>();
+		File file = getFingerprintsFile();
+		if(file == null || !file.exists()){
+			return result;
+		}
+		try (Reader reader = new FileReader(file)) {
+			JSONObject json = (JSONObject) new JSONParser().parse(reader);
+			for(Object identity : json.keySet()){
+				JSONArray hashes = (JSONArray) json.get(identity);
+				result.put(identity.toString(), new Record(hashes.get(0).toString(), hashes.get(1).toString()));
+			}
+		} catch (Exception e){
+			Log.warning("Could not read function fingerprints from " + file.getAbsolutePath(), e);
+			result.clear();
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void save(Map<String,Record> records){
+		File file = getFingerprintsFile();
+		if(file == null){
+			return;
+		}
+		JSONObject json = new JSONObject();
+		for(Map.Entry<String,Record> entry : records.entrySet()){
+			JSONArray hashes = new JSONArray();
+			hashes.add(entry.getValue().contentHash);
+			hashes.add(entry.getValue().addressHash);
+			json.put(entry.getKey(), hashes);
+		}
+		try (Writer writer = new FileWriter(file)) {
+			writer.write(json.toJSONString());
+		} catch (Exception e){
+			Log.warning("Could not write function fingerprints to " + file.getAbsolutePath(), e);
+		}
+	}
+
+}
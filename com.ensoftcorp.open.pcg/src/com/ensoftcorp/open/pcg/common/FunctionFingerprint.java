@@ -0,0 +1,305 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.log.Log;
+
+/**
+ * An index independent identity and content fingerprint of a function's
+ * control flow graph.
+ *
+ * The function identity is the qualified function name and its parameter
+ * types. The content hash covers the statement kinds, statement text and the
+ * condition value labeled structure of the control flow graph, but not Atlas
+ * addresses or source offsets, so it is stable across re-indexing as long as
+ * the function itself does not change.
+ *
+ * The control flow nodes are numbered canonically by a depth first traversal
+ * from the control flow roots whose successors are ordered by edge condition
+ * value and statement. Unchanged functions therefore have the same numbering
+ * in every index generation, which allows results to be translated between
+ * index generations by node number.
+ */
+public class FunctionFingerprint {
+
+	private final String functionIdentity;
+	private final String functionAddress;
+	private final String contentHash;
+	private final List<Node> nodes;
+	private final Map<Node,Integer> numbering;
+
+	private FunctionFingerprint(String functionIdentity, String functionAddress, String contentHash, List<Node> nodes, Map<Node,Integer> numbering){
+		this.functionIdentity = functionIdentity;
+		this.functionAddress = functionAddress;
+		this.contentHash = contentHash;
+		this.nodes = nodes;
+		this.numbering = numbering;
+	}
+
+	/**
+	 * Computes the fingerprint of the given function's control flow graph
+	 * @param function
+	 * @return
+	 */
+	public static FunctionFingerprint compute(Node function){
+		return compute(function, CommonQueries.cfg(Common.toQ(function)).eval());
+	}
+
+	/**
+	 * Computes the fingerprint of the given control flow graph (or a subgraph
+	 * of the control flow graph) of the given function
+	 * @param function
+	 * @param cfg
+	 * @return
+	 */
+	public static FunctionFingerprint compute(Node function, Graph cfg){
+		// number the nodes canonically
+		List<Node> nodes = new ArrayList<Node>();
+		Map<Node,Integer> numbering = new HashMap<Node,Integer>();
+		List<Node> roots = new ArrayList<Node>();
+		for(Node node : cfg.nodes()){
+			if(node.taggedWith(XCSG.controlFlowRoot)){
+				roots.add(node);
+			}
+		}
+		Collections.sort(roots, STATEMENT_ORDER);
+		for(Node root : roots){
+			number(cfg, root, nodes, numbering);
+		}
+		// nodes unreachable from the roots (if any) are numbered last
+		List<Node> unreached = new ArrayList<Node>();
+		for(Node node : cfg.nodes()){
+			if(!numbering.containsKey(node)){
+				unreached.add(node);
+			}
+		}
+		Collections.sort(unreached, STATEMENT_ORDER);
+		for(Node node : unreached){
+			number(cfg, node, nodes, numbering);
+		}
+
+		// hash the canonical form
+		StringBuilder form = new StringBuilder();
+		for(Node node : nodes){
+			form.append(numbering.get(node)).append(':').append(getStatement(node)).append('[');
+			for(Edge edge : getSortedSuccessorEdges(cfg, node)){
+				form.append(numbering.get(edge.to())).append('/').append(getConditionValue(edge)).append(',');
+			}
+			form.append("];");
+		}
+		return new FunctionFingerprint(getFunctionIdentity(function), function.address().toAddressString(), sha1(form.toString()), nodes, numbering);
+	}
+
+	/**
+	 * Returns an index independent identity of the given function
+	 * @param function
+	 * @return
+	 */
+	public static String getFunctionIdentity(Node function){
+		List<Node> parameters = new ArrayList<Node>();
+		for(Node parameter : Query.universe().edges(XCSG.HasParameter).successors(Common.toQ(function)).eval().nodes()){
+			parameters.add(parameter);
+		}
+		Collections.sort(parameters, new Comparator<Node>(){
+			@Override
+			public int compare(Node a, Node b) {
+				return Integer.compare(getParameterIndex(a), getParameterIndex(b));
+			}
+		});
+		StringBuilder identity = new StringBuilder(CommonQueries.getQualifiedFunctionName(function));
+		identity.append('(');
+		for(int i=0; i<parameters.size(); i++){
+			if(i > 0){
+				identity.append(',');
+			}
+			Node type = Query.universe().edges(XCSG.TypeOf).successors(Common.toQ(parameters.get(i))).eval().nodes().one();
+			identity.append(type == null ? "?" : type.getAttr(XCSG.name));
+		}
+		identity.append(')');
+		return identity.toString();
+	}
+
+	/**
+	 * Returns the index independent identity of the function
+	 * @return
+	 */
+	public String getFunctionIdentity(){
+		return functionIdentity;
+	}
+
+	/**
+	 * Returns the Atlas address of the function in the current index
+	 * @return
+	 */
+	public String getFunctionAddress(){
+		return functionAddress;
+	}
+
+	/**
+	 * Returns the hash of the canonical form of the control flow graph
+	 * @return
+	 */
+	public String getContentHash(){
+		return contentHash;
+	}
+
+	/**
+	 * Returns a hash of the Atlas addresses of the function and its control
+	 * flow nodes in canonical order. Unlike the content hash this hash is
+	 * specific to an index generation, two equal address hashes indicate
+	 * that the function's graph elements were preserved by a re-index.
+	 * @return
+	 */
+	public String getAddressHash(){
+		StringBuilder addresses = new StringBuilder(functionAddress);
+		for(Node node : nodes){
+			addresses.append(',').append(node.address().toAddressString());
+		}
+		return sha1(addresses.toString());
+	}
+
+	/**
+	 * Returns the number of control flow nodes
+	 * @return
+	 */
+	public int size(){
+		return nodes.size();
+	}
+
+	/**
+	 * Returns the canonical number of the given control flow node or -1 if
+	 * the node is not part of the fingerprinted control flow graph
+	 * @param node
+	 * @return
+	 */
+	public int getNumber(Node node){
+		Integer number = numbering.get(node);
+		return number == null ? -1 : number;
+	}
+
+	/**
+	 * Returns the control flow node with the given canonical number
+	 * @param number
+	 * @return
+	 */
+	public Node getNode(int number){
+		return nodes.get(number);
+	}
+
+	private static void number(Graph cfg, Node start, List<Node> nodes, Map<Node,Integer> numbering){
+		if(numbering.containsKey(start)){
+			return;
+		}
+		// iterative depth first traversal, successors are visited in order
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(start);
+		while(!stack.isEmpty()){
+			Node node = stack.remove(stack.size()-1);
+			if(numbering.containsKey(node)){
+				continue;
+			}
+			numbering.put(node, nodes.size());
+			nodes.add(node);
+			List<Edge> successors = getSortedSuccessorEdges(cfg, node);
+			for(int i=successors.size()-1; i>=0; i--){
+				Node successor = successors.get(i).to();
+				if(!numbering.containsKey(successor)){
+					stack.add(successor);
+				}
+			}
+		}
+	}
+
+	private static List<Edge> getSortedSuccessorEdges(Graph cfg, Node node){
+		List<Edge> edges = new ArrayList<Edge>();
+		for(Edge edge : cfg.edges(node, NodeDirection.OUT)){
+			edges.add(edge);
+		}
+		Collections.sort(edges, new Comparator<Edge>(){
+			@Override
+			public int compare(Edge a, Edge b) {
+				int result = getConditionValue(a).compareTo(getConditionValue(b));
+				if(result == 0){
+					result = STATEMENT_ORDER.compare(a.to(), b.to());
+				}
+				return result;
+			}
+		});
+		return edges;
+	}
+
+	private static final Comparator<Node> STATEMENT_ORDER = new Comparator<Node>(){
+		@Override
+		public int compare(Node a, Node b) {
+			return getStatement(a).compareTo(getStatement(b));
+		}
+	};
+
+	private static String getStatement(Node node){
+		String kind;
+		if(node.taggedWith(XCSG.ControlFlowIfCondition)){
+			kind = "IF";
+		} else if(node.taggedWith(XCSG.ControlFlowLoopCondition)){
+			kind = "LOOP";
+		} else if(node.taggedWith(XCSG.ControlFlowSwitchCondition)){
+			kind = "SWITCH";
+		} else if(node.taggedWith(XCSG.ControlFlowCondition)){
+			kind = "CONDITION";
+		} else {
+			kind = "STATEMENT";
+		}
+		if(node.taggedWith(XCSG.controlFlowRoot)){
+			kind += "-ROOT";
+		}
+		if(node.taggedWith(XCSG.controlFlowExitPoint)){
+			kind += "-EXIT";
+		}
+		Object name = node.getAttr(XCSG.name);
+		return kind + "(" + (name == null ? "" : name.toString()) + ")";
+	}
+
+	private static String getConditionValue(Edge edge){
+		Object conditionValue = edge.getAttr(XCSG.conditionValue);
+		return conditionValue == null ? "" : conditionValue.toString();
+	}
+
+	private static int getParameterIndex(Node parameter){
+		Object index = parameter.getAttr(XCSG.parameterIndex);
+		try {
+			return index == null ? -1 : Integer.parseInt(index.toString());
+		} catch (NumberFormatException e){
+			return -1;
+		}
+	}
+
+	static String sha1(String value){
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] array = md.digest(value.getBytes());
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < array.length; ++i) {
+				sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
+			}
+			return sb.toString().toUpperCase();
+		} catch (NoSuchAlgorithmException e) {
+			Log.error("SHA-1 hashing is not supported!", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+}
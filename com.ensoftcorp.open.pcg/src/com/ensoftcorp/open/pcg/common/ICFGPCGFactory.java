@@ -1,14 +1,8 @@
 package com.ensoftcorp.open.pcg.common;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import org.eclipse.core.runtime.IProgressMonitor;
 
-import com.ensoftcorp.atlas.core.db.graph.Edge;
 import com.ensoftcorp.atlas.core.db.graph.Graph;
-import com.ensoftcorp.atlas.core.db.graph.GraphElement;
-import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
 import com.ensoftcorp.atlas.core.db.graph.Node;
 import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
 import com.ensoftcorp.atlas.core.db.set.AtlasSet;
@@ -16,18 +10,9 @@ import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.query.Query;
 import com.ensoftcorp.atlas.core.script.Common;
 import com.ensoftcorp.atlas.core.xcsg.XCSG;
-import com.ensoftcorp.open.commons.algorithms.DominanceAnalysis;
-import com.ensoftcorp.open.commons.algorithms.LoopIdentification;
 import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitInterproceduralControlFlowGraph;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.commons.preferences.CommonsPreferences;
-import com.ensoftcorp.open.commons.sandbox.DefaultFlushProvider;
-import com.ensoftcorp.open.commons.sandbox.Sandbox;
-import com.ensoftcorp.open.commons.sandbox.SandboxEdge;
-import com.ensoftcorp.open.commons.sandbox.SandboxGraph;
-import com.ensoftcorp.open.commons.sandbox.SandboxGraphElement;
-import com.ensoftcorp.open.commons.sandbox.SandboxHashSet;
-import com.ensoftcorp.open.commons.sandbox.SandboxNode;
 
 /**
  * A class that implements the event flow graph transformations to transform a given CFG into PCG
@@ -136,9 +121,24 @@ public class ICFGPCGFactory {
 	 * @return
 	 */
 	public static ICFGPCG create(Q events, boolean labelBackEdges) {
+		return create(events, labelBackEdges, null);
+	}
+	
+	/**
+	 * Construct the PCGs corresponding to the given events with the containing
+	 * functions control flow graph. Construction is abandoned with an
+	 * OperationCanceledException if the given monitor is canceled, in which
+	 * case no PCG edges are written to the Atlas graph.
+	 * 
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static ICFGPCG create(Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		Q functions = CommonQueries.getContainingFunctions(events);
 		Q cfg = CommonQueries.cfg(functions);
-		return create(cfg, events, labelBackEdges);
+		return create(cfg, events, labelBackEdges, monitor);
 	}
 	
 	/**
@@ -161,10 +161,24 @@ public class ICFGPCGFactory {
 	 * @return
 	 */
 	public static ICFGPCG create(Q icfg, Q events, boolean labelBackEdges) {
+		return create(icfg, events, labelBackEdges, null);
+	}
+	
+	/**
+	 * Construct the PCGs corresponding to the given events and control flow
+	 * graph, abandoning construction if the given monitor is canceled
+	 * 
+	 * @param icfg
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static ICFGPCG create(Q icfg, Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		events = events.intersection(icfg).nodes(XCSG.ControlFlow_Node);
 		Q cfRoots = icfg.roots();
 		Q cfExits = icfg.leaves();
-		return create(icfg, cfRoots,cfExits, events, labelBackEdges);
+		return create(icfg, cfRoots,cfExits, events, labelBackEdges, monitor);
 	}
 	
 	/**
@@ -193,6 +207,24 @@ public class ICFGPCGFactory {
 	 * @return
 	 */
 	public static ICFGPCG create(Q cfg, Q cfRoots, Q cfExits, Q events, boolean labelBackEdges) {
+		return create(cfg, cfRoots, cfExits, events, labelBackEdges, null);
+	}
+	
+	/**
+	 * Construct the PCG for the given CFG, selected CFG roots, and the events
+	 * of interest, abandoning construction if the given monitor is canceled.
+	 * Note that roots, exits, and events must all be contained within the
+	 * given cfg.
+	 * 
+	 * @param cfg
+	 * @param cfRoots
+	 * @param cfExits
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static ICFGPCG create(Q cfg, Q cfRoots, Q cfExits, Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		if(CommonQueries.isEmpty(cfg)){
 			throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
 		}
@@ -261,7 +293,8 @@ public class ICFGPCGFactory {
 //		}
 		
 		UniqueEntryExitInterproceduralControlFlowGraph uicfg = new UniqueEntryExitInterproceduralControlFlowGraph(cfg.eval(), cfRoots.eval().nodes(), relaxNonEmptyRootsRequirement, cfExits.eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
-		return create(uicfg, events, labelBackEdges);
+		PCGFactory.checkCanceled(monitor);
+		return create(uicfg, events, labelBackEdges, monitor);
 	}
 	
 	/**
@@ -286,514 +319,34 @@ public class ICFGPCGFactory {
 	 * @return
 	 */
 	public static ICFGPCG create(UniqueEntryExitInterproceduralControlFlowGraph uicfg, Q events, boolean labelBackEdges){
-		events = events.intersection(Common.toQ(uicfg.getICFG()));
-//		PCG pcg = null; //PCG.load(uicfg, events.eval().nodes());
-//		if(pcg != null){
-//			return pcg;
-//		} else {
-			// PCG does not exist or could not be found, compute the PCG now
-			return new ICFGPCGFactory(uicfg, events.eval().nodes()).createICFGPCG(labelBackEdges);
-//		}
-	}
-	
-	// temporary variables for use in factory construction of a pcg
-	private Sandbox sandbox;
-	private SandboxNode masterEntry;
-	private SandboxNode masterExit;
-	private SandboxHashSet<SandboxNode> events;
-	
-	private UniqueEntryExitInterproceduralControlFlowGraph atlasuicfg;
-	private AtlasSet<Node> atlasEvents;
-	
-	/** Sandbox universe.
-	 *  Initialized to CFG, transformed to the PCG
-	 *  Nodes: ControlFlow_Edge, ICFGPCGEdge 
-	 *  Edges: ControlFlow_Node, PCGMasterEntry, PCGMasterExit */
-	private SandboxGraph pcg;
-	
-	private static class PCGFlushProvider extends DefaultFlushProvider {
-		/**
-		 * Flushes the changes made or creation of a sandbox graph element to
-		 * the Atlas graph and updates the address map accordingly.
-		 * 
-		 * This implementation differs from the default implementation by
-		 * attempting to re-use PCG edges that already exist between the
-		 * two given nodes if the sandbox created a new edge between the two
-		 * edges.
-		 * 
-		 * @param ge
-		 * @return
-		 */
-		@Override
-		public GraphElement flush(SandboxGraphElement ge, Map<String,SandboxGraphElement> addresses) {
-			if(!ge.isMirror()){
-				if(ge instanceof SandboxNode){
-					Node node = Graph.U.createNode();
-					// add all the sandbox tags
-					for(String tag : ge.tags()){
-						node.tag(tag);
-					}
-					// add all new sandbox attributes
-					for(String key : ge.attr().keySet()){
-						node.putAttr(key, ge.attr().get(key));
-					}
-					addresses.remove(ge.getAddress());
-					ge.flush(node.address().toAddressString());
-					addresses.put(ge.getAddress(), ge);
-					return node;
-				} else if(ge instanceof SandboxEdge){
-					SandboxEdge sandboxEdge = (SandboxEdge) ge;
-					// assert: nodes will all have been flushed by the time we are flushing edges
-					Node from = CommonQueries.getNodeByAddress(sandboxEdge.from().getAddress());
-					Node to = CommonQueries.getNodeByAddress(sandboxEdge.to().getAddress());
-					
-					Edge edge = null;
-					if(sandboxEdge.tags().contains(ICFGPCG.ICFGPCGEdge.ICFGPCGEdge)){
-						// only create event flow edges between nodes if one does not already exist
-						edge = findPCGEdge(sandboxEdge, from, to);
-						if (edge == null) {
-							edge = Graph.U.createEdge(from, to);
-						}
-					} else {
-						edge = Graph.U.createEdge(from, to);
-					}
-					
-					// add all the sandbox tags
-					for(String tag : ge.tags()){
-						edge.tag(tag);
-					}
-					// add all new sandbox attributes
-					for(String key : ge.attr().keySet()){
-						edge.putAttr(key, ge.attr().get(key));
-					}
-					addresses.remove(ge.getAddress());
-					ge.flush(edge.address().toAddressString());
-					addresses.put(ge.getAddress(), ge);
-					return edge;
-				} else {
-					throw new RuntimeException("Unknown sandbox graph element type."); //$NON-NLS-1$
-				}
-			} else {
-				GraphElement age = CommonQueries.getGraphElementByAddress(ge.getAddress());
-				
-				// purge all old tags
-				Set<String> tagsToRemove = new HashSet<String>();
-				for(String tag : age.tags()){
-					tagsToRemove.add(tag);
-				}
-				for(String tag : tagsToRemove){
-					age.tags().remove(tag);
-				}
-				
-				// add all the sandbox tags
-				for(String tag : ge.tags()){
-					age.tag(tag);
-				}
-				
-				// purge all old attributes
-				Set<String> keysToRemove = new HashSet<String>();
-				for(String key : age.attr().keys()){
-					keysToRemove.add(key);
-				}
-				for(String key : keysToRemove){
-					age.attr().remove(key);
-				}
-				
-				// add all new sandbox attributes
-				for(String key : ge.attr().keySet()){
-					age.putAttr(key, ge.attr().get(key));
-				}
-				
-				return age;
-			}
-		}
-
-		/** find a compatible PCG Edge with respect to adjacent nodes and XCSG.conditionValue */
-		private Edge findPCGEdge(SandboxEdge sandboxEdge, Node from, Node to) {
-			Q pcgEdges = Query.universe().edges(XCSG.ControlFlow_Edge, ICFGPCG.ICFGPCGEdge.ICFGPCGEdge);
-			AtlasSet<Edge> betweenEdges = pcgEdges.betweenStep(Common.toQ(from), Common.toQ(to)).eval().edges();
-			boolean hasAttr = sandboxEdge.hasAttr(XCSG.conditionValue);
-			Object cv = sandboxEdge.getAttr(XCSG.conditionValue);
-			for (Edge be : betweenEdges) {
-				boolean hasAttr2 = be.hasAttr(XCSG.conditionValue);
-				Object cv2 = be.getAttr(XCSG.conditionValue);
-				if (hasAttr==hasAttr2) {
-					if (cv == null && cv==cv2) {
-						return be;
-					} else if (cv.equals(cv2)) {
-						return be;
-					}
-				}
-			}
-			return null;
-		}
+		return create(uicfg, events, labelBackEdges, null);
 	}
 	
 	/**
-	 * Constructs a PCGFactory
+	 * Constructs a PCG for the given unique entry/exit control flow graph and a
+	 * set of events. Construction is abandoned with an
+	 * OperationCanceledException if the given monitor is canceled (or the
+	 * construction time budget is exceeded) before the PCG is written to
+	 * the Atlas graph, so a canceled construction leaves no partial edges.
+	 * 
 	 * @param uicfg
 	 * @param events
-	 * @param postConditions 
-	 */
-	private ICFGPCGFactory(UniqueEntryExitInterproceduralControlFlowGraph uicfg, AtlasSet<Node> events) {
-		// storing references to create result object later
-		this.atlasuicfg = uicfg;
-		this.atlasEvents = events;
-		
-		// initialize the sandbox universe
-		this.sandbox = new Sandbox();
-		this.sandbox.setFlushProvider(new PCGFlushProvider());
-
-		// populate sandbox universe
-		// assert: allEvents are a subset of the uicfg
-		this.sandbox.addGraph(uicfg.getGraph());
-		SandboxGraph suicfg = sandbox.graph(uicfg.getGraph()); 
-		this.masterEntry = sandbox.node(uicfg.getEntryNode());
-		this.masterExit = sandbox.node(uicfg.getExitNode());
-		
-		// always calculate on demand and in a sandbox because pcg could be
-		// calculated on a subset of the CFG
-		SandboxGraph domFrontier = DominanceAnalysis.computeSandboxedPostDominanceFrontier(sandbox, uicfg);
-		this.events = getImpliedEvents(sandbox, domFrontier, masterEntry, masterExit, sandbox.nodes(events));
-		
-		// the pcg starts as the whole cfg with master entry/exit
-		this.pcg = suicfg;
-	}
-	
-	/**
-	 * Construct PCG
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
 	 * @return
 	 */
-	private ICFGPCG createICFGPCG(boolean labelBackEdges){
-		// retain a set of consumed nodes that are to be removed from the graph after the loop
-		SandboxHashSet<SandboxNode> nodesToRemove = sandbox.emptyNodeSet();
-		for(SandboxNode node : pcg.nodes()) {
-			if(!events.contains(node)){
-				consumeNode(node);
-				nodesToRemove.add(node);
-			}
-		}
-		
-		// remove the consumed nodes in the previous loop
-		pcg.nodes().removeAll(nodesToRemove);
-		
-		// create a copy of all the edges that only refer to nodes which are tagged as pcg nodes
-		SandboxHashSet<SandboxEdge> pcgEdgeSet = new SandboxHashSet<SandboxEdge>(sandbox.getInstanceID());
-		for (SandboxEdge edge : pcg.edges()) {
-			if (pcg.nodes().contains(edge.from()) 
-					&& pcg.nodes().contains(edge.to())) {
-				pcgEdgeSet.add(edge);
-			}
-		}
-		pcg.edges().clear();
-		pcg.edges().addAll(pcgEdgeSet);
-		
-		// tag the entry and exit nodes
-		masterEntry.tag(PCG.PCGNode.PCGMasterEntry);
-		masterExit.tag(PCG.PCGNode.PCGMasterExit);
-		
-		// tag each edge as an event flow edge
-		// this gets an edges from the master entry to the roots
-		// and from the exits to the master exit
-		for(SandboxEdge edge : pcg.edges()){
-			edge.tag(ICFGPCG.ICFGPCGEdge.ICFGPCGEdge);
-		}
-		
-		// flush the result and construct the PCG object
-		Graph atlasPCG = sandbox.flush(pcg);
-		ICFGPCG result = new ICFGPCG(atlasPCG, atlasuicfg, atlasEvents);
-		
-		if(labelBackEdges){
-			Node masterEntry = Common.toQ(atlasPCG).nodes(ICFGPCG.ICFGPCGNode.ICFGPCGMasterEntry).eval().nodes().one();
-			labelBackEdges(atlasPCG, masterEntry);
-		}
-		
-//		// save the pcg instance parameters to the master entry node PCG_Instances attribute
-//		if(PCGPreferences.isSerializePCGInstancesEnabled()){
-//			PCG.save(result);
+	public static ICFGPCG create(UniqueEntryExitInterproceduralControlFlowGraph uicfg, Q events, boolean labelBackEdges, IProgressMonitor monitor){
+		events = events.intersection(Common.toQ(uicfg.getICFG()));
+//		PCG pcg = null; //PCG.load(uicfg, events.eval().nodes());
+//		if(pcg != null){
+//			return pcg;
+//		} else {
+			// PCG does not exist or could not be found, compute the PCG now
+			AtlasSet<Node> eventSet = events.eval().nodes();
+			Graph atlasICFGPCG = new PCGCompactionEngine(PCGCompactionEngine.adapt(uicfg), PCGCompactionEngine.TagSet.ICFGPCG_TAGS, eventSet, monitor).compact(labelBackEdges);
+			ICFGPCG result = new ICFGPCG(atlasICFGPCG, uicfg, eventSet);
+			return result;
 //		}
-		
-		return result;
-	}
-
-	/**
-	 * Consumes the given non-event node bypassing it through connecting its
-	 * predecessors with successors. New edges are PCG edges and summarize
-	 * conditionValues, but do not retain other tags or attributes from the
-	 * elided subgraph.
-	 * 
-	 * @param node non-event node to be removed from the final PCG
-	 */
-	private void consumeNode(SandboxNode node) {
-		// this function will consume the given node by bypassing it through
-		// connecting its predecessors with successors while preserving edge's
-		// conditional values
-		
-		// first: get the predecessors for the node
-		SandboxHashSet<SandboxEdge> inEdges = pcg.edges(node, NodeDirection.IN);
-		Set<SandboxEdge> predecessorEdges = new HashSet<>(); 
-		for(SandboxEdge inEdge : inEdges) {
-			SandboxNode predecessor = inEdge.from();
-			if (node.equals(predecessor)) {
-				// skip the case where the node has a self-loop. This will cause infinite recursion
-				continue;
-			}
-			predecessorEdges.add(inEdge);
-		}
-		
-		// second: get the successors for the node
-		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
-		Set<SandboxNode> successors = new HashSet<>(); 
-		for(SandboxEdge outEdge : outEdges) {
-			SandboxNode successor = outEdge.to();
-			if (node.equals(successor)) {
-				// skip the case where the node has a self-loop. This will cause infinite recursion
-				continue;
-			}
-			successors.add(successor);
-		}
-		
-		// add PCG edges
-		for(SandboxEdge inEdge : predecessorEdges) {
-			connectToSuccessors(inEdge, successors);
-		}
-		
-		// remove original inEdges for the node
-		pcg.edges().removeAll(inEdges);
-		
-		// remove original outEdges for the node
-		pcg.edges().removeAll(outEdges);
-	}
-
-	/**
-	 * Connect inEdge.from() to all successors, consolidating duplicate edges as needed.
-	 * 
-	 * For example, when both true and false edges reach the same successor, they are combined
-	 * into a single edge.
-	 * 
-	 * @param inEdge
-	 * @param successors
-	 */
-	private void connectToSuccessors(SandboxEdge inEdge, Set<SandboxNode> successors) {
-		SandboxNode predecessor = inEdge.from();
-		for (SandboxNode successor : successors) {
-			this.getOrCreatePCGEdge(predecessor, successor, inEdge.getAttr(XCSG.conditionValue));
-		}
-		
-		// merge (boolean) edges
-		this.mergeEdges(predecessor);
-	}
-
-	/**
-	 * Merge conditional edges.
-	 * 
-	 * For 'if' and 'loop' conditions, the boolean successor edges
-	 * are merged when both 'true' and 'false' are present.
-	 * @param node
-	 */
-	private void mergeEdges(SandboxNode node){
-		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
-		if (outEdges.size() < 2){
-			return;
-		}
-		
-		// group out edges by successor
-		HashMap<SandboxNode, SandboxHashSet<SandboxEdge>> nodeEdgeMap = new HashMap<>();
-		for (SandboxEdge outEdge : outEdges) {
-			SandboxNode successor = outEdge.to();
-			SandboxHashSet<SandboxEdge> edges = sandbox.emptyEdgeSet();
-			if (nodeEdgeMap.containsKey(successor)) {
-				edges = nodeEdgeMap.get(successor);
-			}
-			edges.add(outEdge);
-			nodeEdgeMap.put(successor, edges);
-		}
-		
-		for (SandboxNode successor : nodeEdgeMap.keySet()) {
-			SandboxHashSet<SandboxEdge> successorEdges = nodeEdgeMap.get(successor);
-			// successors with in degree > 1 
-			if (successorEdges.size() > 1){
-				if (node.taggedWith(XCSG.ControlFlowIfCondition) || node.taggedWith(XCSG.ControlFlowLoopCondition)) {
-					/* NOTE: because nodes are consumed in no particular order, it is possible to
-					 * encounter a merge of an unconditional edge with true or false edge, indicating
-					 * that the paths are partially merged already.
-					 * 
-					 * This should imply that the successor is not an event, and all paths to it will be merged
-					 * eventually.
-					 * 
-					 * This also means that the merged edge should not be removed along with the others,
-					 * in the case that two unconditional edges are being merged.  This can happen as a result of 
-					 * merging deeply nested branches (depth 3 is sufficient). 
-					 */
-					
-					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
-					assertConditionValues(successorEdges);
-					SandboxEdge mergedEdge = this.getOrCreatePCGEdge(node, successor, null);
-
-					// remove the edges which have been replaced (but not the one representing the merged paths) 
-					successorEdges.remove(mergedEdge);
-					pcg.edges().removeAll(successorEdges);
-				} else if (node.taggedWith(XCSG.ControlFlowSwitchCondition)) {
-					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
-					assertConditionValues(successorEdges);
-					// unlike the boolean edges, do not merge
-				} else {
-					// unexpected case...
-					// one case that could end up here is (case 45934)
-					// the previous node.taggedWith(XCSG.ControlFlowSwitchCondition) is not strong
-					// enough to catch statements between switch conditions and case statements
-					//    switch (expr) {
-					//    //  <trouble>
-					//    // i has automatic storage, but the initialization is dead, as is the call to f()
-					//    int i = 4;
-					//    f(i);
-					//        //  </trouble>
-					//    case 0:
-					//        i = 17;
-					//        /* no break */
-					//    default:
-					//        printf("%d\n", i);
-					//    }
-					//
-					// Update 4/24/2020: another case that triggers this is 
-					/*
-					#include <stdio.h>
-					#include <stdlib.h>
-					#define c1 1
-					#define q 0
-
-					bar(int b){
-						q--;
-						return(1);
-					}
-
-					baz(){
-						bar(1);
-						switch(c1){
-						case  1:
-							q++;
-							break;
-						default:
-							q--;
-							break;
-						}
-						return(1);
-					}
-
-					foo(){
-						baz(2);
-						if(c1){
-							bar(2);
-						} else{
-							bar(3);
-						}
-							return;
-					}
-					*/
-					throw new RuntimeException("Unhandled case for merging duplicate edges at node: " + node); //$NON-NLS-1$
-				}
-			}
-		}
 	}
 
-	/**
-	 * Sanity check conditionValues 
-	 * @param successorEdges
-	 * @return
-	 * @throws IllegalStateException if conditionValue is not present, null, or if each value is not unique per edge
-	 */
-	private Set<Object> assertConditionValues(SandboxHashSet<SandboxEdge> successorEdges) {
-		Set<Object> conditionValues = new HashSet<>();
-		for (SandboxEdge successorEdge : successorEdges) {
-			Object cv = successorEdge.getAttr(XCSG.conditionValue);
-			if (cv == null) {
-				new IllegalStateException("Expected XCSG.conditionValue on edge: " + successorEdge); //$NON-NLS-1$
-			}
-			boolean added = conditionValues.add(cv);
-			if (!added) {
-				// collision in values is not expected
-				new IllegalStateException("Expected XCSG.conditionValue to be unique across edges, value=" + cv); //$NON-NLS-1$
-			}
-		}
-		return conditionValues;
-	}
-	
-	/**
-	 * Using dominance frontier, compute the set of implied event nodes.
-	 * @param domFrontier 
-	 * @param uicfg
-	 * @return The set of event nodes that need to be retained in the final PCG, 
-	 * including implicit, explicit and start/exit nodes.
-	 */
-	private SandboxHashSet<SandboxNode> getImpliedEvents(Sandbox sandbox, SandboxGraph domFrontier, SandboxNode uicfgEntry, SandboxNode uicfgExit, SandboxHashSet<SandboxNode> explicitEvents) {
-		// get the dominance frontier within the function
-		SandboxHashSet<SandboxNode> impliedEvents = new SandboxHashSet<SandboxNode>(sandbox);
-		impliedEvents.addAll(explicitEvents);
-		impliedEvents.addAll(domFrontier.forward(explicitEvents).nodes());
-		
-		// add entry and exit nodes as event nodes as well
-		impliedEvents.add(uicfgEntry);
-		impliedEvents.add(uicfgExit);
-		
-		return impliedEvents;
-	}
-	
-	/**
-	 * Finds or creates a edge in the PCG between the specified nodes with the conditionValue.
-	 * 
-	 * @param from predecessor
-	 * @param to successor
-	 * @param conditionValue the conditionValue, or null on unconditional edges
-	 * @return the edge
-	 */
-	private SandboxEdge getOrCreatePCGEdge(SandboxNode from, SandboxNode to, Object conditionValue) {
-		
-		SandboxHashSet<SandboxEdge> edges = pcg.edges(from, NodeDirection.OUT);
-		
-		// find match
-		for (SandboxEdge edge : edges) {
-			if (!to.equals(edge.to())) {
-				continue;
-			}
-			boolean hasConditionalAttr = edge.hasAttr(XCSG.conditionValue);
-			if (conditionValue == null) {
-				// looking for an edge WITHOUT the attribute
-				if (!hasConditionalAttr) {
-					return edge;
-				}
-			} else {
-				// looking for an edge with the same value
-				if (hasConditionalAttr) {
-					Object attr = edge.getAttr(XCSG.conditionValue);
-					if (conditionValue.equals(attr)) {
-						return edge;
-					}
-				}
-			}
-		}
-		
-		// assert: no match
-		
-		// create a new edge
-		SandboxEdge pcgEdge = sandbox.createEdge(from, to);
-		pcgEdge.tag(XCSG.Edge);
-		pcgEdge.tag(ICFGPCG.ICFGPCGEdge.ICFGPCGEdge);
-		if (conditionValue != null){
-			pcgEdge.putAttr(XCSG.conditionValue, conditionValue);
-		}
-		
-		pcg.edges().add(pcgEdge);
-		return pcgEdge;
-	}
-	
-	private void labelBackEdges(Graph atlasPCG, Node masterEntry) {
-		LoopIdentification loops = new LoopIdentification(atlasPCG, masterEntry);
-		for (Edge reentryEdge : loops.getReentryEdges()) {
-			reentryEdge.tag(ICFGPCG.ICFGPCGEdge.ICFGPCGReentryEdge);
-		}
-		for (Edge loopbackEdge : loops.getLoopbacks()) {
-			loopbackEdge.tag(ICFGPCG.ICFGPCGEdge.ICFGPCGBackEdge);
-		}
-	}
-	
 }
@@ -1,8 +1,14 @@
 package com.ensoftcorp.open.pcg.common;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
+
 import com.ensoftcorp.atlas.core.db.graph.Edge;
 import com.ensoftcorp.atlas.core.db.graph.Graph;
 import com.ensoftcorp.atlas.core.db.graph.Node;
@@ -17,6 +23,15 @@ import com.ensoftcorp.open.commons.analysis.CallSiteAnalysis;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.pcg.log.Log;
 
+/**
+ * The result of an interprocedural projected control graph (IPCG)
+ * computation along with utilities for selecting the IPCG call graph.
+ * 
+ * An IPCG instance retains the intermediate results of the computation
+ * (the per function PCGs, the IPCG call graph and the implicit callsite
+ * events) so that consumers such as the highlighter do not need to repeat
+ * the analysis.
+ */
 public class IPCG {
 	
 	public static interface IPCGEdge {
@@ -27,28 +42,51 @@ public class IPCG {
 	}
 
 	public static Q getAncestorFunctions(Q events){
+		return CallGraphIndex.getCallGraph(getAncestorFunctionSet(events));
+	}
+	
+	/**
+	 * Returns the functions that transitively call into the IPCG call graph
+	 * of the given events (and are not part of it), see CallGraphIndex
+	 * @param events
+	 * @return
+	 */
+	public static AtlasSet<Node> getAncestorFunctionSet(Q events){
 		events = events.nodes(XCSG.ControlFlow_Node);
-		Q eventFunctions = getFunctionsContainingEvents(events);
-		Q ipcgCallGraph = getIPCGCallGraph(eventFunctions, Common.empty());
-		Q ipcgFunctions = ipcgCallGraph.retainNodes();
-		Q callEdges = Query.universe().edges(XCSG.Call);
-		return callEdges.reverse(ipcgFunctions).difference(ipcgFunctions);
+		AtlasSet<Node> ipcgFunctions = getIPCGFunctions(getFunctionsContainingEvents(events).eval().nodes(), new AtlasHashSet<Node>());
+		AtlasSet<Node> ancestorFunctions = CallGraphIndex.getInstance().getAncestors(ipcgFunctions);
+		for(Node ipcgFunction : ipcgFunctions){
+			ancestorFunctions.remove(ipcgFunction);
+		}
+		return ancestorFunctions;
 	}
 	
 	public static Q getExpandableFunctions(Q events, Q selectedAncestors){
+		return Common.toQ(getExpandableFunctionSet(events, selectedAncestors.eval().nodes()));
+	}
+	
+	/**
+	 * Returns the functions of the IPCG call graph of the given events and
+	 * selected ancestors that do not contain events, see CallGraphIndex
+	 * @param events
+	 * @param selectedAncestors
+	 * @return
+	 */
+	public static AtlasSet<Node> getExpandableFunctionSet(Q events, AtlasSet<Node> selectedAncestors){
 		events = events.nodes(XCSG.ControlFlow_Node);
-		Q eventFunctions = getFunctionsContainingEvents(events);
-		Q ipcgCallGraph = getIPCGCallGraph(eventFunctions, selectedAncestors);
-		Q expandableFunctions = ipcgCallGraph.retainNodes().difference(eventFunctions);
+		AtlasSet<Node> eventFunctions = getFunctionsContainingEvents(events).eval().nodes();
+		AtlasSet<Node> expandableFunctions = getIPCGFunctions(eventFunctions, selectedAncestors);
+		for(Node eventFunction : eventFunctions){
+			expandableFunctions.remove(eventFunction);
+		}
 		return expandableFunctions;
 	}
 	
 	public static AtlasSet<Node> getImplicitCallsiteEvents(Q events, Q selectedAncestors, Q selectedExpansions){
 		events = events.nodes(XCSG.ControlFlow_Node);
 		Q eventFunctions = getFunctionsContainingEvents(events);
-		Q ipcgCallGraph = getIPCGCallGraph(eventFunctions, selectedAncestors);
-		Q ipcgFunctions = ipcgCallGraph.retainNodes();
-		Q expandableFunctions = ipcgCallGraph.retainNodes().difference(eventFunctions);
+		Q ipcgFunctions = Common.toQ(getIPCGFunctions(eventFunctions.eval().nodes(), selectedAncestors.eval().nodes()));
+		Q expandableFunctions = ipcgFunctions.difference(eventFunctions);
 		selectedExpansions = selectedExpansions.intersection(expandableFunctions);
 		
 		// for each expanded function, get the target callsites within the ipcg
@@ -82,29 +120,132 @@ public class IPCG {
 		return implicitCallsiteEvents;
 	}
 	
-	public static Q getIPCG(Q events, Q selectedAncestors, Q selectedExpansions){
+	private Q ipcg;
+	private Map<Node,PCG> pcgs;
+	private Q callGraph;
+	private AtlasSet<Node> implicitCallsiteEvents;
+	private AtlasSet<Node> rootMasterNodes;
+	private Q events;
+	
+	private IPCG(Q ipcg, Map<Node,PCG> pcgs, Q callGraph, AtlasSet<Node> implicitCallsiteEvents, AtlasSet<Node> rootMasterNodes, Q events){
+		this.ipcg = ipcg;
+		this.pcgs = Collections.unmodifiableMap(pcgs);
+		this.callGraph = callGraph;
+		this.implicitCallsiteEvents = implicitCallsiteEvents;
+		this.rootMasterNodes = rootMasterNodes;
+		this.events = events;
+	}
+	
+	/**
+	 * Returns the interprocedural projected control graph (the stitched PCGs
+	 * of each expanded function, the IPCG edges and the relevant call edges)
+	 * @return
+	 */
+	public Q getIPCG(){
+		return ipcg;
+	}
+	
+	/**
+	 * Returns the PCG of each expanded function, keyed by function
+	 * @return
+	 */
+	public Map<Node,PCG> getPCGs(){
+		return pcgs;
+	}
+	
+	/**
+	 * Returns the IPCG call graph (event functions and selected ancestors)
+	 * @return
+	 */
+	public Q getCallGraph(){
+		return callGraph;
+	}
+	
+	/**
+	 * Returns the roots of the IPCG call graph
+	 * @return
+	 */
+	public Q getCallGraphRoots(){
+		return callGraph.roots();
+	}
+	
+	/**
+	 * Returns the callsites that were added as events because they call into
+	 * the IPCG call graph (explicit events are excluded)
+	 * @return
+	 */
+	public Q getImplicitCallsiteEvents(){
+		return Common.toQ(implicitCallsiteEvents);
+	}
+	
+	/**
+	 * Returns the PCG master entry and exit nodes of the IPCG call graph root functions
+	 * @return
+	 */
+	public Q getRootMasterNodes(){
+		return Common.toQ(rootMasterNodes);
+	}
+	
+	/**
+	 * Returns the explicit control flow events used to construct the IPCG
+	 * @return
+	 */
+	public Q getEvents(){
+		return events;
+	}
+	
+	public static IPCG getIPCG(Q events, Q selectedAncestors, Q selectedExpansions){
 		return getIPCG(events, selectedAncestors, selectedExpansions, false);
 	}
 	
-	public static Q getIPCG(Q events, Q selectedAncestors, Q selectedExpansions, boolean exceptionalControlFlow){
+	public static IPCG getIPCG(Q events, Q selectedAncestors, Q selectedExpansions, boolean exceptionalControlFlow){
+		return getIPCG(events, selectedAncestors, selectedExpansions, exceptionalControlFlow, null);
+	}
+	
+	/**
+	 * Constructs the IPCG for the given events, abandoning construction with
+	 * an OperationCanceledException if the given monitor is canceled.
+	 * Cancellation is checked while constructing each function's PCG and
+	 * before any IPCG edges are created, so a canceled construction leaves
+	 * at most complete (cached) function PCGs behind but no partial PCG or
+	 * IPCG edges.
+	 * 
+	 * @param events
+	 * @param selectedAncestors
+	 * @param selectedExpansions
+	 * @param exceptionalControlFlow
+	 * @param monitor the monitor checked for cancellation (may be null), see also DeadlineProgressMonitor
+	 * @return
+	 */
+	public static IPCG getIPCG(Q events, Q selectedAncestors, Q selectedExpansions, boolean exceptionalControlFlow, IProgressMonitor monitor){
 		// [jdm] enabling back edges is likely to cause graph layout issues if Method-level call edges are not included
 		boolean exitBackEdge = false;
 		
 		events = events.nodes(XCSG.ControlFlow_Node);
-		selectedAncestors = selectedAncestors.intersection(getAncestorFunctions(events));
+		AtlasSet<Node> explicitEvents = events.eval().nodes();
+		selectedAncestors = selectedAncestors.intersection(Common.toQ(getAncestorFunctionSet(events)));
 		Q eventFunctions = getFunctionsContainingEvents(events);
 		Q ipcgCallGraph = getIPCGCallGraph(eventFunctions, selectedAncestors);
 		Q ipcgFunctions = ipcgCallGraph.retainNodes();
-		Q expandableFunctions = ipcgCallGraph.retainNodes().difference(eventFunctions);
+		Q expandableFunctions = ipcgFunctions.difference(eventFunctions);
 		selectedExpansions = selectedExpansions.intersection(expandableFunctions);
 		
 		AtlasSet<Edge> ipcgEdges = new AtlasHashSet<Edge>();
-		Map<Node,PCG> pcgs = new HashMap<Node,PCG>();
+		AtlasSet<Node> implicitCallsiteEvents = new AtlasHashSet<Node>();
+		
+		// the call graph restricted targets of each callsite control flow node, 
+		// recorded once and reused when stitching the PCGs together
+		Map<Node,AtlasSet<Node>> callsiteTargets = new HashMap<Node,AtlasSet<Node>>();
 		
 		// for each expanded function, get the target callsites within the ipcg
-		// call graph and create a PCG with the relevant callsites as added events
+		// call graph and add the relevant callsites as events of its PCG
 		Q expandedFunctions = eventFunctions.union(selectedExpansions);
-		for(Node expandedFunction : expandedFunctions.eval().nodes()){
+		AtlasSet<Node> expandedFunctionSet = expandedFunctions.eval().nodes();
+		AtlasSet<Node> pcgEvents = new AtlasHashSet<Node>();
+		List<Node> eventlessFunctions = new ArrayList<Node>();
+		SubMonitor progress = SubMonitor.convert(monitor, "Constructing IPCG", (int) expandedFunctionSet.size() + 2);
+		for(Node expandedFunction : expandedFunctionSet){
+			PCGFactory.checkCanceled(progress);
 			Q expandedFunctionControlFlowNodes = Common.toQ(expandedFunction).contained().nodes(XCSG.ControlFlow_Node);
 			if(expandedFunctionControlFlowNodes.eval().nodes().isEmpty()){
 				Log.warning("Function " + CommonQueries.getQualifiedFunctionName(expandedFunction) + " has no CFG body.");
@@ -114,53 +255,66 @@ public class IPCG {
 			expandedFunctionEvents.addAll(expandedFunctionControlFlowNodes.intersection(events).eval().nodes());
 			Q expandedFunctionCallsitesCF = Query.universe().nodes(XCSG.CallSite).parent().intersection(expandedFunctionControlFlowNodes);
 			for(Node expandedFunctionCallsiteCF : expandedFunctionCallsitesCF.eval().nodes()){
+				AtlasSet<Node> restrictedTargets = new AtlasHashSet<Node>();
 				Q expandedFunctionCallsites  = Common.toQ(expandedFunctionCallsiteCF).children().nodes(XCSG.CallSite);
 				for(Node expandedFunctionCallsite : expandedFunctionCallsites.eval().nodes()){
 					Q expandedFunctionCallsiteTargets = Common.toQ(CallSiteAnalysis.getTargets(expandedFunctionCallsite));
-					Q expandedFunctionCallsiteCallGraphRestrictedTargets = expandedFunctionCallsiteTargets.intersection(ipcgFunctions);
-					if(!expandedFunctionCallsiteCallGraphRestrictedTargets.eval().nodes().isEmpty()){
-						expandedFunctionEvents.add(expandedFunctionCallsiteCF); // set only keeps 1 copy, ok for multiple targets
+					restrictedTargets.addAll(expandedFunctionCallsiteTargets.intersection(ipcgFunctions).eval().nodes());
+				}
+				if(!restrictedTargets.isEmpty()){
+					callsiteTargets.put(expandedFunctionCallsiteCF, restrictedTargets);
+					expandedFunctionEvents.add(expandedFunctionCallsiteCF); // set only keeps 1 copy, ok for multiple targets
+					if(!explicitEvents.contains(expandedFunctionCallsiteCF)){
+						implicitCallsiteEvents.add(expandedFunctionCallsiteCF);
 					}
 				}
 			}
-			Q cfg = exceptionalControlFlow ? CommonQueries.excfg(expandedFunction) : CommonQueries.cfg(expandedFunction);
-			PCG pcg = PCGFactory.create(cfg, Common.toQ(expandedFunctionEvents));
+			if(expandedFunctionEvents.isEmpty()){
+				eventlessFunctions.add(expandedFunction);
+			} else {
+				pcgEvents.addAll(expandedFunctionEvents);
+			}
+			progress.worked(1);
+		}
+		
+		// construct the PCGs of the expanded functions as a bulk construction
+		// (in parallel, sharing the shapes of structurally identical PCGs)
+		Map<Node,PCG> pcgs = new HashMap<Node,PCG>(PCGFactory.createPerFunction(Common.toQ(pcgEvents), exceptionalControlFlow, false, null, progress.newChild(1)));
+		for(Node eventlessFunction : eventlessFunctions){
+			Q cfg = exceptionalControlFlow ? CommonQueries.excfg(eventlessFunction) : CommonQueries.cfg(eventlessFunction);
+			PCG pcg = PCGFactory.create(cfg, Common.empty(), false, progress);
 			pcgs.put(pcg.getFunction(), pcg);
 		}
 		
+		// last chance to abandon construction before the IPCG edges are written
+		PCGFactory.checkCanceled(progress);
+		progress.setTaskName("Creating IPCG edges");
+		
 		// for each PCG create ipcg event edges from each callsite
 		// to the callsite target's pcg master entry
-		for(Node expandedFunction : expandedFunctions.eval().nodes()){
-			Q expandedFunctionControlFlowNodes = Common.toQ(expandedFunction).contained().nodes(XCSG.ControlFlow_Node);
-			Q expandedFunctionCallsitesCF = Query.universe().nodes(XCSG.CallSite).parent().intersection(expandedFunctionControlFlowNodes);
-			for(Node expandedFunctionCallsiteCF : expandedFunctionCallsitesCF.eval().nodes()){
-				Q expandedFunctionCallsites  = Common.toQ(expandedFunctionCallsiteCF).children().nodes(XCSG.CallSite);
-				for(Node expandedFunctionCallsite : expandedFunctionCallsites.eval().nodes()){
-					Q expandedFunctionCallsiteTargets = Common.toQ(CallSiteAnalysis.getTargets(expandedFunctionCallsite));
-					Q expandedFunctionCallsiteCallGraphRestrictedTargets = expandedFunctionCallsiteTargets.intersection(ipcgFunctions);
-					for(Node expandedFunctionCallsiteCallGraphRestrictedTarget : expandedFunctionCallsiteCallGraphRestrictedTargets.eval().nodes()){
-						if(CommonQueries.isEmpty(Common.toQ(expandedFunctionCallsiteCallGraphRestrictedTarget).intersection(expandedFunctions))){
-							// target is a non-expanded function, we just create an edge to the function itself
-							try {
-								Edge ipcgEdge = getOrCreateIPCGEdge(expandedFunctionCallsiteCF, expandedFunctionCallsiteCallGraphRestrictedTarget);
-								ipcgEdges.add(ipcgEdge);
-							} catch (IllegalArgumentException e){
-								Log.error("Error creating IPCG edge", e);
-							}
+		for(Map.Entry<Node,AtlasSet<Node>> entry : callsiteTargets.entrySet()){
+			Node expandedFunctionCallsiteCF = entry.getKey();
+			for(Node expandedFunctionCallsiteCallGraphRestrictedTarget : entry.getValue()){
+				if(!expandedFunctionSet.contains(expandedFunctionCallsiteCallGraphRestrictedTarget)){
+					// target is a non-expanded function, we just create an edge to the function itself
+					try {
+						Edge ipcgEdge = getOrCreateIPCGEdge(expandedFunctionCallsiteCF, expandedFunctionCallsiteCallGraphRestrictedTarget);
+						ipcgEdges.add(ipcgEdge);
+					} catch (IllegalArgumentException e){
+						Log.error("Error creating IPCG edge", e);
+					}
+				} else {
+					// target is an expanded function, we create an edge to the function's pcg master entry
+					try {
+						if(pcgs.containsKey(expandedFunctionCallsiteCallGraphRestrictedTarget)){
+							Node masterEntry = pcgs.get(expandedFunctionCallsiteCallGraphRestrictedTarget).getMasterEntry();
+							Edge ipcgEdge = getOrCreateIPCGEdge(expandedFunctionCallsiteCF, masterEntry);
+							ipcgEdges.add(ipcgEdge);
 						} else {
-							// target is an expanded function, we create an edge to the function's pcg master entry
-							try {
-								if(pcgs.containsKey(expandedFunctionCallsiteCallGraphRestrictedTarget)){
-									Node masterEntry = pcgs.get(expandedFunctionCallsiteCallGraphRestrictedTarget).getMasterEntry();
-									Edge ipcgEdge = getOrCreateIPCGEdge(expandedFunctionCallsiteCF, masterEntry);
-									ipcgEdges.add(ipcgEdge);
-								} else {
-									Log.warning("PCG for function " + CommonQueries.getQualifiedFunctionName(expandedFunctionCallsiteCallGraphRestrictedTarget) + " was not computed. IPCG will be incomplete.");
-								}
-							} catch (IllegalArgumentException e){
-								Log.error("Error creating IPCG edge", e);
-							}
+							Log.warning("PCG for function " + CommonQueries.getQualifiedFunctionName(expandedFunctionCallsiteCallGraphRestrictedTarget) + " was not computed. IPCG will be incomplete.");
 						}
+					} catch (IllegalArgumentException e){
+						Log.error("Error creating IPCG edge", e);
 					}
 				}
 			}
@@ -218,8 +372,19 @@ public class IPCG {
 		Q toUnexpanded = expandedFunctions.forwardStepOn(ipcgCallGraph);
 		Q ipcgCall2 = ipcgCallGraph.differenceEdges(expandedSubgraph.union(toUnexpanded));
 		
+		// record the master entry/exit nodes of the call graph root functions
+		AtlasSet<Node> rootMasterNodes = new AtlasHashSet<Node>();
+		for(Node root : ipcgCallGraph.roots().eval().nodes()){
+			PCG rootPCG = pcgs.get(root);
+			if(rootPCG != null){
+				rootMasterNodes.add(rootPCG.getMasterEntry());
+				rootMasterNodes.add(rootPCG.getMasterExit());
+			}
+		}
+		
 		// return the ipcg with the call graph
-		return ipcg.union(ipcgCall2);
+		progress.done();
+		return new IPCG(ipcg.union(ipcgCall2), pcgs, ipcgCallGraph, implicitCallsiteEvents, rootMasterNodes, events);
 	}
 	
 	public static Q getFunctionsContainingEvents(Q events){
@@ -228,11 +393,30 @@ public class IPCG {
 	}
 	
 	public static Q getIPCGCallGraph(Q eventFunctions, Q selectedAncestors){
-		Q callEdges = Query.universe().edges(XCSG.Call);
-		selectedAncestors = callEdges.reverse(eventFunctions).intersection(selectedAncestors);
-		Q ipcgFunctions = eventFunctions.union(selectedAncestors);
-		Q ipcgCallGraph = ipcgFunctions.union(callEdges.between(ipcgFunctions, ipcgFunctions));
-		return ipcgCallGraph;
+		return CallGraphIndex.getCallGraph(getIPCGFunctions(eventFunctions.eval().nodes(), selectedAncestors.eval().nodes()));
+	}
+	
+	/**
+	 * Returns the functions of the IPCG call graph, that is the event
+	 * functions, the selected ancestors of the event functions and the
+	 * functions on call paths between them, see CallGraphIndex
+	 * @param eventFunctions
+	 * @param selectedAncestors
+	 * @return
+	 */
+	public static AtlasSet<Node> getIPCGFunctions(AtlasSet<Node> eventFunctions, AtlasSet<Node> selectedAncestors){
+		CallGraphIndex index = CallGraphIndex.getInstance();
+		AtlasSet<Node> ipcgFunctions = new AtlasHashSet<Node>();
+		ipcgFunctions.addAll(eventFunctions);
+		AtlasSet<Node> eventFunctionAncestors = index.getAncestors(eventFunctions);
+		for(Node selectedAncestor : selectedAncestors){
+			if(eventFunctionAncestors.contains(selectedAncestor)){
+				ipcgFunctions.add(selectedAncestor);
+			}
+		}
+		AtlasSet<Node> result = index.getBetween(ipcgFunctions, ipcgFunctions);
+		result.addAll(ipcgFunctions);
+		return result;
 	}
 	
 	private static Edge getOrCreateIPCGEdge(Node from, Node to){
@@ -27,6 +27,7 @@ import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitControlFlowGraph;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.commons.xcsg.XCSG_Extension;
 import com.ensoftcorp.open.pcg.log.Log;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
 
 /**
  * A wrapper class for deserializing and accessing the properties of 
@@ -94,6 +95,8 @@ public class PCG {
 	private long creationTime;
 	private long lastAccessTime;
 	private String givenName;
+	private volatile PCGQueryIndex queryIndex = null;
+	private PCGProvenance provenance = null;
 	
 	/**
 	 * PCG instances are equivalent if they have the same instance id (case-insensitive)
@@ -127,6 +130,10 @@ public class PCG {
 	}
 
 	protected PCG(Graph pcg, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		this(pcg, ucfg, events, getCanonicalPCGInstanceID(ucfg, events));
+	}
+	
+	PCG(Graph pcg, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events, String instanceID){
 		this.pcg = pcg;
 		this.cfg = ucfg.getCFG();
 		this.masterEntry = ucfg.getEntryNode();
@@ -134,14 +141,14 @@ public class PCG {
 		this.masterExit = ucfg.getExitNode();
 		this.exits = ucfg.getExits();
 		this.events = events;
-		this.instanceID = getPCGInstanceID(ucfg, events);
+		this.instanceID = instanceID;
 		long time = System.currentTimeMillis();
 		this.creationTime = time;
 		this.lastAccessTime = time;
 		this.givenName = "";
 	}
 	
-	private PCG(Graph pcg, Graph cfg, Node masterEntry, AtlasSet<Node> roots, Node masterExit, AtlasSet<Node> exits, AtlasSet<Node> events, String instanceID, long creationTime, long lastAccessTime, String givenName){
+	PCG(Graph pcg, Graph cfg, Node masterEntry, AtlasSet<Node> roots, Node masterExit, AtlasSet<Node> exits, AtlasSet<Node> events, String instanceID, long creationTime, long lastAccessTime, String givenName){
 		this.pcg = pcg;
 		this.cfg = cfg;
 		this.masterEntry = masterEntry;
@@ -215,7 +222,7 @@ public class PCG {
 	 * @return
 	 */
 	public static PCG load(UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
-		return load(ucfg.getEntryNode(), getPCGInstanceID(ucfg, events));
+		return load(ucfg.getEntryNode(), getCanonicalPCGInstanceID(ucfg, events));
 	}
 	
 	/**
@@ -267,11 +274,52 @@ public class PCG {
 	
 	@SuppressWarnings("unchecked")
 	protected static void save(PCG instance){
-		JSONArray instances = getInstances(instance.getMasterEntry());
-		instances.add(getPCGInstanceJSON(instance));
+		// replace any existing record of the instance (for example an instance
+		// that was re-created after being evicted from the PCG cache), keeping
+		// its creation time and name but updating its last access time
+		JSONObject instanceJSON = getPCGInstanceJSON(instance);
+		JSONArray instances = new JSONArray();
+		for(Object json : getInstances(instance.getMasterEntry())){
+			JSONObject existingJSON = (JSONObject) json;
+			Object existingInstanceID = existingJSON.get(PCG.JSON_PCG_INSTANCE_ID);
+			if(existingInstanceID != null && instance.getInstanceID().equalsIgnoreCase(existingInstanceID.toString())){
+				if(existingJSON.get(PCG.JSON_CREATION_TIME) != null){
+					instanceJSON.put(PCG.JSON_CREATION_TIME, existingJSON.get(PCG.JSON_CREATION_TIME));
+				}
+				if((instance.getGivenName() == null || instance.getGivenName().isEmpty()) && existingJSON.get(PCG.JSON_GIVEN_NAME) != null){
+					instanceJSON.put(PCG.JSON_GIVEN_NAME, existingJSON.get(PCG.JSON_GIVEN_NAME));
+				}
+			} else {
+				instances.add(existingJSON);
+			}
+		}
+		instanceJSON.put(PCG.JSON_LAST_ACCESS_TIME, System.currentTimeMillis());
+		instances.add(instanceJSON);
+
+		// evict the least recently accessed instances of the function if there are too many
+		int maxInstances = PCGPreferences.getSnapshot().getMaxPCGInstancesPerFunction();
+		if(maxInstances > 0 && instances.size() > maxInstances){
+			ArrayList<JSONObject> sortedInstances = new ArrayList<JSONObject>();
+			for(Object json : instances){
+				sortedInstances.add((JSONObject) json);
+			}
+			sortedInstances.sort((a,b) -> Long.compare(getLastAccessTime(b), getLastAccessTime(a)));
+			instances = new JSONArray();
+			instances.addAll(sortedInstances.subList(0, maxInstances));
+		}
+		
 		instance.getMasterEntry().putAttr(PCG.PCGInstances, instances.toJSONString());
 	}
 	
+	// helper method to read the last access time of a serialized instance without decoding it
+	private static long getLastAccessTime(JSONObject json){
+		try {
+			return Long.parseLong(json.get(PCG.JSON_LAST_ACCESS_TIME).toString());
+		} catch (Exception e){
+			return -1L;
+		}
+	}
+	
 	/**
 	 * Deletes the PCG instance from the Atlas graph
 	 * @param instanceID
@@ -300,7 +348,7 @@ public class PCG {
 		}
 	}
 
-	private static PCG decodePCGInstance(JSONObject pcgInstance) {		
+	static PCG decodePCGInstance(JSONObject pcgInstance) {		
 		// decode the pcg nodes
 		AtlasSet<Node> pcgNodes = new AtlasHashSet<Node>();
 		try {
@@ -530,6 +578,74 @@ public class PCG {
 		return Common.toQ(events);
 	}
 	
+	/**
+	 * Returns the control flow nodes summarized by each PCG edge or null if
+	 * edge provenance was not recorded when the PCG was constructed (see
+	 * PCGPreferences.EDGE_PROVENANCE)
+	 * @return
+	 */
+	public PCGProvenance getProvenance(){
+		return provenance;
+	}
+	
+	void setProvenance(PCGProvenance provenance){
+		this.provenance = provenance;
+	}
+	
+	/**
+	 * Returns the query index of the PCG (see PCGQueryIndex), which is built
+	 * on first use and kept with this PCG instance
+	 * @return
+	 */
+	public PCGQueryIndex getQueryIndex(){
+		PCGQueryIndex index = queryIndex;
+		if(index == null){
+			synchronized(this){
+				index = queryIndex;
+				if(index == null){
+					index = new PCGQueryIndex(this);
+					queryIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the master entry to master exit paths of the PCG that take at
+	 * most loopBound loop back edges, of which at most pathLimit are
+	 * enumerated (see PCGPaths)
+	 * @param loopBound
+	 * @param pathLimit
+	 * @return
+	 */
+	public PCGPaths getPaths(int loopBound, long pathLimit){
+		return new PCGPaths(this, loopBound, pathLimit);
+	}
+	
+	/**
+	 * Returns the coarser PCG for the given events, which should be a subset
+	 * of the events of this PCG. The coarser PCG is derived by compacting this
+	 * PCG when possible, which is much cheaper than compacting the CFG (see
+	 * PCGFactory.createFromFinerPCG).
+	 * @param events
+	 * @return
+	 */
+	public PCG getCoarserPCG(Q events){
+		return getCoarserPCG(events, false);
+	}
+	
+	/**
+	 * Returns the coarser PCG for the given events, which should be a subset
+	 * of the events of this PCG (see PCGFactory.createFromFinerPCG).
+	 * @param events
+	 * @param labelBackEdges
+	 * @return
+	 */
+	public PCG getCoarserPCG(Q events, boolean labelBackEdges){
+		return PCGFactory.createFromFinerPCG(this, events, labelBackEdges);
+	}
+	
 	// BEGIN PCG SERIALIZATION LOGIC
 	
 	/**
@@ -597,6 +713,20 @@ public class PCG {
 		return getPCGInstanceID(ucfg.getCFG(), ucfg.getRoots(), ucfg.getExits(), events);
 	}
 	
+	/**
+	 * Returns the instance ID of the PCG for the given explicit events, which
+	 * is computed from the implied events (see PCGCompactionEngine) of the
+	 * explicit events. Different event selections that imply the same events
+	 * yield the same PCG and therefore have the same instance ID.
+	 * 
+	 * @param ucfg
+	 * @param events
+	 * @return
+	 */
+	public static String getCanonicalPCGInstanceID(UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		return getPCGInstanceID(ucfg, PCGCompactionEngine.getImpliedEvents(PCGCompactionEngine.adapt(ucfg), events));
+	}
+	
 	// constants for serializing pcg parameters
 	private static final String JSON_PCG_INSTANCE_ID = "instance";
 	private static final String JSON_PCG_NODES = "pcg-nodes";
@@ -668,7 +798,7 @@ public class PCG {
 	}
 	
 	// helper method to return the PCG json object for each instance stored on the master entry node
-	private static JSONArray getInstances(Node masterEntry){
+	static JSONArray getInstances(Node masterEntry){
 		if(masterEntry.hasAttr(PCG.PCGInstances)){
 			String json = masterEntry.getAttr(PCG.PCGInstances).toString();
 			JSONParser parser = new JSONParser();
@@ -0,0 +1,219 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.pcg.common.PCG.PCGEdge;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
+import com.ensoftcorp.open.pcg.log.Log;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * Evicts stale serialized PCG instances and removes the PCG edges that no
+ * surviving instance references from the Atlas graph.
+ *
+ * Instances are retained in order of their last access time up to a
+ * configurable cap. PCG edges that were created by the PCG factory are
+ * deleted, while original control flow edges that were tagged as PCG edges
+ * only have their PCG tags removed.
+ *
+ * Note: PCGs that were not serialized (or that are only held in memory) do
+ * not protect their edges unless they are explicitly retained. Any cached
+ * results that reference collected PCG edges should be invalidated after a
+ * collection.
+ */
+public class PCGCollector {
+
+	/**
+	 * The result of a collection
+	 */
+	public static class Report {
+		private int retainedInstances = 0;
+		private int evictedInstances = 0;
+		private int corruptInstances = 0;
+		private long deletedEdges = 0;
+		private long untaggedEdges = 0;
+		private long reclaimedAttributeSize = 0;
+
+		/**
+		 * Returns the number of serialized instances that were retained
+		 * @return
+		 */
+		public int getRetainedInstances() {
+			return retainedInstances;
+		}
+
+		/**
+		 * Returns the number of serialized instances that were evicted
+		 * (including instances that could no longer be decoded)
+		 * @return
+		 */
+		public int getEvictedInstances() {
+			return evictedInstances;
+		}
+
+		/**
+		 * Returns the number of evicted instances that could no longer be decoded
+		 * @return
+		 */
+		public int getCorruptInstances() {
+			return corruptInstances;
+		}
+
+		/**
+		 * Returns the number of PCG edges deleted from the Atlas graph
+		 * @return
+		 */
+		public long getDeletedEdges() {
+			return deletedEdges;
+		}
+
+		/**
+		 * Returns the number of control flow edges whose PCG tags were removed
+		 * @return
+		 */
+		public long getUntaggedEdges() {
+			return untaggedEdges;
+		}
+
+		/**
+		 * Returns the number of characters of serialized instance attributes reclaimed
+		 * @return
+		 */
+		public long getReclaimedAttributeSize() {
+			return reclaimedAttributeSize;
+		}
+
+		@Override
+		public String toString() {
+			return "PCG collection [retained instances=" + retainedInstances
+					+ ", evicted instances=" + evictedInstances
+					+ " (" + corruptInstances + " corrupt)"
+					+ ", deleted edges=" + deletedEdges
+					+ ", untagged edges=" + untaggedEdges
+					+ ", reclaimed attribute characters=" + reclaimedAttributeSize + "]";
+		}
+	}
+
+	private static class Instance {
+		private final Node masterEntry;
+		private final JSONObject json;
+		private final PCG pcg;
+
+		private Instance(Node masterEntry, JSONObject json, PCG pcg){
+			this.masterEntry = masterEntry;
+			this.json = json;
+			this.pcg = pcg;
+		}
+	}
+
+	private PCGCollector(){}
+
+	/**
+	 * Collects stale PCG instances and edges, retaining up to the configured
+	 * maximum number of PCG instances (see PCGPreferences.getMaxPCGInstances())
+	 * @return
+	 */
+	public static Report collect(){
+		return collect(PCGPreferences.getMaxPCGInstances(), 0L, Collections.<PCG>emptySet());
+	}
+
+	/**
+	 * Collects stale PCG instances and edges
+	 *
+	 * @param maxInstances the maximum number of most recently accessed instances to retain
+	 * @param minimumLastAccessTime instances last accessed before this time (unix time) are evicted
+	 * @param retained additional PCGs whose edges must not be collected
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Report collect(int maxInstances, long minimumLastAccessTime, Collection<PCG> retained){
+		Report report = new Report();
+
+		// decode all the serialized instances
+		List<Instance> instances = new ArrayList<Instance>();
+		Map<Node,JSONArray> survivingInstances = new LinkedHashMap<Node,JSONArray>();
+		for(Node masterEntry : new AtlasHashSet<Node>(Query.universe().nodes(PCG.PCGNode.PCGMasterEntry).eval().nodes())){
+			if(!masterEntry.hasAttr(PCG.PCGInstances)){
+				continue;
+			}
+			report.reclaimedAttributeSize += masterEntry.getAttr(PCG.PCGInstances).toString().length();
+			survivingInstances.put(masterEntry, new JSONArray());
+			for(Object instance : PCG.getInstances(masterEntry)){
+				JSONObject json = (JSONObject) instance;
+				try {
+					instances.add(new Instance(masterEntry, json, PCG.decodePCGInstance(json)));
+				} catch (Exception e){
+					report.corruptInstances++;
+					report.evictedInstances++;
+				}
+			}
+		}
+
+		// retain the most recently accessed instances
+		Collections.sort(instances, (a,b) -> Long.compare(b.pcg.getLastAccessTime(), a.pcg.getLastAccessTime()));
+		AtlasSet<Edge> survivingEdges = new AtlasHashSet<Edge>();
+		for(Instance instance : instances){
+			if(report.retainedInstances < maxInstances && instance.pcg.getLastAccessTime() >= minimumLastAccessTime){
+				survivingInstances.get(instance.masterEntry).add(instance.json);
+				survivingEdges.addAll(instance.pcg.getPCG().eval().edges());
+				report.retainedInstances++;
+			} else {
+				report.evictedInstances++;
+			}
+		}
+		for(PCG pcg : retained){
+			survivingEdges.addAll(pcg.getPCG().eval().edges());
+		}
+
+		// rewrite the serialized instances
+		for(Map.Entry<Node,JSONArray> entry : survivingInstances.entrySet()){
+			if(entry.getValue().isEmpty()){
+				entry.getKey().attr().remove(PCG.PCGInstances);
+			} else {
+				String json = entry.getValue().toJSONString();
+				entry.getKey().putAttr(PCG.PCGInstances, json);
+				report.reclaimedAttributeSize -= json.length();
+			}
+		}
+
+		// remove the PCG edges that are no longer referenced
+		AtlasSet<Edge> pcgEdges = new AtlasHashSet<Edge>(Query.universe().edges(PCGEdge.PCGEdge).eval().edges());
+		for(Edge pcgEdge : pcgEdges){
+			if(survivingEdges.contains(pcgEdge)){
+				continue;
+			}
+			if(pcgEdge.taggedWith(XCSG.ControlFlow_Edge)){
+				// an original control flow edge that was retained in a PCG
+				pcgEdge.tags().remove(PCGEdge.PCGEdge);
+				pcgEdge.tags().remove(PCGEdge.PCGBackEdge);
+				pcgEdge.tags().remove(PCGEdge.PCGReentryEdge);
+				report.untaggedEdges++;
+			} else {
+				Graph.U.delete(pcgEdge);
+				report.deletedEdges++;
+			}
+		}
+
+		// cached PCGs may reference collected edges
+		PCGCaches.getPCGCache().invalidateAll();
+
+		Log.info(report.toString());
+		return report;
+	}
+
+}
@@ -0,0 +1,1460 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.query.Query;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.commons.algorithms.DominanceAnalysis;
+import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitControlFlowGraph;
+import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitInterproceduralControlFlowGraph;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.commons.sandbox.DefaultFlushProvider;
+import com.ensoftcorp.open.commons.sandbox.Sandbox;
+import com.ensoftcorp.open.commons.sandbox.SandboxEdge;
+import com.ensoftcorp.open.commons.sandbox.SandboxGraph;
+import com.ensoftcorp.open.commons.sandbox.SandboxGraphElement;
+import com.ensoftcorp.open.commons.sandbox.SandboxHashSet;
+import com.ensoftcorp.open.commons.sandbox.SandboxNode;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * The event flow graph transformations shared by PCGFactory, IPCGFactory and
+ * ICFGPCGFactory. The engine compacts a unique entry/exit graph to the given
+ * events and their implied events (the post-dominance frontier of the explicit
+ * events) and flushes the result to the Atlas graph.
+ * 
+ * The factories differ only in the graph that is compacted and the tags that
+ * are applied to the result, which are described by a GraphAdapter and a
+ * TagSet respectively.
+ * 
+ * @author Ahmed Tamrawi, Ben Holland, Ganesh Ram Santhanam, Jon Mathews, Nikhil Ranade
+ */
+public class PCGCompactionEngine {
+
+	/**
+	 * The tags applied to the master entry/exit nodes and edges of a compacted graph
+	 */
+	public static class TagSet {
+		
+		/**
+		 * Tags for intraprocedural PCGs
+		 */
+		public static final TagSet PCG_TAGS = new TagSet(PCG.PCGNode.PCGMasterEntry, PCG.PCGNode.PCGMasterExit, 
+				PCG.PCGEdge.PCGEdge, 
+				PCG.PCGEdge.PCGBackEdge, 
+				PCG.PCGEdge.PCGReentryEdge);
+		
+		/**
+		 * Tags for interprocedural control flow graph PCGs
+		 */
+		public static final TagSet ICFGPCG_TAGS = new TagSet(ICFGPCG.ICFGPCGNode.ICFGPCGMasterEntry, 
+				ICFGPCG.ICFGPCGNode.ICFGPCGMasterExit, 
+				ICFGPCG.ICFGPCGEdge.ICFGPCGEdge, 
+				ICFGPCG.ICFGPCGEdge.ICFGPCGBackEdge, 
+				ICFGPCG.ICFGPCGEdge.ICFGPCGReentryEdge);
+		
+		private final String masterEntryTag;
+		private final String masterExitTag;
+		private final String edgeTag;
+		private final String backEdgeTag;
+		private final String reentryEdgeTag;
+		
+		public TagSet(String masterEntryTag, String masterExitTag, String edgeTag, String backEdgeTag, String reentryEdgeTag){
+			this.masterEntryTag = masterEntryTag;
+			this.masterExitTag = masterExitTag;
+			this.edgeTag = edgeTag;
+			this.backEdgeTag = backEdgeTag;
+			this.reentryEdgeTag = reentryEdgeTag;
+		}
+
+		public String getMasterEntryTag() {
+			return masterEntryTag;
+		}
+
+		public String getMasterExitTag() {
+			return masterExitTag;
+		}
+
+		public String getEdgeTag() {
+			return edgeTag;
+		}
+
+		public String getBackEdgeTag() {
+			return backEdgeTag;
+		}
+
+		public String getReentryEdgeTag() {
+			return reentryEdgeTag;
+		}
+	}
+	
+	/**
+	 * Describes the unique entry/exit graph to be compacted
+	 */
+	public static interface GraphAdapter {
+		
+		/**
+		 * Returns the graph to compact, including the master entry and exit nodes
+		 * @return
+		 */
+		public Graph getGraph();
+		
+		/**
+		 * Returns the master entry node
+		 * @return
+		 */
+		public Node getEntryNode();
+		
+		/**
+		 * Returns the master exit node
+		 * @return
+		 */
+		public Node getExitNode();
+	}
+	
+	/**
+	 * Describes a unique entry/exit graph whose frontier can be computed to
+	 * derive the implied events of its explicit events. Graphs without a
+	 * frontier (such as an already compacted graph) can only be compacted
+	 * with precomputed implied events.
+	 */
+	public static interface FrontierGraphAdapter extends GraphAdapter {
+		
+		/**
+		 * Computes the frontier used to derive the implied events in the given sandbox
+		 * @param sandbox
+		 * @return
+		 */
+		public SandboxGraph computeFrontier(Sandbox sandbox);
+	}
+	
+	/**
+	 * Returns a graph adapter for the given unique entry/exit control flow graph
+	 * @param ucfg
+	 * @return
+	 */
+	public static FrontierGraphAdapter adapt(final UniqueEntryExitControlFlowGraph ucfg){
+		return new FrontierGraphAdapter(){
+			@Override
+			public Graph getGraph() {
+				return ucfg.getGraph();
+			}
+
+			@Override
+			public Node getEntryNode() {
+				return ucfg.getEntryNode();
+			}
+
+			@Override
+			public Node getExitNode() {
+				return ucfg.getExitNode();
+			}
+
+			@Override
+			public SandboxGraph computeFrontier(Sandbox sandbox) {
+				return DominanceAnalysis.computeSandboxedPostDominanceFrontier(sandbox, ucfg);
+			}
+		};
+	}
+	
+	/**
+	 * Returns a graph adapter for the given unique entry/exit interprocedural control flow graph
+	 * @param uicfg
+	 * @return
+	 */
+	public static FrontierGraphAdapter adapt(final UniqueEntryExitInterproceduralControlFlowGraph uicfg){
+		return new FrontierGraphAdapter(){
+			@Override
+			public Graph getGraph() {
+				return uicfg.getGraph();
+			}
+
+			@Override
+			public Node getEntryNode() {
+				return uicfg.getEntryNode();
+			}
+
+			@Override
+			public Node getExitNode() {
+				return uicfg.getExitNode();
+			}
+
+			@Override
+			public SandboxGraph computeFrontier(Sandbox sandbox) {
+				return DominanceAnalysis.computeSandboxedPostDominanceFrontier(sandbox, uicfg);
+			}
+		};
+	}
+
+	// temporary variables for use in construction of a pcg
+	private Sandbox sandbox;
+	private SandboxNode masterEntry;
+	private SandboxNode masterExit;
+	private SandboxHashSet<SandboxNode> events;
+	private TagSet tags;
+	
+	// the construction time budget in milliseconds (0 if unlimited) and the
+	// time (unix time) after which construction is abandoned or 0 if unlimited
+	private int timeBudget;
+	private long deadline;
+	
+	// the monitor used to cancel construction or null
+	private IProgressMonitor monitor;
+
+	/** Sandbox universe.
+	 *  Initialized to CFG, transformed to the PCG
+	 *  Nodes: ControlFlow_Edge, PCGEdge 
+	 *  Edges: ControlFlow_Node, PCGMasterEntry, PCGMasterExit */
+	private SandboxGraph pcg;
+	
+	// the loop back edges and reentry edges of the compacted graph
+	private Set<SandboxEdge> loopbacks = new HashSet<SandboxEdge>();
+	private Set<SandboxEdge> reentryEdges = new HashSet<SandboxEdge>();
+	
+	// the numbered nodes of the compacted graph and the numbers of the nodes 
+	// summarized by each edge, null if edge provenance is not recorded
+	private Graph originalGraph;
+	private Map<SandboxNode,Integer> nodeNumbers = null;
+	private List<String> nodeAddresses = null;
+	private Map<SandboxEdge,BitSet> provenance = null;
+	private PCGProvenance flushedProvenance = null;
+
+	private static class PCGFlushProvider extends DefaultFlushProvider {
+		
+		private String edgeTag;
+		
+		public PCGFlushProvider(String edgeTag){
+			this.edgeTag = edgeTag;
+		}
+		
+		/**
+		 * Flushes the changes made or creation of a sandbox graph element to
+		 * the Atlas graph and updates the address map accordingly.
+		 * 
+		 * This implementation differs from the default implementation by
+		 * attempting to re-use PCG edges that already exist between the
+		 * two given nodes if the sandbox created a new edge between the two
+		 * edges, and by only writing the tags and attributes that differ
+		 * between a mirrored sandbox element and its Atlas element.
+		 * 
+		 * @param ge
+		 * @return
+		 */
+		@Override
+		public GraphElement flush(SandboxGraphElement ge, Map<String,SandboxGraphElement> addresses) {
+			if(!ge.isMirror()){
+				if(ge instanceof SandboxNode){
+					Node node = Graph.U.createNode();
+					// add all the sandbox tags
+					for(String tag : ge.tags()){
+						node.tag(tag);
+					}
+					// add all new sandbox attributes
+					for(String key : ge.attr().keySet()){
+						node.putAttr(key, ge.attr().get(key));
+					}
+					addresses.remove(ge.getAddress());
+					ge.flush(node.address().toAddressString());
+					addresses.put(ge.getAddress(), ge);
+					return node;
+				} else if(ge instanceof SandboxEdge){
+					SandboxEdge sandboxEdge = (SandboxEdge) ge;
+					// assert: nodes will all have been flushed by the time we are flushing edges
+					Node from = CommonQueries.getNodeByAddress(sandboxEdge.from().getAddress());
+					Node to = CommonQueries.getNodeByAddress(sandboxEdge.to().getAddress());
+
+					Edge edge = null;
+					if(sandboxEdge.tags().contains(edgeTag)){
+						// only create event flow edges between nodes if one does not already exist
+						edge = findPCGEdge(sandboxEdge, from, to);
+						if (edge == null) {
+							edge = Graph.U.createEdge(from, to);
+						}
+					} else {
+						edge = Graph.U.createEdge(from, to);
+					}
+
+					// add all the sandbox tags
+					for(String tag : ge.tags()){
+						edge.tag(tag);
+					}
+					// add all new sandbox attributes
+					for(String key : ge.attr().keySet()){
+						edge.putAttr(key, ge.attr().get(key));
+					}
+					addresses.remove(ge.getAddress());
+					ge.flush(edge.address().toAddressString());
+					addresses.put(ge.getAddress(), ge);
+					return edge;
+				} else {
+					throw new RuntimeException("Unknown sandbox graph element type."); //$NON-NLS-1$
+				}
+			} else {
+				GraphElement age = CommonQueries.getGraphElementByAddress(ge.getAddress());
+
+				// only write the differences between the sandbox and Atlas
+				// element, for most mirrored elements nothing has changed
+
+				// purge old tags that were removed in the sandbox
+				Set<String> tagsToRemove = new HashSet<String>();
+				for(String tag : age.tags()){
+					if(!ge.tags().contains(tag)){
+						tagsToRemove.add(tag);
+					}
+				}
+				for(String tag : tagsToRemove){
+					age.tags().remove(tag);
+				}
+
+				// add the new sandbox tags
+				for(String tag : ge.tags()){
+					if(!age.taggedWith(tag)){
+						age.tag(tag);
+					}
+				}
+
+				// purge old attributes that were removed in the sandbox
+				Set<String> keysToRemove = new HashSet<String>();
+				for(String key : age.attr().keys()){
+					if(!ge.attr().containsKey(key)){
+						keysToRemove.add(key);
+					}
+				}
+				for(String key : keysToRemove){
+					age.attr().remove(key);
+				}
+
+				// add the new or changed sandbox attributes
+				for(String key : ge.attr().keySet()){
+					Object value = ge.attr().get(key);
+					if(!age.hasAttr(key) || !Objects.equals(age.getAttr(key), value)){
+						age.putAttr(key, value);
+					}
+				}
+
+				return age;
+			}
+		}
+
+		/** find a compatible PCG Edge with respect to adjacent nodes and XCSG.conditionValue */
+		private Edge findPCGEdge(SandboxEdge sandboxEdge, Node from, Node to) {
+			Q pcgEdges = Query.universe().edges(XCSG.ControlFlow_Edge, edgeTag);
+			AtlasSet<Edge> betweenEdges = pcgEdges.betweenStep(Common.toQ(from), Common.toQ(to)).eval().edges();
+			boolean hasAttr = sandboxEdge.hasAttr(XCSG.conditionValue);
+			Object cv = sandboxEdge.getAttr(XCSG.conditionValue);
+			for (Edge be : betweenEdges) {
+				boolean hasAttr2 = be.hasAttr(XCSG.conditionValue);
+				Object cv2 = be.getAttr(XCSG.conditionValue);
+				if (hasAttr==hasAttr2) {
+					if (cv == null && cv==cv2) {
+						return be;
+					} else if (cv.equals(cv2)) {
+						return be;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Constructs a compaction engine for the given graph and events
+	 * @param graph the unique entry/exit graph to compact
+	 * @param tags the tags to apply to the resulting master nodes and edges
+	 * @param events the explicit events, which must be contained within the graph
+	 */
+	public PCGCompactionEngine(FrontierGraphAdapter graph, TagSet tags, AtlasSet<Node> events) {
+		this(graph, tags, events, null, null);
+	}
+
+	/**
+	 * Constructs a compaction engine for the given graph and events that
+	 * abandons construction when the given monitor is canceled
+	 * @param graph the unique entry/exit graph to compact
+	 * @param tags the tags to apply to the resulting master nodes and edges
+	 * @param events the explicit events, which must be contained within the graph
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 */
+	public PCGCompactionEngine(FrontierGraphAdapter graph, TagSet tags, AtlasSet<Node> events, IProgressMonitor monitor) {
+		this(graph, tags, events, null, monitor);
+	}
+
+	/**
+	 * Constructs a compaction engine for the given graph and precomputed implied events
+	 * @param graph the unique entry/exit graph to compact
+	 * @param tags the tags to apply to the resulting master nodes and edges
+	 * @param events the explicit events, which must be contained within the graph
+	 * @param impliedEvents the implied events (including the explicit events and 
+	 * master entry/exit) or null if the implied events should be computed from the 
+	 * frontier of the graph (which must then be a FrontierGraphAdapter)
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 */
+	PCGCompactionEngine(GraphAdapter graph, TagSet tags, AtlasSet<Node> events, AtlasSet<Node> impliedEvents, IProgressMonitor monitor) {
+		this.tags = tags;
+		this.monitor = monitor;
+		this.timeBudget = PCGPreferences.getSnapshot().getConstructionTimeBudget();
+		startDeadline();
+		checkCanceled();
+
+		// initialize the sandbox universe
+		this.sandbox = new Sandbox();
+		this.sandbox.setFlushProvider(new PCGFlushProvider(tags.getEdgeTag()));
+
+		// populate sandbox universe
+		// assert: allEvents are a subset of the graph
+		this.sandbox.addGraph(graph.getGraph());
+		SandboxGraph sucfg = sandbox.graph(graph.getGraph()); 
+		this.masterEntry = sandbox.node(graph.getEntryNode());
+		this.masterExit = sandbox.node(graph.getExitNode());
+
+		if(impliedEvents == null){
+			if(!(graph instanceof FrontierGraphAdapter)){
+				throw new IllegalArgumentException("Implied events must be given for a graph without a frontier.");
+			}
+			checkCanceled();
+			impliedEvents = getImpliedEvents(getFrontier((FrontierGraphAdapter) graph, () -> this.sandbox), graph.getEntryNode(), graph.getExitNode(), events);
+		}
+		this.events = sandbox.nodes(impliedEvents);
+
+		// the pcg starts as the whole cfg with master entry/exit
+		this.pcg = sucfg;
+		
+		this.originalGraph = graph.getGraph();
+		if(PCGPreferences.getSnapshot().isEdgeProvenanceEnabled()){
+			this.nodeNumbers = new HashMap<SandboxNode,Integer>();
+			this.nodeAddresses = new ArrayList<String>();
+			this.provenance = new HashMap<SandboxEdge,BitSet>();
+			for(SandboxNode node : pcg.nodes()){
+				nodeNumbers.put(node, nodeAddresses.size());
+				nodeAddresses.add(node.getAddress());
+			}
+		}
+	}
+
+	/**
+	 * Returns the implied events of the given explicit events in the given
+	 * graph, including the explicit events and the master entry/exit nodes
+	 * @param graph
+	 * @param events
+	 * @return
+	 */
+	static AtlasSet<Node> getImpliedEvents(FrontierGraphAdapter graph, AtlasSet<Node> events){
+		// a sandbox is only needed if the frontier is not cached
+		Supplier<Sandbox> sandbox = () -> {
+			Sandbox frontierSandbox = new Sandbox();
+			frontierSandbox.addGraph(graph.getGraph());
+			return frontierSandbox;
+		};
+		return getImpliedEvents(getFrontier(graph, sandbox), graph.getEntryNode(), graph.getExitNode(), events);
+	}
+
+	/**
+	 * Returns the implied events of the given explicit events in the given
+	 * graph with the given precomputed frontier of the graph
+	 * @param frontier
+	 * @param graph
+	 * @param events
+	 * @return
+	 */
+	static AtlasSet<Node> getImpliedEvents(Map<Node,AtlasSet<Node>> frontier, GraphAdapter graph, AtlasSet<Node> events){
+		return getImpliedEvents(frontier, graph.getEntryNode(), graph.getExitNode(), events);
+	}
+
+	/**
+	 * Returns the cached frontier of the given graph or null if the frontier
+	 * is not cached
+	 * @param graph
+	 * @return
+	 */
+	static Map<Node,AtlasSet<Node>> getCachedFrontier(GraphAdapter graph){
+		return PCGCaches.getFrontierCache().get(getFrontierKey(graph));
+	}
+
+	/**
+	 * Caches the given precomputed frontier of the given graph
+	 * @param graph
+	 * @param frontier
+	 */
+	static void cacheFrontier(GraphAdapter graph, Map<Node,AtlasSet<Node>> frontier){
+		PCGCaches.getFrontierCache().put(getFrontierKey(graph), frontier);
+	}
+
+	/**
+	 * Returns the frontier of the given graph, which is computed in the
+	 * supplied sandbox (containing the graph) if it is not cached
+	 * @param graph
+	 * @param sandbox
+	 * @return
+	 */
+	private static Map<Node,AtlasSet<Node>> getFrontier(FrontierGraphAdapter graph, Supplier<Sandbox> sandbox){
+		// the frontier is calculated in a sandbox because pcg could be calculated
+		// on a subset of the CFG, but the result only depends on the graph so it
+		// is cached for subsequent PCGs over the same graph
+		String frontierKey = getFrontierKey(graph);
+		Map<Node,AtlasSet<Node>> frontier = PCGCaches.getFrontierCache().get(frontierKey);
+		if(frontier == null){
+			frontier = toFrontierMap(graph.computeFrontier(sandbox.get()));
+			PCGCaches.getFrontierCache().put(frontierKey, frontier);
+		}
+		return frontier;
+	}
+
+	/**
+	 * Compacts the graph to the PCG and flushes the result to the Atlas graph
+	 * @param labelBackEdges true if loop back edges and reentry edges of the result should be labeled
+	 * @return the flushed PCG
+	 */
+	public Graph compact(boolean labelBackEdges){
+		compactInSandbox();
+		return flush(labelBackEdges);
+	}
+
+	/**
+	 * Flushes a PCG that was already compacted in the sandbox (see
+	 * compactInSandbox) to the Atlas graph. Compaction of separate engines
+	 * may run concurrently, but flushes write to the Atlas graph and should
+	 * not.
+	 * @param labelBackEdges true if loop back edges and reentry edges of the result should be labeled
+	 * @return the flushed PCG
+	 */
+	public Graph flush(boolean labelBackEdges){
+		// last chance to abandon construction, the flush itself is not interrupted
+		checkCanceled();
+
+		// the loops are identified on the compacted sandbox graph (only when
+		// labels are requested), the labels are written to the Atlas graph
+		// with the rest of the PCG
+		if(labelBackEdges){
+			identifyLoops();
+			for(SandboxEdge reentryEdge : reentryEdges){
+				reentryEdge.tag(tags.getReentryEdgeTag());
+			}
+			for(SandboxEdge loopbackEdge : loopbacks){
+				loopbackEdge.tag(tags.getBackEdgeTag());
+			}
+		}
+
+		// remember the provenance of the remaining edges, the sandbox
+		// edges take the addresses of their Atlas edges when flushed
+		List<SandboxEdge> recordedEdges = new ArrayList<SandboxEdge>();
+		List<BitSet> recordedProvenance = new ArrayList<BitSet>();
+		if(provenance != null){
+			for(SandboxEdge edge : pcg.edges()){
+				BitSet bits = provenance.get(edge);
+				if(bits != null){
+					recordedEdges.add(edge);
+					recordedProvenance.add(bits);
+				}
+			}
+		}
+
+		// flush the result
+		Graph atlasPCG = sandbox.flush(pcg);
+
+		if(provenance != null){
+			BitSet summarized = new BitSet();
+			Map<Edge,BitSet> edges = new HashMap<Edge,BitSet>();
+			for(int i=0; i<recordedEdges.size(); i++){
+				edges.put((Edge) CommonQueries.getGraphElementByAddress(recordedEdges.get(i).getAddress()), recordedProvenance.get(i));
+				summarized.or(recordedProvenance.get(i));
+			}
+			Node[] nodes = new Node[nodeAddresses.size()];
+			for(int i = summarized.nextSetBit(0); i >= 0; i = summarized.nextSetBit(i + 1)){
+				nodes[i] = CommonQueries.getNodeByAddress(nodeAddresses.get(i));
+			}
+			flushedProvenance = new PCGProvenance(originalGraph, nodes, edges);
+		}
+
+		return atlasPCG;
+	}
+
+	/**
+	 * Returns the control flow nodes summarized by each edge of the flushed
+	 * PCG or null if the PCG was not flushed yet or edge provenance is not
+	 * recorded (see PCGPreferences.EDGE_PROVENANCE)
+	 * @return
+	 */
+	public PCGProvenance getProvenance(){
+		return flushedProvenance;
+	}
+
+	/**
+	 * Compacts the graph to the PCG without writing anything to the Atlas
+	 * graph. Mirrored sandbox elements correspond to existing Atlas elements,
+	 * all other sandbox edges are PCG edges that do not exist in the Atlas graph.
+	 * @return the sandboxed PCG
+	 */
+	public SandboxGraph compactInSandbox(){
+		// the budget of the compaction starts with the compaction, engines of
+		// a batch may be set up long before they are compacted
+		startDeadline();
+		checkCanceled();
+
+		// collapse event-free regions first so that node consumption only
+		// has to visit the nodes outside of those regions
+		if(PCGPreferences.getSnapshot().isRegionPrecompactionEnabled()){
+			compactRegions();
+		}
+
+		// retain a set of consumed nodes that are to be removed from the graph after the loop
+		SandboxHashSet<SandboxNode> nodesToRemove = sandbox.emptyNodeSet();
+		for(SandboxNode node : pcg.nodes()) {
+			if(!events.contains(node)){
+				checkCanceled();
+				consumeNode(node);
+				nodesToRemove.add(node);
+			}
+		}
+
+		// remove the consumed nodes in the previous loop
+		pcg.nodes().removeAll(nodesToRemove);
+
+		// create a copy of all the edges that only refer to nodes which are tagged as pcg nodes
+		SandboxHashSet<SandboxEdge> pcgEdgeSet = new SandboxHashSet<SandboxEdge>(sandbox.getInstanceID());
+		for (SandboxEdge edge : pcg.edges()) {
+			if (pcg.nodes().contains(edge.from()) && pcg.nodes().contains(edge.to())) {
+				pcgEdgeSet.add(edge);
+			}
+		}
+		pcg.edges().clear();
+		pcg.edges().addAll(pcgEdgeSet);
+
+		// tag the entry and exit nodes
+		masterEntry.tag(tags.getMasterEntryTag());
+		masterExit.tag(tags.getMasterExitTag());
+
+		// tag each edge as an event flow edge
+		// this gets an edges from the master entry to the roots
+		// and from the exits to the master exit
+		for(SandboxEdge edge : pcg.edges()){
+			edge.tag(tags.getEdgeTag());
+		}
+
+		// a compacted PCG that is waiting to be flushed is not abandoned
+		deadline = 0;
+
+		return pcg;
+	}
+
+	/**
+	 * Identifies the loop back edges and reentry edges of the compacted graph
+	 * using the loop identification algorithm of Wei et al. ("A New Algorithm
+	 * for Identifying Loops in Decompilation"), the same algorithm used by
+	 * LoopIdentification, on the sandboxed graph. The compacted graph is
+	 * usually much smaller than the CFG and the labels are flushed with the
+	 * PCG, so labeling does not traverse the Atlas graph after the flush.
+	 * Loops are only identified when the PCG is flushed with labels.
+	 */
+	private void identifyLoops(){
+		Map<SandboxNode,List<SandboxEdge>> outEdges = new HashMap<SandboxNode,List<SandboxEdge>>();
+		Map<SandboxNode,List<SandboxEdge>> inEdges = new HashMap<SandboxNode,List<SandboxEdge>>();
+		indexAdjacency(outEdges, inEdges);
+
+		loopbacks = new HashSet<SandboxEdge>();
+		reentryEdges = new HashSet<SandboxEdge>();
+		
+		// the innermost loop header of each node
+		Map<SandboxNode,SandboxNode> headers = new HashMap<SandboxNode,SandboxNode>();
+		// the position of each node on the current depth first search path, 0 if not on the path
+		Map<SandboxNode,Integer> positions = new HashMap<SandboxNode,Integer>();
+		Set<SandboxNode> traversed = new HashSet<SandboxNode>();
+		Deque<SandboxNode> stack = new ArrayDeque<SandboxNode>();
+		Deque<Iterator<SandboxEdge>> iterators = new ArrayDeque<Iterator<SandboxEdge>>();
+		traversed.add(masterEntry);
+		positions.put(masterEntry, 1);
+		stack.push(masterEntry);
+		iterators.push(outEdges.get(masterEntry).iterator());
+		while(!stack.isEmpty()){
+			SandboxNode node = stack.peek();
+			Iterator<SandboxEdge> iterator = iterators.peek();
+			if(iterator.hasNext()){
+				SandboxEdge edge = iterator.next();
+				SandboxNode successor = edge.to();
+				if(traversed.add(successor)){
+					positions.put(successor, stack.size() + 1);
+					stack.push(successor);
+					iterators.push(outEdges.get(successor).iterator());
+				} else if(getPosition(successor, positions) > 0){
+					// the successor is on the current path, so it is a loop header
+					loopbacks.add(edge);
+					tagLoopHeader(node, successor, headers, positions);
+				} else {
+					SandboxNode header = headers.get(successor);
+					if(header != null){
+						if(getPosition(header, positions) > 0){
+							tagLoopHeader(node, header, headers, positions);
+						} else {
+							// the loop is entered without passing its header
+							reentryEdges.add(edge);
+							while(headers.get(header) != null){
+								header = headers.get(header);
+								if(getPosition(header, positions) > 0){
+									tagLoopHeader(node, header, headers, positions);
+									break;
+								}
+							}
+						}
+					}
+				}
+			} else {
+				stack.pop();
+				iterators.pop();
+				positions.put(node, 0);
+				if(!stack.isEmpty()){
+					tagLoopHeader(stack.peek(), headers.get(node), headers, positions);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Weaves the loop header of the given node into the loop header list,
+	 * which is ordered by the depth first search path positions of the headers
+	 */
+	private static void tagLoopHeader(SandboxNode node, SandboxNode header, Map<SandboxNode,SandboxNode> headers, Map<SandboxNode,Integer> positions){
+		if(header == null || node.equals(header)){
+			return;
+		}
+		SandboxNode current = node;
+		SandboxNode currentHeader = header;
+		while(headers.get(current) != null){
+			SandboxNode innermostHeader = headers.get(current);
+			if(innermostHeader.equals(currentHeader)){
+				return;
+			}
+			if(getPosition(innermostHeader, positions) < getPosition(currentHeader, positions)){
+				headers.put(current, currentHeader);
+				current = currentHeader;
+				currentHeader = innermostHeader;
+			} else {
+				current = innermostHeader;
+			}
+		}
+		headers.put(current, currentHeader);
+	}
+
+	private static int getPosition(SandboxNode node, Map<SandboxNode,Integer> positions){
+		Integer position = positions.get(node);
+		return position == null ? 0 : position;
+	}
+
+	/**
+	 * Indexes the adjacency of the graph, the sandbox edge set is not indexed by node
+	 * @param outEdges
+	 * @param inEdges
+	 */
+	private void indexAdjacency(Map<SandboxNode,List<SandboxEdge>> outEdges, Map<SandboxNode,List<SandboxEdge>> inEdges){
+		for(SandboxNode node : pcg.nodes()){
+			outEdges.put(node, new ArrayList<SandboxEdge>());
+			inEdges.put(node, new ArrayList<SandboxEdge>());
+		}
+		for(SandboxEdge edge : pcg.edges()){
+			if(outEdges.containsKey(edge.from()) && inEdges.containsKey(edge.to())){
+				outEdges.get(edge.from()).add(edge);
+				inEdges.get(edge.to()).add(edge);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the single entry/single exit regions of the graph that do not
+	 * contain events with summary edges.
+	 * 
+	 * A region is the set of nodes reachable from a region entry node without
+	 * passing through the entry's immediate post-dominator (the region exit).
+	 * The region qualifies if only the entry node has predecessors outside of
+	 * the region, every edge leaving the region goes to the exit and none of
+	 * the region nodes are events. Consuming the nodes of such a region one by
+	 * one connects each predecessor of the entry node to the exit, with the
+	 * condition value of the predecessor's edge into the region, which is
+	 * exactly the summary edge created here.
+	 * 
+	 * Candidate entries are visited in reverse postorder so the outermost
+	 * regions are collapsed first and the nodes of a collapsed region are not
+	 * visited again.
+	 */
+	private void compactRegions(){
+		// index the adjacency of the graph once
+		Map<SandboxNode,List<SandboxEdge>> outEdges = new HashMap<SandboxNode,List<SandboxEdge>>();
+		Map<SandboxNode,List<SandboxEdge>> inEdges = new HashMap<SandboxNode,List<SandboxEdge>>();
+		indexAdjacency(outEdges, inEdges);
+
+		Map<SandboxNode,SandboxNode> postDominators = getImmediatePostDominators(masterExit, outEdges, inEdges);
+		List<SandboxNode> candidates = getPostorder(masterEntry, outEdges, true);
+		Collections.reverse(candidates);
+
+		// maps the nodes of collapsed regions to their region exit
+		Map<SandboxNode,SandboxNode> collapsed = new HashMap<SandboxNode,SandboxNode>();
+		for(SandboxNode entry : candidates){
+			if(events.contains(entry) || collapsed.containsKey(entry)){
+				continue;
+			}
+			checkCanceled();
+			SandboxNode exit = postDominators.get(entry);
+			while(exit != null && collapsed.containsKey(exit)){
+				exit = collapsed.get(exit);
+			}
+			if(exit == null || exit.equals(entry)){
+				continue;
+			}
+			Set<SandboxNode> region = getEventFreeRegion(entry, exit, outEdges, inEdges);
+			if(region == null || region.size() < 2){
+				// single node regions are left to node consumption
+				continue;
+			}
+
+			// remove the region
+			List<SandboxEdge> entryEdges = new ArrayList<SandboxEdge>();
+			SandboxHashSet<SandboxEdge> regionEdges = sandbox.emptyEdgeSet();
+			SandboxHashSet<SandboxNode> regionNodes = sandbox.emptyNodeSet();
+			for(SandboxNode node : region){
+				regionNodes.add(node);
+				for(SandboxEdge edge : inEdges.get(node)){
+					regionEdges.add(edge);
+					if(!region.contains(edge.from())){
+						entryEdges.add(edge);
+					}
+				}
+				regionEdges.addAll(outEdges.get(node));
+			}
+			pcg.edges().removeAll(regionEdges);
+			pcg.nodes().removeAll(regionNodes);
+			for(SandboxEdge edge : regionEdges){
+				if(!region.contains(edge.from())){
+					outEdges.get(edge.from()).remove(edge);
+				}
+				if(!region.contains(edge.to())){
+					inEdges.get(edge.to()).remove(edge);
+				}
+			}
+			for(SandboxNode node : region){
+				outEdges.remove(node);
+				inEdges.remove(node);
+				collapsed.put(node, exit);
+			}
+
+			// connect the predecessors of the region to the region exit
+			BitSet regionProvenance = null;
+			if(provenance != null){
+				regionProvenance = new BitSet();
+				for(SandboxNode node : region){
+					regionProvenance.set(nodeNumbers.get(node));
+				}
+				for(SandboxEdge edge : regionEdges){
+					if(region.contains(edge.from())){
+						regionProvenance.or(getProvenance(edge));
+					}
+				}
+			}
+			Set<SandboxNode> predecessors = new HashSet<SandboxNode>();
+			for(SandboxEdge entryEdge : entryEdges){
+				SandboxEdge summaryEdge = getOrCreatePCGEdge(entryEdge.from(), exit, entryEdge.getAttr(XCSG.conditionValue), entryEdge.taggedWith("INFEASIBLE"));
+				if(provenance != null){
+					addProvenance(summaryEdge, getProvenance(entryEdge));
+					addProvenance(summaryEdge, regionProvenance);
+				}
+				predecessors.add(entryEdge.from());
+			}
+			for(SandboxNode predecessor : predecessors){
+				mergeEdges(predecessor);
+				// only the predecessor's edges to the exit could have changed
+				List<SandboxEdge> predecessorOutEdges = new ArrayList<SandboxEdge>(pcg.edges(predecessor, NodeDirection.OUT));
+				outEdges.put(predecessor, predecessorOutEdges);
+				List<SandboxEdge> exitInEdges = inEdges.get(exit);
+				exitInEdges.removeIf(edge -> edge.from().equals(predecessor));
+				for(SandboxEdge edge : predecessorOutEdges){
+					if(edge.to().equals(exit)){
+						exitInEdges.add(edge);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the nodes reachable from the given entry without passing through
+	 * the given exit, or null if those nodes do not form an event-free single
+	 * entry/single exit region with the given exit
+	 * @param entry
+	 * @param exit
+	 * @param outEdges
+	 * @param inEdges
+	 * @return
+	 */
+	private Set<SandboxNode> getEventFreeRegion(SandboxNode entry, SandboxNode exit, Map<SandboxNode,List<SandboxEdge>> outEdges, Map<SandboxNode,List<SandboxEdge>> inEdges){
+		Set<SandboxNode> region = new HashSet<SandboxNode>();
+		Deque<SandboxNode> worklist = new ArrayDeque<SandboxNode>();
+		region.add(entry);
+		worklist.add(entry);
+		boolean exited = false;
+		while(!worklist.isEmpty()){
+			for(SandboxEdge edge : outEdges.get(worklist.remove())){
+				SandboxNode successor = edge.to();
+				if(successor.equals(exit)){
+					exited = true;
+				} else if(events.contains(successor)){
+					// the region contains an event or exits somewhere other than the exit
+					return null;
+				} else if(region.add(successor)){
+					worklist.add(successor);
+				}
+			}
+		}
+		if(!exited){
+			return null;
+		}
+		// only the entry may be entered from outside the region
+		for(SandboxNode node : region){
+			if(!node.equals(entry)){
+				for(SandboxEdge edge : inEdges.get(node)){
+					if(!region.contains(edge.from())){
+						return null;
+					}
+				}
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Computes the immediate post-dominators of the nodes that reach the given
+	 * exit using the iterative algorithm of Cooper, Harvey and Kennedy
+	 * @param exit
+	 * @param outEdges
+	 * @param inEdges
+	 * @return a map from each node to its immediate post-dominator (the exit maps to itself)
+	 */
+	private static Map<SandboxNode,SandboxNode> getImmediatePostDominators(SandboxNode exit, Map<SandboxNode,List<SandboxEdge>> outEdges, Map<SandboxNode,List<SandboxEdge>> inEdges){
+		// the post-dominators are the dominators of the reverse graph
+		List<SandboxNode> postorder = getPostorder(exit, inEdges, false);
+		Map<SandboxNode,Integer> numbers = new HashMap<SandboxNode,Integer>();
+		for(int i=0; i<postorder.size(); i++){
+			numbers.put(postorder.get(i), i);
+		}
+		Map<SandboxNode,SandboxNode> postDominators = new HashMap<SandboxNode,SandboxNode>();
+		postDominators.put(exit, exit);
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			// reverse postorder, skipping the exit which is last in postorder
+			for(int i=postorder.size()-2; i>=0; i--){
+				SandboxNode node = postorder.get(i);
+				SandboxNode postDominator = null;
+				for(SandboxEdge edge : outEdges.get(node)){
+					SandboxNode successor = edge.to();
+					if(postDominators.containsKey(successor)){
+						postDominator = (postDominator == null) ? successor : intersect(successor, postDominator, postDominators, numbers);
+					}
+				}
+				if(postDominator != null && !postDominator.equals(postDominators.get(node))){
+					postDominators.put(node, postDominator);
+					changed = true;
+				}
+			}
+		}
+		return postDominators;
+	}
+
+	private static SandboxNode intersect(SandboxNode a, SandboxNode b, Map<SandboxNode,SandboxNode> dominators, Map<SandboxNode,Integer> numbers){
+		while(!a.equals(b)){
+			while(numbers.get(a) < numbers.get(b)){
+				a = dominators.get(a);
+			}
+			while(numbers.get(b) < numbers.get(a)){
+				b = dominators.get(b);
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the nodes reachable from the given root in depth first postorder
+	 * @param root
+	 * @param edges the adjacency to traverse
+	 * @param forward true to traverse edges from their source to their target, false to traverse edges in reverse
+	 * @return
+	 */
+	private static List<SandboxNode> getPostorder(SandboxNode root, Map<SandboxNode,List<SandboxEdge>> edges, boolean forward){
+		List<SandboxNode> postorder = new ArrayList<SandboxNode>();
+		Set<SandboxNode> visited = new HashSet<SandboxNode>();
+		Deque<SandboxNode> stack = new ArrayDeque<SandboxNode>();
+		Deque<Iterator<SandboxEdge>> iterators = new ArrayDeque<Iterator<SandboxEdge>>();
+		visited.add(root);
+		stack.push(root);
+		iterators.push(edges.get(root).iterator());
+		while(!stack.isEmpty()){
+			Iterator<SandboxEdge> iterator = iterators.peek();
+			if(iterator.hasNext()){
+				SandboxEdge edge = iterator.next();
+				SandboxNode next = forward ? edge.to() : edge.from();
+				if(edges.containsKey(next) && visited.add(next)){
+					stack.push(next);
+					iterators.push(edges.get(next).iterator());
+				}
+			} else {
+				postorder.add(stack.pop());
+				iterators.pop();
+			}
+		}
+		return postorder;
+	}
+
+	/**
+	 * Consumes the given non-event node bypassing it through connecting its
+	 * predecessors with successors. New edges are PCG edges and summarize
+	 * conditionValues, but do not retain other tags or attributes from the
+	 * elided subgraph. If edge provenance is recorded the new edges also
+	 * summarize the node and the nodes summarized by the bypassed edges.
+	 * 
+	 * @param node non-event node to be removed from the final PCG
+	 */
+	private void consumeNode(SandboxNode node) {
+		// this function will consume the given node by bypassing it through
+		// connecting its predecessors with successors while preserving edge's
+		// conditional values
+
+		// first: get the predecessors for the node
+		SandboxHashSet<SandboxEdge> inEdges = pcg.edges(node, NodeDirection.IN);
+		Set<SandboxEdge> predecessorEdges = new HashSet<>(); 
+		for(SandboxEdge inEdge : inEdges) {
+			SandboxNode predecessor = inEdge.from();
+			if (node.equals(predecessor)) {
+				// skip the case where the node has a self-loop. This will cause infinite recursion
+				continue;
+			}
+			predecessorEdges.add(inEdge);
+		}
+
+		// second: get the successors for the node
+		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
+		Set<SandboxNode> successors = new HashSet<>(); 
+		for(SandboxEdge outEdge : outEdges) {
+			SandboxNode successor = outEdge.to();
+			if (node.equals(successor)) {
+				// skip the case where the node has a self-loop. This will cause infinite recursion
+				continue;
+			}
+			successors.add(successor);
+		}
+
+		// the new edges summarize the node, its self-loops and the out edges to each successor
+		Map<SandboxNode,BitSet> successorProvenance = null;
+		if(provenance != null){
+			BitSet nodeProvenance = new BitSet();
+			nodeProvenance.set(nodeNumbers.get(node));
+			for(SandboxEdge inEdge : inEdges){
+				if(node.equals(inEdge.from())){
+					nodeProvenance.or(getProvenance(inEdge));
+				}
+			}
+			successorProvenance = new HashMap<SandboxNode,BitSet>();
+			for(SandboxNode successor : successors){
+				successorProvenance.put(successor, (BitSet) nodeProvenance.clone());
+			}
+			for(SandboxEdge outEdge : outEdges){
+				if(successorProvenance.containsKey(outEdge.to())){
+					successorProvenance.get(outEdge.to()).or(getProvenance(outEdge));
+				}
+			}
+		}
+
+		// add PCG edges
+		for(SandboxEdge inEdge : predecessorEdges) {
+			connectToSuccessors(inEdge, successors, successorProvenance);
+		}
+
+		// remove original inEdges for the node
+		pcg.edges().removeAll(inEdges);
+
+		// remove original outEdges for the node
+		pcg.edges().removeAll(outEdges);
+	}
+
+	/**
+	 * Connect inEdge.from() to all successors, consolidating duplicate edges as needed.
+	 * 
+	 * For example, when both true and false edges reach the same successor, they are combined
+	 * into a single edge.
+	 * 
+	 * @param inEdge
+	 * @param successors
+	 * @param successorProvenance the nodes summarized from the consumed node to 
+	 * each successor or null if edge provenance is not recorded
+	 */
+	private void connectToSuccessors(SandboxEdge inEdge, Set<SandboxNode> successors, Map<SandboxNode,BitSet> successorProvenance) {
+		boolean infeasible = false;
+		if(inEdge.taggedWith("INFEASIBLE")) {
+			infeasible = true;
+		}
+		SandboxNode predecessor = inEdge.from();
+		for (SandboxNode successor : successors) {
+			SandboxEdge pcgEdge = this.getOrCreatePCGEdge(predecessor, successor, inEdge.getAttr(XCSG.conditionValue), infeasible);
+			if(successorProvenance != null){
+				addProvenance(pcgEdge, getProvenance(inEdge));
+				addProvenance(pcgEdge, successorProvenance.get(successor));
+			}
+		}
+		// merge (boolean) edges
+		this.mergeEdges(predecessor);
+	}
+
+	/**
+	 * Merge conditional edges.
+	 * 
+	 * For 'if' and 'loop' conditions, the boolean successor edges
+	 * are merged when both 'true' and 'false' are present.
+	 * @param node
+	 */
+	private void mergeEdges(SandboxNode node){
+		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
+		if (outEdges.size() < 2){
+			return;
+		}
+
+		// group out edges by successor
+		HashMap<SandboxNode, SandboxHashSet<SandboxEdge>> nodeEdgeMap = new HashMap<>();
+		for (SandboxEdge outEdge : outEdges) {
+			SandboxNode successor = outEdge.to();
+			SandboxHashSet<SandboxEdge> edges = sandbox.emptyEdgeSet();
+			if (nodeEdgeMap.containsKey(successor)) {
+				edges = nodeEdgeMap.get(successor);
+			}
+			edges.add(outEdge);
+			nodeEdgeMap.put(successor, edges);
+		}
+
+		for (SandboxNode successor : nodeEdgeMap.keySet()) {
+			SandboxHashSet<SandboxEdge> successorEdges = nodeEdgeMap.get(successor);
+			// successors with in degree > 1 
+			if (successorEdges.size() > 1){
+				if (node.taggedWith(XCSG.ControlFlowIfCondition) || node.taggedWith(XCSG.ControlFlowLoopCondition)) {
+					/* NOTE: because nodes are consumed in no particular order, it is possible to
+					 * encounter a merge of an unconditional edge with true or false edge, indicating
+					 * that the paths are partially merged already.
+					 * 
+					 * This should imply that the successor is not an event, and all paths to it will be merged
+					 * eventually.
+					 * 
+					 * This also means that the merged edge should not be removed along with the others,
+					 * in the case that two unconditional edges are being merged.  This can happen as a result of 
+					 * merging deeply nested branches (depth 3 is sufficient). 
+					 */
+
+					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
+					assertConditionValues(successorEdges);
+					SandboxEdge mergedEdge = this.getOrCreatePCGEdge(node, successor, null);
+					if(provenance != null){
+						for(SandboxEdge successorEdge : successorEdges){
+							addProvenance(mergedEdge, getProvenance(successorEdge));
+						}
+					}
+
+					// remove the edges which have been replaced (but not the one representing the merged paths) 
+					successorEdges.remove(mergedEdge);
+					pcg.edges().removeAll(successorEdges);
+				} else if (node.taggedWith(XCSG.ControlFlowSwitchCondition)) {
+					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
+					assertConditionValues(successorEdges);
+					// unlike the boolean edges, do not merge
+				} else {
+					// unexpected case...
+					// one case that could end up here is (case 45934)
+					// the previous node.taggedWith(XCSG.ControlFlowSwitchCondition) is not strong
+					// enough to catch statements between switch conditions and case statements
+					//    switch (expr) {
+					//    //  <trouble>
+					//    // i has automatic storage, but the initialization is dead, as is the call to f()
+					//    int i = 4;
+					//    f(i);
+					//        //  </trouble>
+					//    case 0:
+					//        i = 17;
+					//        /* no break */
+					//    default:
+					//        printf("%d\n", i);
+					//    }
+					//
+					// Update 4/24/2020: another case that triggers this is 
+					/*
+					#include <stdio.h>
+					#include <stdlib.h>
+					#define c1 1
+					#define q 0
+
+					bar(int b){
+						q--;
+						return(1);
+					}
+
+					baz(){
+						bar(1);
+						switch(c1){
+						case  1:
+							q++;
+							break;
+						default:
+							q--;
+							break;
+						}
+						return(1);
+					}
+
+					foo(){
+						baz(2);
+						if(c1){
+							bar(2);
+						} else{
+							bar(3);
+						}
+							return;
+					}
+					*/
+					throw new RuntimeException("Unhandled case for merging duplicate edges at node: " + node); //$NON-NLS-1$
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the nodes summarized by the given edge (empty for edges that
+	 * were not created by compaction)
+	 * @param edge
+	 * @return
+	 */
+	private BitSet getProvenance(SandboxEdge edge){
+		BitSet bits = provenance.get(edge);
+		return bits == null ? new BitSet() : bits;
+	}
+
+	/**
+	 * Adds the given summarized nodes to the provenance of the given edge
+	 * @param edge
+	 * @param bits
+	 */
+	private void addProvenance(SandboxEdge edge, BitSet bits){
+		if(bits.isEmpty()){
+			return;
+		}
+		BitSet existing = provenance.get(edge);
+		if(existing == null){
+			provenance.put(edge, (BitSet) bits.clone());
+		} else if(existing != bits){
+			existing.or(bits);
+		}
+	}
+
+	/**
+	 * Sanity check conditionValues 
+	 * @param successorEdges
+	 * @return
+	 * @throws IllegalStateException if conditionValue is not present, null, or if each value is not unique per edge
+	 */
+	private Set<Object> assertConditionValues(SandboxHashSet<SandboxEdge> successorEdges) {
+		Set<Object> conditionValues = new HashSet<>();
+		for (SandboxEdge successorEdge : successorEdges) {
+			Object cv = successorEdge.getAttr(XCSG.conditionValue);
+			if (cv == null) {
+				new IllegalStateException("Expected XCSG.conditionValue on edge: " + successorEdge); //$NON-NLS-1$
+			}
+			boolean added = conditionValues.add(cv);
+			if (!added) {
+				// collision in values is not expected
+				new IllegalStateException("Expected XCSG.conditionValue to be unique across edges, value=" + cv); //$NON-NLS-1$
+			}
+		}
+		return conditionValues;
+	}
+
+	/**
+	 * Using the frontier of the graph adapter, compute the set of implied event nodes.
+	 * @param frontier the frontier adjacency
+	 * @param entry
+	 * @param exit
+	 * @param explicitEvents
+	 * @return The set of event nodes that need to be retained in the final PCG, 
+	 * including implicit, explicit and start/exit nodes.
+	 */
+	private static AtlasSet<Node> getImpliedEvents(Map<Node,AtlasSet<Node>> frontier, Node entry, Node exit, AtlasSet<Node> explicitEvents) {
+		// the implied events are the explicit events and everything reachable
+		// from the explicit events in the frontier
+		AtlasSet<Node> impliedEvents = new AtlasHashSet<Node>();
+		Deque<Node> worklist = new ArrayDeque<Node>();
+		for(Node explicitEvent : explicitEvents){
+			if(impliedEvents.add(explicitEvent)){
+				worklist.add(explicitEvent);
+			}
+		}
+		while(!worklist.isEmpty()){
+			AtlasSet<Node> successors = frontier.get(worklist.remove());
+			if(successors != null){
+				for(Node successor : successors){
+					if(impliedEvents.add(successor)){
+						worklist.add(successor);
+					}
+				}
+			}
+		}
+
+		// add entry and exit nodes as event nodes as well
+		impliedEvents.add(entry);
+		impliedEvents.add(exit);
+
+		return impliedEvents;
+	}
+
+	/**
+	 * Converts a sandboxed frontier to an adjacency map over Atlas nodes
+	 * @param frontier
+	 * @return
+	 */
+	private static Map<Node,AtlasSet<Node>> toFrontierMap(SandboxGraph frontier){
+		Map<String,Node> nodes = new HashMap<String,Node>();
+		Map<Node,AtlasSet<Node>> result = new HashMap<Node,AtlasSet<Node>>();
+		for(SandboxEdge edge : frontier.edges()){
+			Node from = toAtlasNode(edge.from(), nodes);
+			Node to = toAtlasNode(edge.to(), nodes);
+			AtlasSet<Node> successors = result.get(from);
+			if(successors == null){
+				successors = new AtlasHashSet<Node>();
+				result.put(from, successors);
+			}
+			successors.add(to);
+		}
+		return result;
+	}
+
+	private static Node toAtlasNode(SandboxNode node, Map<String,Node> nodes){
+		Node result = nodes.get(node.getAddress());
+		if(result == null){
+			result = CommonQueries.getNodeByAddress(node.getAddress());
+			nodes.put(node.getAddress(), result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a fingerprint of the graph (its nodes, edges and master
+	 * entry/exit) prefixed by its functions used to key the frontier cache
+	 * @param graph
+	 * @return
+	 */
+	private static String getFrontierKey(GraphAdapter graph){
+		AtlasSet<Node> entry = new AtlasHashSet<Node>();
+		entry.add(graph.getEntryNode());
+		AtlasSet<Node> exit = new AtlasHashSet<Node>();
+		exit.add(graph.getExitNode());
+		return PCGCaches.getFunctionKey(graph.getGraph(), PCG.getPCGInstanceID(graph.getGraph(), entry, exit, new AtlasHashSet<Node>()));
+	}
+
+	/**
+	 * Starts the construction time budget (if any) from the current time
+	 */
+	private void startDeadline(){
+		deadline = timeBudget > 0 ? (System.currentTimeMillis() + timeBudget) : 0;
+	}
+
+	/**
+	 * Abandons construction if the monitor was canceled or the construction
+	 * time budget has been exceeded. Nothing has been flushed to the Atlas
+	 * graph at this point, so no partial PCG is left behind.
+	 */
+	private void checkCanceled(){
+		if(monitor != null && monitor.isCanceled()){
+			throw new OperationCanceledException("PCG construction was canceled.");
+		}
+		if(deadline > 0 && System.currentTimeMillis() > deadline){
+			throw new OperationCanceledException("PCG construction exceeded the construction time budget of " 
+					+ timeBudget + "ms.");
+		}
+	}
+
+	/**
+	 * Finds or creates a edge in the PCG between the specified nodes with the conditionValue.
+	 * 
+	 * @param from predecessor
+	 * @param to successor
+	 * @param conditionValue the conditionValue, or null on unconditional edges
+	 * @return the edge
+	 */
+	private SandboxEdge getOrCreatePCGEdge(SandboxNode from, SandboxNode to, Object conditionValue) {
+		return getOrCreatePCGEdge(from,to,conditionValue,false);
+	}	
+
+	/**
+	 * Finds or creates a edge in the PCG between the specified nodes with the conditionValue.
+	 * 
+	 * @param from predecessor
+	 * @param to successor
+	 * @param conditionValue the conditionValue, or null on unconditional edges
+	 * @return the edge
+	 */
+	private SandboxEdge getOrCreatePCGEdge(SandboxNode from, SandboxNode to, Object conditionValue, boolean infeasible) {
+
+		SandboxHashSet<SandboxEdge> edges = pcg.edges(from, NodeDirection.OUT);
+
+		// find match
+		for (SandboxEdge edge : edges) {
+			if (!to.equals(edge.to())) {
+				continue;
+			}
+			boolean hasAttr = edge.hasAttr(XCSG.conditionValue);
+			if (conditionValue == null) {
+				// looking for an edge WITHOUT the attribute
+				if (!hasAttr) {
+					return edge;
+				}
+			} else {
+				// looking for an edge with the same value
+				if (hasAttr) {
+					Object attr = edge.getAttr(XCSG.conditionValue);
+					if (conditionValue.equals(attr)) {
+						return edge;
+					}
+				}
+			}
+		}
+
+		// assert: no match
+
+		// create a new edge
+		SandboxEdge pcgEdge = sandbox.createEdge(from, to);
+		pcgEdge.tag(XCSG.Edge);
+		pcgEdge.tag(tags.getEdgeTag());
+		if (conditionValue != null){
+			pcgEdge.putAttr(XCSG.conditionValue, conditionValue);
+		}
+		
+		if(infeasible) {
+			pcgEdge.tag("INFEASIBLE");
+		}
+
+		pcg.edges().add(pcgEdge);
+		return pcgEdge;
+	}
+
+}
@@ -1,14 +1,24 @@
 package com.ensoftcorp.open.pcg.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
-import com.ensoftcorp.atlas.core.db.graph.Edge;
 import com.ensoftcorp.atlas.core.db.graph.Graph;
-import com.ensoftcorp.atlas.core.db.graph.GraphElement;
-import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
 import com.ensoftcorp.atlas.core.db.graph.Node;
 import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
 import com.ensoftcorp.atlas.core.db.set.AtlasSet;
@@ -16,19 +26,11 @@ import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.query.Query;
 import com.ensoftcorp.atlas.core.script.Common;
 import com.ensoftcorp.atlas.core.xcsg.XCSG;
-import com.ensoftcorp.open.commons.algorithms.DominanceAnalysis;
-import com.ensoftcorp.open.commons.algorithms.LoopIdentification;
 import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitControlFlowGraph;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
 import com.ensoftcorp.open.commons.preferences.CommonsPreferences;
-import com.ensoftcorp.open.commons.sandbox.DefaultFlushProvider;
-import com.ensoftcorp.open.commons.sandbox.Sandbox;
-import com.ensoftcorp.open.commons.sandbox.SandboxEdge;
-import com.ensoftcorp.open.commons.sandbox.SandboxGraph;
-import com.ensoftcorp.open.commons.sandbox.SandboxGraphElement;
-import com.ensoftcorp.open.commons.sandbox.SandboxHashSet;
-import com.ensoftcorp.open.commons.sandbox.SandboxNode;
-import com.ensoftcorp.open.pcg.common.PCG.PCGEdge;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
+import com.ensoftcorp.open.pcg.log.Log;
 import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
 
 /**
@@ -137,9 +139,24 @@ public class PCGFactory {
 	 * @return
 	 */
 	public static PCG create(Q events, boolean labelBackEdges) {
+		return create(events, labelBackEdges, null);
+	}
+
+	/**
+	 * Construct the PCGs corresponding to the given events with the containing
+	 * functions control flow graph. Construction is abandoned with an
+	 * OperationCanceledException if the given monitor is canceled, in which
+	 * case no PCG edges are written to the Atlas graph.
+	 * 
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null), see also DeadlineProgressMonitor
+	 * @return
+	 */
+	public static PCG create(Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		Q functions = CommonQueries.getContainingFunctions(events);
 		Q cfg = CommonQueries.cfg(functions);
-		return create(cfg, events, labelBackEdges);
+		return create(cfg, events, labelBackEdges, monitor);
 	}
 
 	/**
@@ -162,8 +179,22 @@ public class PCGFactory {
 	 * @return
 	 */
 	public static PCG create(Q cfg, Q events, boolean labelBackEdges) {
+		return create(cfg, events, labelBackEdges, null);
+	}
+
+	/**
+	 * Construct the PCGs corresponding to the given events and control flow
+	 * graph, abandoning construction if the given monitor is canceled
+	 * 
+	 * @param cfg
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static PCG create(Q cfg, Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		events = events.intersection(cfg).nodes(XCSG.ControlFlow_Node);
-		return create(cfg, cfg.nodes(XCSG.controlFlowRoot), cfg.nodes(XCSG.controlFlowExitPoint), events, labelBackEdges);
+		return create(cfg, cfg.nodes(XCSG.controlFlowRoot), cfg.nodes(XCSG.controlFlowExitPoint), events, labelBackEdges, monitor);
 	}
 
 	/**
@@ -192,6 +223,24 @@ public class PCGFactory {
 	 * @return
 	 */
 	public static PCG create(Q cfg, Q cfRoots, Q cfExits, Q events, boolean labelBackEdges) {
+		return create(cfg, cfRoots, cfExits, events, labelBackEdges, null);
+	}
+
+	/**
+	 * Construct the PCG for the given CFG, selected CFG roots, and the events
+	 * of interest, abandoning construction if the given monitor is canceled.
+	 * Note that roots, exits, and events must all be contained within the
+	 * given cfg.
+	 * 
+	 * @param cfg
+	 * @param cfRoots
+	 * @param cfExits
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static PCG create(Q cfg, Q cfRoots, Q cfExits, Q events, boolean labelBackEdges, IProgressMonitor monitor) {
 		if(CommonQueries.isEmpty(cfg)){
 			throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
 		}
@@ -259,8 +308,14 @@ public class PCGFactory {
 		//			throw new RuntimeException("Control flow graph has no exits.");
 		//		}
 
+		if(PCGPreferences.getSnapshot().isExceptionalControlFlowPruningEnabled()){
+			cfg = ExceptionalControlFlowPruner.prune(cfg, cfRoots, cfExits, events);
+			checkCanceled(monitor);
+		}
+
 		UniqueEntryExitControlFlowGraph ucfg = new UniqueEntryExitControlFlowGraph(cfg.eval(), cfRoots.eval().nodes(), relaxNonEmptyRootsRequirement, cfExits.eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
-		return create(ucfg, events, labelBackEdges);
+		checkCanceled(monitor);
+		return create(ucfg, events, labelBackEdges, monitor);
 	}
 
 	/**
@@ -285,495 +340,781 @@ public class PCGFactory {
 	 * @return
 	 */
 	public static PCG create(UniqueEntryExitControlFlowGraph ucfg, Q events, boolean labelBackEdges){
+		return create(ucfg, events, labelBackEdges, null);
+	}
+
+	/**
+	 * Constructs a PCG for the given unique entry/exit control flow graph and a
+	 * set of events. Construction is abandoned with an
+	 * OperationCanceledException if the given monitor is canceled (or the
+	 * construction time budget is exceeded) before the PCG is written to the
+	 * Atlas graph, so a canceled construction leaves no partial PCG edges.
+	 * 
+	 * @param ucfg
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static PCG create(UniqueEntryExitControlFlowGraph ucfg, Q events, boolean labelBackEdges, IProgressMonitor monitor){
 		events = events.intersection(Common.toQ(ucfg.getCFG()));
 		//		PCG pcg = null; //PCG.load(ucfg, events.eval().nodes());
 		//		if(pcg != null){
 		//			return pcg;
 		//		} else {
-		// PCG does not exist or could not be found, compute the PCG now
-		return new PCGFactory(ucfg, events.eval().nodes()).createPCG(labelBackEdges);
+		AtlasSet<Node> eventSet = events.eval().nodes();
+		
+		// reuse a recently constructed instance of the same PCG, equivalent
+		// event selections have the same implied events and instance ID
+		AtlasSet<Node> impliedEvents = PCGCompactionEngine.getImpliedEvents(PCGCompactionEngine.adapt(ucfg), eventSet);
+		String instanceID = PCG.getPCGInstanceID(ucfg, impliedEvents);
+		String cacheKey = getCacheKey(ucfg, instanceID, labelBackEdges);
+		PCG result = getCachedPCG(cacheKey, ucfg, eventSet);
+		if(result != null){
+			return result;
+		}
+		
+		// restore the PCG from disk if the function has not changed since it was cached
+		boolean persistent = PCGPreferences.getSnapshot().isPersistentPCGCacheEnabled();
+		if(persistent){
+			result = PersistentPCGCache.restore(ucfg, eventSet, labelBackEdges);
+		}
+		
+		if(result == null){
+			// PCG does not exist or could not be found, compute the PCG now
+			PCGCompactionEngine engine = new PCGCompactionEngine(PCGCompactionEngine.adapt(ucfg), PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, impliedEvents, monitor);
+			Graph atlasPCG = engine.compact(labelBackEdges);
+			result = new PCG(atlasPCG, ucfg, eventSet, instanceID);
+			result.setProvenance(engine.getProvenance());
+			if(persistent){
+				PersistentPCGCache.store(result, ucfg, labelBackEdges);
+			}
+		}
+		PCGCaches.getPCGCache().put(cacheKey, result);
+
+		// save the pcg instance parameters to the master entry node PCG_Instances attribute
+		if(PCGPreferences.getSnapshot().isSerializePCGInstancesEnabled()){
+			PCG.save(result);
+		}
+		return result;
 		//		}
 	}
 
-	// temporary variables for use in factory construction of a pcg
-	private Sandbox sandbox;
-	private SandboxNode masterEntry;
-	private SandboxNode masterExit;
-	private SandboxHashSet<SandboxNode> events;
-
-	private UniqueEntryExitControlFlowGraph atlasUCFG;
-	private AtlasSet<Node> atlasEvents;
-
-	/** Sandbox universe.
-	 *  Initialized to CFG, transformed to the PCG
-	 *  Nodes: ControlFlow_Edge, PCGEdge 
-	 *  Edges: ControlFlow_Node, PCGMasterEntry, PCGMasterExit */
-	private SandboxGraph pcg;
-
-	private static class PCGFlushProvider extends DefaultFlushProvider {
-		/**
-		 * Flushes the changes made or creation of a sandbox graph element to
-		 * the Atlas graph and updates the address map accordingly.
-		 * 
-		 * This implementation differs from the default implementation by
-		 * attempting to re-use PCG edges that already exist between the
-		 * two given nodes if the sandbox created a new edge between the two
-		 * edges.
-		 * 
-		 * @param ge
-		 * @return
-		 */
-		@Override
-		public GraphElement flush(SandboxGraphElement ge, Map<String,SandboxGraphElement> addresses) {
-			if(!ge.isMirror()){
-				if(ge instanceof SandboxNode){
-					Node node = Graph.U.createNode();
-					// add all the sandbox tags
-					for(String tag : ge.tags()){
-						node.tag(tag);
-					}
-					// add all new sandbox attributes
-					for(String key : ge.attr().keySet()){
-						node.putAttr(key, ge.attr().get(key));
-					}
-					addresses.remove(ge.getAddress());
-					ge.flush(node.address().toAddressString());
-					addresses.put(ge.getAddress(), ge);
-					return node;
-				} else if(ge instanceof SandboxEdge){
-					SandboxEdge sandboxEdge = (SandboxEdge) ge;
-					// assert: nodes will all have been flushed by the time we are flushing edges
-					Node from = CommonQueries.getNodeByAddress(sandboxEdge.from().getAddress());
-					Node to = CommonQueries.getNodeByAddress(sandboxEdge.to().getAddress());
-
-					Edge edge = null;
-					if(sandboxEdge.tags().contains(PCGEdge.PCGEdge)){
-						// only create event flow edges between nodes if one does not already exist
-						edge = findPCGEdge(sandboxEdge, from, to);
-						if (edge == null) {
-							edge = Graph.U.createEdge(from, to);
-						}
-					} else {
-						edge = Graph.U.createEdge(from, to);
-					}
-
-					// add all the sandbox tags
-					for(String tag : ge.tags()){
-						edge.tag(tag);
-					}
-					// add all new sandbox attributes
-					for(String key : ge.attr().keySet()){
-						edge.putAttr(key, ge.attr().get(key));
-					}
-					addresses.remove(ge.getAddress());
-					ge.flush(edge.address().toAddressString());
-					addresses.put(ge.getAddress(), ge);
-					return edge;
-				} else {
-					throw new RuntimeException("Unknown sandbox graph element type."); //$NON-NLS-1$
-				}
-			} else {
-				GraphElement age = CommonQueries.getGraphElementByAddress(ge.getAddress());
-
-				// purge all old tags
-				Set<String> tagsToRemove = new HashSet<String>();
-				for(String tag : age.tags()){
-					tagsToRemove.add(tag);
-				}
-				for(String tag : tagsToRemove){
-					age.tags().remove(tag);
-				}
-
-				// add all the sandbox tags
-				for(String tag : ge.tags()){
-					age.tag(tag);
-				}
-
-				// purge all old attributes
-				Set<String> keysToRemove = new HashSet<String>();
-				for(String key : age.attr().keys()){
-					keysToRemove.add(key);
-				}
-				for(String key : keysToRemove){
-					age.attr().remove(key);
-				}
+	/**
+	 * Constructs the PCGs for each of the given event sets within the given
+	 * control flow graph
+	 * 
+	 * @param cfg
+	 * @param eventSets
+	 * @return the PCGs in the order of the given event sets
+	 */
+	public static List<PCG> createMany(Q cfg, List<Q> eventSets){
+		return createMany(cfg, eventSets, false);
+	}
 
-				// add all new sandbox attributes
-				for(String key : ge.attr().keySet()){
-					age.putAttr(key, ge.attr().get(key));
-				}
+	/**
+	 * Constructs the PCGs for each of the given event sets within the given
+	 * control flow graph.
+	 * 
+	 * The control flow graph is pruned (if enabled) for all the events at
+	 * once, and the unique entry/exit control flow graph and its frontier
+	 * are computed once and shared by all the PCGs. Each PCG is compacted in
+	 * its own sandbox, so the compactions run in parallel on up to the
+	 * configured number of worker threads. The results are flushed to the
+	 * Atlas graph one at a time.
+	 * 
+	 * @param cfg
+	 * @param eventSets
+	 * @param labelBackEdges
+	 * @return the PCGs in the order of the given event sets
+	 */
+	public static List<PCG> createMany(Q cfg, List<Q> eventSets, boolean labelBackEdges){
+		return createMany(cfg, eventSets, labelBackEdges, null);
+	}
 
-				return age;
+	/**
+	 * Constructs the PCGs for each of the given event sets within the given
+	 * control flow graph (see createMany), abandoning construction if the
+	 * given monitor is canceled. PCGs are only written to the Atlas graph
+	 * once compacted, so a canceled construction leaves no partial PCG edges.
+	 * 
+	 * @param cfg
+	 * @param eventSets
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return the PCGs in the order of the given event sets
+	 */
+	public static List<PCG> createMany(Q cfg, List<Q> eventSets, boolean labelBackEdges, IProgressMonitor monitor){
+		if(CommonQueries.isEmpty(cfg)){
+			throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
+		}
+		Q cfRoots = cfg.nodes(XCSG.controlFlowRoot);
+		Q cfExits = cfg.nodes(XCSG.controlFlowExitPoint);
+		
+		// the control flow graph is pruned once for all the events, exceptional
+		// control flow that cannot affect the projection onto all the events
+		// cannot affect the projection onto any one of the event sets
+		if(PCGPreferences.getSnapshot().isExceptionalControlFlowPruningEnabled()){
+			Q allEvents = Common.empty();
+			for(Q eventSet : eventSets){
+				allEvents = allEvents.union(eventSet);
 			}
+			cfg = ExceptionalControlFlowPruner.prune(cfg, cfRoots, cfExits, allEvents.intersection(cfg).nodes(XCSG.ControlFlow_Node));
+			checkCanceled(monitor);
 		}
-
-		/** find a compatible PCG Edge with respect to adjacent nodes and XCSG.conditionValue */
-		private Edge findPCGEdge(SandboxEdge sandboxEdge, Node from, Node to) {
-			Q pcgEdges = Query.universe().edges(XCSG.ControlFlow_Edge, PCGEdge.PCGEdge);
-			AtlasSet<Edge> betweenEdges = pcgEdges.betweenStep(Common.toQ(from), Common.toQ(to)).eval().edges();
-			boolean hasAttr = sandboxEdge.hasAttr(XCSG.conditionValue);
-			Object cv = sandboxEdge.getAttr(XCSG.conditionValue);
-			for (Edge be : betweenEdges) {
-				boolean hasAttr2 = be.hasAttr(XCSG.conditionValue);
-				Object cv2 = be.getAttr(XCSG.conditionValue);
-				if (hasAttr==hasAttr2) {
-					if (cv == null && cv==cv2) {
-						return be;
-					} else if (cv.equals(cv2)) {
-						return be;
-					}
+		
+		// see PCGFactory.create for some design choice related to relaxing root/exit requirements
+		boolean relaxNonEmptyRootsRequirement = true;
+		boolean relaxNonEmptyExitsRequirement = true;
+		UniqueEntryExitControlFlowGraph ucfg = new UniqueEntryExitControlFlowGraph(cfg.eval(), cfRoots.intersection(cfg).eval().nodes(), relaxNonEmptyRootsRequirement, cfExits.intersection(cfg).eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
+		Q ucfgCFG = Common.toQ(ucfg.getCFG());
+		
+		// set up the engines sequentially, the first engine computes (and caches) the frontier,
+		// restoring cached results where possible
+		boolean persistent = PCGPreferences.getSnapshot().isPersistentPCGCacheEnabled();
+		PCG[] results = new PCG[eventSets.size()];
+		Map<String,Integer> keys = new HashMap<String,Integer>();
+		Map<Integer,Integer> duplicates = new HashMap<Integer,Integer>();
+		Map<Integer,PCGCompactionEngine> engines = new LinkedHashMap<Integer,PCGCompactionEngine>();
+		List<AtlasSet<Node>> events = new ArrayList<AtlasSet<Node>>();
+		List<String> instanceIDs = new ArrayList<String>();
+		for(int i=0; i<eventSets.size(); i++){
+			checkCanceled(monitor);
+			AtlasSet<Node> eventSet = eventSets.get(i).intersection(ucfgCFG).nodes(XCSG.ControlFlow_Node).eval().nodes();
+			events.add(eventSet);
+			AtlasSet<Node> impliedEvents = PCGCompactionEngine.getImpliedEvents(PCGCompactionEngine.adapt(ucfg), eventSet);
+			instanceIDs.add(PCG.getPCGInstanceID(ucfg, impliedEvents));
+			String cacheKey = getCacheKey(ucfg, instanceIDs.get(i), labelBackEdges);
+			if(keys.containsKey(cacheKey)){
+				duplicates.put(i, keys.get(cacheKey));
+				continue;
+			}
+			keys.put(cacheKey, i);
+			results[i] = getCachedPCG(cacheKey, ucfg, eventSet);
+			if(results[i] == null && persistent){
+				results[i] = PersistentPCGCache.restore(ucfg, eventSet, labelBackEdges);
+				if(results[i] != null){
+					retain(results[i], ucfg, instanceIDs.get(i), labelBackEdges);
 				}
 			}
-			return null;
+			if(results[i] == null){
+				engines.put(i, new PCGCompactionEngine(PCGCompactionEngine.adapt(ucfg), PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, impliedEvents, monitor));
+			}
 		}
+		
+		// compact each PCG in its own sandbox, flushing the results one at a time
+		compactInSandboxes(engines, (i, engine) -> {
+			Graph atlasPCG = engine.flush(labelBackEdges);
+			results[i] = new PCG(atlasPCG, ucfg, events.get(i), instanceIDs.get(i));
+			results[i].setProvenance(engine.getProvenance());
+			if(persistent){
+				PersistentPCGCache.store(results[i], ucfg, labelBackEdges);
+			}
+			retain(results[i], ucfg, instanceIDs.get(i), labelBackEdges);
+		});
+		for(Map.Entry<Integer,Integer> duplicate : duplicates.entrySet()){
+			int i = duplicate.getKey();
+			results[i] = reuse(results[duplicate.getValue()], ucfg, events.get(i));
+		}
+		
+		// structurally identical PCGs share a single interned shape
+		Map<String,PCG> constructed = new LinkedHashMap<String,PCG>();
+		for(int i=0; i<results.length; i++){
+			constructed.put(getCacheKey(ucfg, instanceIDs.get(i), labelBackEdges), results[i]);
+		}
+		intern(constructed);
+		return Arrays.asList(results);
 	}
 
 	/**
-	 * Constructs a PCGFactory
-	 * @param ucfg
+	 * Constructs the PCGs of the normal and the exceptional control flow graph
+	 * of the given function for the same events
+	 * 
+	 * @param function
 	 * @param events
-	 * @param postConditions 
+	 * @param labelBackEdges
+	 * @return
 	 */
-	private PCGFactory(UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events) {
-		// storing references to create result object later
-		this.atlasUCFG = ucfg;
-		this.atlasEvents = events;
-
-		// initialize the sandbox universe
-		this.sandbox = new Sandbox();
-		this.sandbox.setFlushProvider(new PCGFlushProvider());
-
-		// populate sandbox universe
-		// assert: allEvents are a subset of the ucfg
-		this.sandbox.addGraph(ucfg.getGraph());
-		SandboxGraph sucfg = sandbox.graph(ucfg.getGraph()); 
-		this.masterEntry = sandbox.node(ucfg.getEntryNode());
-		this.masterExit = sandbox.node(ucfg.getExitNode());
-
-		// always calculate on demand and in a sandbox because pcg could be
-		// calculated on a subset of the CFG
-		SandboxGraph domFrontier = DominanceAnalysis.computeSandboxedPostDominanceFrontier(sandbox, ucfg);
-		this.events = getImpliedEvents(sandbox, domFrontier, masterEntry, masterExit, sandbox.nodes(events));
-
-		// the pcg starts as the whole cfg with master entry/exit
-		this.pcg = sucfg;
+	public static PCGPair createNormalAndExceptional(Q function, Q events, boolean labelBackEdges){
+		return createNormalAndExceptional(function, events, labelBackEdges, null);
 	}
 
 	/**
-	 * Construct PCG
+	 * Constructs the PCGs of the normal and the exceptional control flow graph
+	 * of the given function for the same events, abandoning construction if
+	 * the given monitor is canceled.
+	 * 
+	 * The exceptional control flow graph is a superset of the normal control
+	 * flow graph. If the exceptional control flow cannot affect the projection
+	 * onto the events (that is the pruned exceptional control flow graph is the
+	 * normal control flow graph) a single PCG is constructed and returned for
+	 * both. Otherwise both PCGs are set up in one pass. The post-dominance
+	 * frontier of the exceptional graph reuses the frontier of the nodes it
+	 * has in common with the normal graph (see PostDominance). The PCGs are
+	 * compacted in parallel in their own sandboxes and flushed to the Atlas
+	 * graph together, the exceptional PCG reusing the PCG edges of the normal
+	 * PCG.
+	 * 
+	 * @param function
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
 	 * @return
 	 */
-	private PCG createPCG(boolean labelBackEdges){
-		// retain a set of consumed nodes that are to be removed from the graph after the loop
-		SandboxHashSet<SandboxNode> nodesToRemove = sandbox.emptyNodeSet();
-		for(SandboxNode node : pcg.nodes()) {
-			if(!events.contains(node)){
-				consumeNode(node);
-				nodesToRemove.add(node);
-			}
+	public static PCGPair createNormalAndExceptional(Q function, Q events, boolean labelBackEdges, IProgressMonitor monitor){
+		Q cfg = CommonQueries.cfg(function);
+		Q excfg = CommonQueries.excfg(function);
+		if(CommonQueries.isEmpty(cfg)){
+			throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
 		}
-
-		// remove the consumed nodes in the previous loop
-		pcg.nodes().removeAll(nodesToRemove);
-
-		// create a copy of all the edges that only refer to nodes which are tagged as pcg nodes
-		SandboxHashSet<SandboxEdge> pcgEdgeSet = new SandboxHashSet<SandboxEdge>(sandbox.getInstanceID());
-		for (SandboxEdge edge : pcg.edges()) {
-			if (pcg.nodes().contains(edge.from()) && pcg.nodes().contains(edge.to())) {
-				pcgEdgeSet.add(edge);
-			}
+		events = events.intersection(excfg).nodes(XCSG.ControlFlow_Node);
+		Q exRoots = excfg.nodes(XCSG.controlFlowRoot);
+		Q exExits = excfg.nodes(XCSG.controlFlowExitPoint);
+		if(PCGPreferences.getSnapshot().isExceptionalControlFlowPruningEnabled()){
+			excfg = ExceptionalControlFlowPruner.prune(excfg, exRoots, exExits, events);
+			checkCanceled(monitor);
 		}
-		pcg.edges().clear();
-		pcg.edges().addAll(pcgEdgeSet);
-
-		// tag the entry and exit nodes
-		masterEntry.tag(PCG.PCGNode.PCGMasterEntry);
-		masterExit.tag(PCG.PCGNode.PCGMasterExit);
-
-		// tag each edge as an event flow edge
-		// this gets an edges from the master entry to the roots
-		// and from the exits to the master exit
-		for(SandboxEdge edge : pcg.edges()){
-			edge.tag(PCG.PCGEdge.PCGEdge);
+		
+		// the exceptional control flow does not affect the projection
+		Q normalEvents = events.intersection(cfg);
+		Graph normalGraph = cfg.eval();
+		Graph exceptionalGraph = excfg.eval();
+		if(normalGraph.nodes().size() == exceptionalGraph.nodes().size() 
+				&& normalGraph.edges().size() == exceptionalGraph.edges().size()
+				&& CommonQueries.isEmpty(excfg.difference(cfg))
+				&& normalEvents.eval().nodes().size() == events.eval().nodes().size()){
+			PCG pcg = create(cfg, normalEvents, labelBackEdges, monitor);
+			return new PCGPair(pcg, pcg);
 		}
-
-		// flush the result and construct the PCG object
-		Graph atlasPCG = sandbox.flush(pcg);
-		PCG result = new PCG(atlasPCG, atlasUCFG, atlasEvents);
-
-		if(labelBackEdges){
-			Node masterEntry = Common.toQ(atlasPCG).nodes(PCG.PCGNode.PCGMasterEntry).eval().nodes().one();
-			labelBackEdges(atlasPCG, masterEntry);
+		
+		// see PCGFactory.create for some design choice related to relaxing root/exit requirements
+		boolean relaxNonEmptyRootsRequirement = true;
+		boolean relaxNonEmptyExitsRequirement = true;
+		List<UniqueEntryExitControlFlowGraph> ucfgs = new ArrayList<UniqueEntryExitControlFlowGraph>();
+		ucfgs.add(new UniqueEntryExitControlFlowGraph(normalGraph, cfg.nodes(XCSG.controlFlowRoot).eval().nodes(), relaxNonEmptyRootsRequirement, cfg.nodes(XCSG.controlFlowExitPoint).eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled()));
+		ucfgs.add(new UniqueEntryExitControlFlowGraph(exceptionalGraph, exRoots.intersection(excfg).eval().nodes(), relaxNonEmptyRootsRequirement, exExits.intersection(excfg).eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled()));
+		
+		// compute the frontiers of both graphs, the frontier of the exceptional
+		// graph shares the work for the part it has in common with the normal graph
+		List<PCGCompactionEngine.FrontierGraphAdapter> graphs = new ArrayList<PCGCompactionEngine.FrontierGraphAdapter>();
+		for(UniqueEntryExitControlFlowGraph ucfg : ucfgs){
+			graphs.add(PCGCompactionEngine.adapt(ucfg));
 		}
-
-		// save the pcg instance parameters to the master entry node PCG_Instances attribute
-		if(PCGPreferences.isSerializePCGInstancesEnabled()){
-			PCG.save(result);
+		List<Map<Node,AtlasSet<Node>>> frontiers = new ArrayList<Map<Node,AtlasSet<Node>>>();
+		frontiers.add(PCGCompactionEngine.getCachedFrontier(graphs.get(0)));
+		frontiers.add(PCGCompactionEngine.getCachedFrontier(graphs.get(1)));
+		if(frontiers.get(1) == null){
+			PostDominance normalPostDominance = PostDominance.compute(graphs.get(0));
+			checkCanceled(monitor);
+			if(frontiers.get(0) == null){
+				frontiers.set(0, normalPostDominance.getFrontier());
+				PCGCompactionEngine.cacheFrontier(graphs.get(0), frontiers.get(0));
+			}
+			frontiers.set(1, normalPostDominance.extend(graphs.get(1)).getFrontier());
+			PCGCompactionEngine.cacheFrontier(graphs.get(1), frontiers.get(1));
+		} else if(frontiers.get(0) == null){
+			frontiers.set(0, PostDominance.compute(graphs.get(0)).getFrontier());
+			PCGCompactionEngine.cacheFrontier(graphs.get(0), frontiers.get(0));
 		}
-
-		return result;
+		
+		// set up both PCGs, restoring cached results where possible
+		boolean persistent = PCGPreferences.getSnapshot().isPersistentPCGCacheEnabled();
+		PCG[] results = new PCG[ucfgs.size()];
+		Map<Integer,PCGCompactionEngine> engines = new LinkedHashMap<Integer,PCGCompactionEngine>();
+		List<AtlasSet<Node>> eventSets = new ArrayList<AtlasSet<Node>>();
+		List<String> instanceIDs = new ArrayList<String>();
+		for(int i=0; i<ucfgs.size(); i++){
+			checkCanceled(monitor);
+			UniqueEntryExitControlFlowGraph ucfg = ucfgs.get(i);
+			AtlasSet<Node> eventSet = events.intersection(Common.toQ(ucfg.getCFG())).eval().nodes();
+			eventSets.add(eventSet);
+			AtlasSet<Node> impliedEvents = PCGCompactionEngine.getImpliedEvents(frontiers.get(i), graphs.get(i), eventSet);
+			instanceIDs.add(PCG.getPCGInstanceID(ucfg, impliedEvents));
+			results[i] = getCachedPCG(getCacheKey(ucfg, instanceIDs.get(i), labelBackEdges), ucfg, eventSet);
+			if(results[i] == null && persistent){
+				results[i] = PersistentPCGCache.restore(ucfg, eventSet, labelBackEdges);
+				if(results[i] != null){
+					cache(results[i], ucfg, instanceIDs.get(i), labelBackEdges);
+				}
+			}
+			if(results[i] == null){
+				engines.put(i, new PCGCompactionEngine(graphs.get(i), PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, impliedEvents, monitor));
+			}
+		}
+		
+		// compact the PCGs in their own sandboxes and flush them together, the
+		// normal PCG first so that the exceptional PCG reuses the PCG edges of
+		// the common part (see PCGCompactionEngine.PCGFlushProvider)
+		compactInSandboxes(engines, (i, engine) -> {});
+		for(Map.Entry<Integer,PCGCompactionEngine> entry : engines.entrySet()){
+			int i = entry.getKey();
+			UniqueEntryExitControlFlowGraph ucfg = ucfgs.get(i);
+			Graph atlasPCG = entry.getValue().flush(labelBackEdges);
+			results[i] = new PCG(atlasPCG, ucfg, eventSets.get(i), instanceIDs.get(i));
+			results[i].setProvenance(entry.getValue().getProvenance());
+			if(persistent){
+				PersistentPCGCache.store(results[i], ucfg, labelBackEdges);
+			}
+			cache(results[i], ucfg, instanceIDs.get(i), labelBackEdges);
+		}
+		return new PCGPair(results[0], results[1]);
 	}
 
 	/**
-	 * Consumes the given non-event node bypassing it through connecting its
-	 * predecessors with successors. New edges are PCG edges and summarize
-	 * conditionValues, but do not retain other tags or attributes from the
-	 * elided subgraph.
+	 * Constructs a PCG for the given events in each of their containing
+	 * functions (see createPerFunction)
 	 * 
-	 * @param node non-event node to be removed from the final PCG
+	 * @param events
+	 * @param exceptionalControlFlow true to construct the PCGs of the exceptional control flow graphs
+	 * @param labelBackEdges
+	 * @return the PCG of each containing function
 	 */
-	private void consumeNode(SandboxNode node) {
-		// this function will consume the given node by bypassing it through
-		// connecting its predecessors with successors while preserving edge's
-		// conditional values
+	public static Map<Node,PCG> createPerFunction(Q events, boolean exceptionalControlFlow, boolean labelBackEdges){
+		return createPerFunction(events, exceptionalControlFlow, labelBackEdges, null, null);
+	}
 
-		// first: get the predecessors for the node
-		SandboxHashSet<SandboxEdge> inEdges = pcg.edges(node, NodeDirection.IN);
-		Set<SandboxEdge> predecessorEdges = new HashSet<>(); 
-		for(SandboxEdge inEdge : inEdges) {
-			SandboxNode predecessor = inEdge.from();
-			if (node.equals(predecessor)) {
-				// skip the case where the node has a self-loop. This will cause infinite recursion
-				continue;
+	/**
+	 * Constructs a PCG for the given events in each of their containing
+	 * functions, abandoning construction if the given monitor is canceled.
+	 * 
+	 * The PCGs of different functions are independent, so each PCG is
+	 * compacted in its own sandbox in parallel on up to the configured number
+	 * of worker threads. Each PCG is flushed to the Atlas graph as soon as its
+	 * compaction completes and the given listener is notified (on the calling
+	 * thread), so callers can make use of the completed PCGs before the
+	 * remaining PCGs are constructed. Cached PCGs are reported first.
+	 * 
+	 * @param events
+	 * @param exceptionalControlFlow true to construct the PCGs of the exceptional control flow graphs
+	 * @param labelBackEdges
+	 * @param listener notified of each function's PCG as it completes (may be null)
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return the PCG of each containing function
+	 */
+	public static Map<Node,PCG> createPerFunction(Q events, boolean exceptionalControlFlow, boolean labelBackEdges, BiConsumer<Node,PCG> listener, IProgressMonitor monitor){
+		events = events.nodes(XCSG.ControlFlow_Node);
+		boolean persistent = PCGPreferences.getSnapshot().isPersistentPCGCacheEnabled();
+		Map<Node,PCG> results = new LinkedHashMap<Node,PCG>();
+		Map<Node,UniqueEntryExitControlFlowGraph> ucfgs = new HashMap<Node,UniqueEntryExitControlFlowGraph>();
+		Map<Node,AtlasSet<Node>> eventSets = new HashMap<Node,AtlasSet<Node>>();
+		Map<Node,String> instanceIDs = new HashMap<Node,String>();
+		Map<Node,PCGCompactionEngine> engines = new LinkedHashMap<Node,PCGCompactionEngine>();
+		
+		// set up the engines sequentially, restoring cached results where possible
+		for(Node function : CommonQueries.getContainingFunctions(events).eval().nodes()){
+			checkCanceled(monitor);
+			Q cfg = exceptionalControlFlow ? CommonQueries.excfg(Common.toQ(function)) : CommonQueries.cfg(Common.toQ(function));
+			if(CommonQueries.isEmpty(cfg)){
+				throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
+			}
+			Q functionEvents = events.intersection(cfg);
+			Q cfRoots = cfg.nodes(XCSG.controlFlowRoot);
+			Q cfExits = cfg.nodes(XCSG.controlFlowExitPoint);
+			if(exceptionalControlFlow && PCGPreferences.getSnapshot().isExceptionalControlFlowPruningEnabled()){
+				cfg = ExceptionalControlFlowPruner.prune(cfg, cfRoots, cfExits, functionEvents);
+			}
+			
+			// see PCGFactory.create for some design choice related to relaxing root/exit requirements
+			boolean relaxNonEmptyRootsRequirement = true;
+			boolean relaxNonEmptyExitsRequirement = true;
+			UniqueEntryExitControlFlowGraph ucfg = new UniqueEntryExitControlFlowGraph(cfg.eval(), cfRoots.intersection(cfg).eval().nodes(), relaxNonEmptyRootsRequirement, cfExits.intersection(cfg).eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
+			AtlasSet<Node> eventSet = functionEvents.intersection(Common.toQ(ucfg.getCFG())).eval().nodes();
+			AtlasSet<Node> impliedEvents = PCGCompactionEngine.getImpliedEvents(PCGCompactionEngine.adapt(ucfg), eventSet);
+			String instanceID = PCG.getPCGInstanceID(ucfg, impliedEvents);
+			ucfgs.put(function, ucfg);
+			eventSets.put(function, eventSet);
+			instanceIDs.put(function, instanceID);
+			
+			PCG result = getCachedPCG(getCacheKey(ucfg, instanceID, labelBackEdges), ucfg, eventSet);
+			if(result == null && persistent){
+				result = PersistentPCGCache.restore(ucfg, eventSet, labelBackEdges);
+				if(result != null){
+					retain(result, ucfg, instanceID, labelBackEdges);
+				}
+			}
+			if(result != null){
+				results.put(function, result);
+				if(listener != null){
+					listener.accept(function, result);
+				}
+			} else {
+				engines.put(function, new PCGCompactionEngine(PCGCompactionEngine.adapt(ucfg), PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, impliedEvents, monitor));
 			}
-			predecessorEdges.add(inEdge);
 		}
-
-		// second: get the successors for the node
-		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
-		Set<SandboxNode> successors = new HashSet<>(); 
-		for(SandboxEdge outEdge : outEdges) {
-			SandboxNode successor = outEdge.to();
-			if (node.equals(successor)) {
-				// skip the case where the node has a self-loop. This will cause infinite recursion
-				continue;
+		
+		// compact each PCG in its own sandbox, flushing the results one at a time
+		compactInSandboxes(engines, (function, engine) -> {
+			UniqueEntryExitControlFlowGraph ucfg = ucfgs.get(function);
+			Graph atlasPCG = engine.flush(labelBackEdges);
+			PCG result = new PCG(atlasPCG, ucfg, eventSets.get(function), instanceIDs.get(function));
+			result.setProvenance(engine.getProvenance());
+			if(persistent){
+				PersistentPCGCache.store(result, ucfg, labelBackEdges);
+			}
+			retain(result, ucfg, instanceIDs.get(function), labelBackEdges);
+			results.put(function, result);
+			if(listener != null){
+				listener.accept(function, result);
 			}
-			successors.add(successor);
+		});
+		
+		// structurally identical PCGs share a single interned shape
+		Map<String,PCG> constructed = new LinkedHashMap<String,PCG>();
+		for(Map.Entry<Node,PCG> entry : results.entrySet()){
+			constructed.put(getCacheKey(ucfgs.get(entry.getKey()), instanceIDs.get(entry.getKey()), labelBackEdges), entry.getValue());
 		}
+		intern(constructed);
+		return results;
+	}
 
-		// add PCG edges
-		for(SandboxEdge inEdge : predecessorEdges) {
-			connectToSuccessors(inEdge, successors);
+	/**
+	 * Interns the PCGs of a bulk construction under their PCG cache keys (see
+	 * PCGCaches.getPCGInterner), so structurally identical PCGs share a single
+	 * shape and only retain their own node mapping, and logs the number of
+	 * unique shapes found and the size of the PCG store
+	 * @param pcgs the constructed PCGs by PCG cache key
+	 */
+	private static void intern(Map<String,PCG> pcgs){
+		if(pcgs.isEmpty()){
+			return;
 		}
+		PCGInterner interner = PCGCaches.getPCGInterner();
+		Set<PCGInterner.Shape> shapes = new HashSet<PCGInterner.Shape>();
+		for(Map.Entry<String,PCG> entry : pcgs.entrySet()){
+			shapes.add(interner.intern(entry.getKey(), entry.getValue()).getShape());
+		}
+		Log.info("Constructed " + pcgs.size() + " PCGs with " + shapes.size() + " unique shapes (" + interner.getUniqueShapeCount() 
+				+ " unique shapes of " + interner.size() + " retained PCGs in total)");
+		Log.info(PCGCaches.getPCGStore().toString());
+	}
 
-		// remove original inEdges for the node
-		pcg.edges().removeAll(inEdges);
+	/**
+	 * Retains the given PCG of a bulk construction compactly in the PCG store
+	 * (see PCGCaches.getPCGStore) and saves the instance parameters if
+	 * enabled. PCGs with edge provenance are added to the PCG cache instead,
+	 * the store does not retain provenance.
+	 */
+	private static void retain(PCG pcg, UniqueEntryExitControlFlowGraph ucfg, String instanceID, boolean labelBackEdges){
+		if(pcg.getProvenance() != null){
+			cache(pcg, ucfg, instanceID, labelBackEdges);
+			return;
+		}
+		PCGCaches.getPCGStore().add(getCacheKey(ucfg, instanceID, labelBackEdges), pcg);
+		if(PCGPreferences.getSnapshot().isSerializePCGInstancesEnabled()){
+			PCG.save(pcg);
+		}
+	}
 
-		// remove original outEdges for the node
-		pcg.edges().removeAll(outEdges);
+	/**
+	 * Adds the given PCG to the PCG cache and saves the instance parameters
+	 * if enabled
+	 */
+	private static void cache(PCG pcg, UniqueEntryExitControlFlowGraph ucfg, String instanceID, boolean labelBackEdges){
+		PCGCaches.getPCGCache().put(getCacheKey(ucfg, instanceID, labelBackEdges), pcg);
+		if(PCGPreferences.getSnapshot().isSerializePCGInstancesEnabled()){
+			PCG.save(pcg);
+		}
 	}
 
 	/**
-	 * Connect inEdge.from() to all successors, consolidating duplicate edges as needed.
+	 * Constructs the PCG for the given events (a subset of the events of the
+	 * given finer PCG) by compacting the finer PCG instead of the CFG.
 	 * 
-	 * For example, when both true and false edges reach the same successor, they are combined
-	 * into a single edge.
+	 * Projection is transitive, so if the implied events of the given events
+	 * are all nodes of the finer PCG, compacting the finer PCG yields the same
+	 * PCG as compacting the CFG. Otherwise the PCG is constructed from the CFG.
 	 * 
-	 * @param inEdge
-	 * @param successors
+	 * @param finer
+	 * @param events
+	 * @param labelBackEdges
+	 * @return
 	 */
-	private void connectToSuccessors(SandboxEdge inEdge, Set<SandboxNode> successors) {
-		boolean infeasible = false;
-		if(inEdge.taggedWith("INFEASIBLE")) {
-			infeasible = true;
-		}
-		SandboxNode predecessor = inEdge.from();
-		for (SandboxNode successor : successors) {
-			this.getOrCreatePCGEdge(predecessor, successor, inEdge.getAttr(XCSG.conditionValue), infeasible);
-		}
-		// merge (boolean) edges
-		this.mergeEdges(predecessor);
+	public static PCG createFromFinerPCG(final PCG finer, Q events, boolean labelBackEdges){
+		return createFromFinerPCG(finer, events, labelBackEdges, null);
 	}
 
 	/**
-	 * Merge conditional edges.
+	 * Constructs the PCG for the given events from the given finer PCG (see
+	 * createFromFinerPCG), abandoning construction if the given monitor is
+	 * canceled
 	 * 
-	 * For 'if' and 'loop' conditions, the boolean successor edges
-	 * are merged when both 'true' and 'false' are present.
-	 * @param node
+	 * @param finer
+	 * @param events
+	 * @param labelBackEdges
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
 	 */
-	private void mergeEdges(SandboxNode node){
-		SandboxHashSet<SandboxEdge> outEdges = pcg.edges(node, NodeDirection.OUT);
-		if (outEdges.size() < 2){
-			return;
+	public static PCG createFromFinerPCG(final PCG finer, Q events, boolean labelBackEdges, IProgressMonitor monitor){
+		// see PCGFactory.create for some design choice related to relaxing root/exit requirements
+		boolean relaxNonEmptyRootsRequirement = true;
+		boolean relaxNonEmptyExitsRequirement = true;
+		UniqueEntryExitControlFlowGraph ucfg = new UniqueEntryExitControlFlowGraph(finer.getCFG().eval(), finer.getRoots().eval().nodes(), relaxNonEmptyRootsRequirement, finer.getExits().eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
+		AtlasSet<Node> eventSet = events.intersection(Common.toQ(ucfg.getCFG())).eval().nodes();
+		
+		AtlasSet<Node> impliedEvents = PCGCompactionEngine.getImpliedEvents(PCGCompactionEngine.adapt(ucfg), eventSet);
+		String instanceID = PCG.getPCGInstanceID(ucfg, impliedEvents);
+		String cacheKey = getCacheKey(ucfg, instanceID, labelBackEdges);
+		PCG result = getCachedPCG(cacheKey, ucfg, eventSet);
+		if(result != null){
+			return result;
+		}
+		
+		// restore the PCG from disk if the function has not changed since it was cached
+		boolean persistent = PCGPreferences.getSnapshot().isPersistentPCGCacheEnabled();
+		if(persistent){
+			result = PersistentPCGCache.restore(ucfg, eventSet, labelBackEdges);
+			if(result != null){
+				cache(result, ucfg, instanceID, labelBackEdges);
+				return result;
+			}
+		}
+		
+		// edge provenance refers to the nodes of the compacted graph, so it is
+		// only recorded when compacting the CFG
+		if(PCGPreferences.getSnapshot().isEdgeProvenanceEnabled()){
+			return create(ucfg, Common.toQ(eventSet), labelBackEdges, monitor);
+		}
+		
+		// the implied events must be retained by the finer PCG
+		final Graph finerPCG = finer.getPCG().eval();
+		for(Node impliedEvent : impliedEvents){
+			if(!finerPCG.nodes().contains(impliedEvent)){
+				return create(ucfg, Common.toQ(eventSet), labelBackEdges, monitor);
+			}
 		}
+		
+		PCGCompactionEngine.GraphAdapter finerPCGAdapter = new PCGCompactionEngine.GraphAdapter(){
+			@Override
+			public Graph getGraph() {
+				return finerPCG;
+			}
 
-		// group out edges by successor
-		HashMap<SandboxNode, SandboxHashSet<SandboxEdge>> nodeEdgeMap = new HashMap<>();
-		for (SandboxEdge outEdge : outEdges) {
-			SandboxNode successor = outEdge.to();
-			SandboxHashSet<SandboxEdge> edges = sandbox.emptyEdgeSet();
-			if (nodeEdgeMap.containsKey(successor)) {
-				edges = nodeEdgeMap.get(successor);
+			@Override
+			public Node getEntryNode() {
+				return finer.getMasterEntry();
 			}
-			edges.add(outEdge);
-			nodeEdgeMap.put(successor, edges);
-		}
-
-		for (SandboxNode successor : nodeEdgeMap.keySet()) {
-			SandboxHashSet<SandboxEdge> successorEdges = nodeEdgeMap.get(successor);
-			// successors with in degree > 1 
-			if (successorEdges.size() > 1){
-				if (node.taggedWith(XCSG.ControlFlowIfCondition) || node.taggedWith(XCSG.ControlFlowLoopCondition)) {
-					/* NOTE: because nodes are consumed in no particular order, it is possible to
-					 * encounter a merge of an unconditional edge with true or false edge, indicating
-					 * that the paths are partially merged already.
-					 * 
-					 * This should imply that the successor is not an event, and all paths to it will be merged
-					 * eventually.
-					 * 
-					 * This also means that the merged edge should not be removed along with the others,
-					 * in the case that two unconditional edges are being merged.  This can happen as a result of 
-					 * merging deeply nested branches (depth 3 is sufficient). 
-					 */
-
-					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
-					assertConditionValues(successorEdges);
-					SandboxEdge mergedEdge = this.getOrCreatePCGEdge(node, successor, null);
-
-					// remove the edges which have been replaced (but not the one representing the merged paths) 
-					successorEdges.remove(mergedEdge);
-					pcg.edges().removeAll(successorEdges);
-				} else if (node.taggedWith(XCSG.ControlFlowSwitchCondition)) {
-					// assert: duplicate values of XCSG.conditionValue should be impossible because of getOrCreate
-					assertConditionValues(successorEdges);
-					// unlike the boolean edges, do not merge
-				} else {
-					// unexpected case...
-					// one case that could end up here is (case 45934)
-					// the previous node.taggedWith(XCSG.ControlFlowSwitchCondition) is not strong
-					// enough to catch statements between switch conditions and case statements
-					//    switch (expr) {
-					//    //  <trouble>
-					//    // i has automatic storage, but the initialization is dead, as is the call to f()
-					//    int i = 4;
-					//    f(i);
-					//        //  </trouble>
-					//    case 0:
-					//        i = 17;
-					//        /* no break */
-					//    default:
-					//        printf("%d\n", i);
-					//    }
-					throw new RuntimeException("Unhandled case for merging duplicate edges at node: " + node); //$NON-NLS-1$
-				}
+
+			@Override
+			public Node getExitNode() {
+				return finer.getMasterExit();
 			}
+		};
+		
+		// the implied events were computed from the frontier of the CFG, so
+		// the finer PCG is compacted without a frontier of its own
+		Graph atlasPCG = new PCGCompactionEngine(finerPCGAdapter, PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, impliedEvents, monitor).compact(labelBackEdges);
+		result = new PCG(atlasPCG, ucfg, eventSet, instanceID);
+		if(persistent){
+			PersistentPCGCache.store(result, ucfg, labelBackEdges);
 		}
+		cache(result, ucfg, instanceID, labelBackEdges);
+		return result;
 	}
 
 	/**
-	 * Sanity check conditionValues 
-	 * @param successorEdges
-	 * @return
-	 * @throws IllegalStateException if conditionValue is not present, null, or if each value is not unique per edge
-	 */
-	private Set<Object> assertConditionValues(SandboxHashSet<SandboxEdge> successorEdges) {
-		Set<Object> conditionValues = new HashSet<>();
-		for (SandboxEdge successorEdge : successorEdges) {
-			Object cv = successorEdge.getAttr(XCSG.conditionValue);
-			if (cv == null) {
-				new IllegalStateException("Expected XCSG.conditionValue on edge: " + successorEdge); //$NON-NLS-1$
+	 * Compacts each of the given engines in its own sandbox, in parallel on up
+	 * to the configured number of worker threads. The given callback is
+	 * invoked on the calling thread for each engine as its compaction
+	 * completes, so results can be flushed to the Atlas graph (one at a time)
+	 * while the remaining engines are still compacting.
+	 * @param engines
+	 * @param compacted
+	 */
+	private static <K> void compactInSandboxes(Map<K,PCGCompactionEngine> engines, BiConsumer<K,PCGCompactionEngine> compacted){
+		int threads = Math.min(PCGPreferences.getSnapshot().getWorkerThreads(), engines.size());
+		if(threads <= 1){
+			for(Map.Entry<K,PCGCompactionEngine> entry : engines.entrySet()){
+				entry.getValue().compactInSandbox();
+				compacted.accept(entry.getKey(), entry.getValue());
 			}
-			boolean added = conditionValues.add(cv);
-			if (!added) {
-				// collision in values is not expected
-				new IllegalStateException("Expected XCSG.conditionValue to be unique across edges, value=" + cv); //$NON-NLS-1$
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				CompletionService<Map.Entry<K,PCGCompactionEngine>> completion = new ExecutorCompletionService<Map.Entry<K,PCGCompactionEngine>>(executor);
+				for(Map.Entry<K,PCGCompactionEngine> entry : engines.entrySet()){
+					completion.submit(() -> {
+						entry.getValue().compactInSandbox();
+						return entry;
+					});
+				}
+				for(int i=0; i<engines.size(); i++){
+					Map.Entry<K,PCGCompactionEngine> entry = completion.take().get();
+					compacted.accept(entry.getKey(), entry.getValue());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("PCG construction was interrupted.", e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException){
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			} finally {
+				executor.shutdownNow();
 			}
 		}
-		return conditionValues;
+	}
+
+	private static String getCacheKey(UniqueEntryExitControlFlowGraph ucfg, String instanceID, boolean labelBackEdges){
+		return PCGCaches.getFunctionKey(ucfg.getCFG(), instanceID + (labelBackEdges ? "-labeled" : ""));
 	}
 
 	/**
-	 * Using dominance frontier, compute the set of implied event nodes.
-	 * @param domFrontier 
+	 * Returns the cached PCG with the given cache key for the given events or
+	 * null if there is no cached PCG. PCGs retained in the PCG store are
+	 * materialized and added to the PCG cache.
+	 * @param cacheKey
 	 * @param ucfg
-	 * @return The set of event nodes that need to be retained in the final PCG, 
-	 * including implicit, explicit and start/exit nodes.
+	 * @param events
+	 * @return
 	 */
-	private SandboxHashSet<SandboxNode> getImpliedEvents(Sandbox sandbox, SandboxGraph domFrontier, SandboxNode ucfgEntry, SandboxNode ucfgExit, SandboxHashSet<SandboxNode> explicitEvents) {
-		// get the dominance frontier within the function
-		SandboxHashSet<SandboxNode> impliedEvents = new SandboxHashSet<SandboxNode>(sandbox);
-		impliedEvents.addAll(explicitEvents);
-		impliedEvents.addAll(domFrontier.forward(explicitEvents).nodes());
-
-		// add entry and exit nodes as event nodes as well
-		impliedEvents.add(ucfgEntry);
-		impliedEvents.add(ucfgExit);
+	private static PCG getCachedPCG(String cacheKey, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		PCG cached = PCGCaches.getPCGCache().get(cacheKey);
+		if(cached == null){
+			cached = PCGCaches.getPCGStore().get(cacheKey);
+			if(cached != null){
+				PCGCaches.getPCGCache().put(cacheKey, cached);
+			}
+		}
+		return cached == null ? null : reuse(cached, ucfg, events);
+	}
 
-		return impliedEvents;
+	/**
+	 * Returns the given PCG for the given events, which must imply the same
+	 * events as the events the PCG was constructed for. If the events differ
+	 * the PCG graph is shared with a new PCG instance that reports the given
+	 * events as its explicit events.
+	 * @param pcg
+	 * @param ucfg
+	 * @param events
+	 * @return
+	 */
+	private static PCG reuse(PCG pcg, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		AtlasSet<Node> pcgEvents = pcg.getEvents().eval().nodes();
+		boolean sameEvents = pcgEvents.size() == events.size();
+		for(Node event : events){
+			if(!sameEvents){
+				break;
+			}
+			sameEvents = pcgEvents.contains(event);
+		}
+		if(sameEvents){
+			return pcg;
+		}
+		PCGCaches.recordEquivalentSelectionHit();
+		PCG result = new PCG(pcg.getPCG().eval(), ucfg, events, pcg.getInstanceID());
+		result.setProvenance(pcg.getProvenance());
+		return result;
 	}
 
 	/**
-	 * Finds or creates a edge in the PCG between the specified nodes with the conditionValue.
+	 * Constructs an ephemeral PCG corresponding to the given events with the
+	 * containing functions control flow graph. Nothing is written to the Atlas
+	 * graph (see EphemeralPCG).
 	 * 
-	 * @param from predecessor
-	 * @param to successor
-	 * @param conditionValue the conditionValue, or null on unconditional edges
-	 * @return the edge
+	 * @param events
+	 * @return
 	 */
-	private SandboxEdge getOrCreatePCGEdge(SandboxNode from, SandboxNode to, Object conditionValue) {
-		return getOrCreatePCGEdge(from,to,conditionValue,false);
-	}	
+	public static EphemeralPCG createEphemeral(Q events) {
+		return createEphemeral(events, (IProgressMonitor) null);
+	}
 
 	/**
-	 * Finds or creates a edge in the PCG between the specified nodes with the conditionValue.
+	 * Constructs an ephemeral PCG corresponding to the given events with the
+	 * containing functions control flow graph, abandoning construction if the
+	 * given monitor is canceled
 	 * 
-	 * @param from predecessor
-	 * @param to successor
-	 * @param conditionValue the conditionValue, or null on unconditional edges
-	 * @return the edge
+	 * @param events
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
 	 */
-	private SandboxEdge getOrCreatePCGEdge(SandboxNode from, SandboxNode to, Object conditionValue, boolean infeasible) {
-
-		SandboxHashSet<SandboxEdge> edges = pcg.edges(from, NodeDirection.OUT);
-
-		// find match
-		for (SandboxEdge edge : edges) {
-			if (!to.equals(edge.to())) {
-				continue;
-			}
-			boolean hasAttr = edge.hasAttr(XCSG.conditionValue);
-			if (conditionValue == null) {
-				// looking for an edge WITHOUT the attribute
-				if (!hasAttr) {
-					return edge;
-				}
-			} else {
-				// looking for an edge with the same value
-				if (hasAttr) {
-					Object attr = edge.getAttr(XCSG.conditionValue);
-					if (conditionValue.equals(attr)) {
-						return edge;
-					}
-				}
-			}
-		}
+	public static EphemeralPCG createEphemeral(Q events, IProgressMonitor monitor) {
+		Q functions = CommonQueries.getContainingFunctions(events);
+		Q cfg = CommonQueries.cfg(functions);
+		events = events.intersection(cfg).nodes(XCSG.ControlFlow_Node);
+		return createEphemeral(cfg, cfg.nodes(XCSG.controlFlowRoot), cfg.nodes(XCSG.controlFlowExitPoint), events, monitor);
+	}
 
-		// assert: no match
+	/**
+	 * Constructs an ephemeral PCG for the given CFG, selected CFG roots, and
+	 * the events of interest. Note that roots, exits, and events must all be
+	 * contained within the given cfg.
+	 * 
+	 * @param cfg
+	 * @param cfRoots
+	 * @param cfExits
+	 * @param events
+	 * @return
+	 */
+	public static EphemeralPCG createEphemeral(Q cfg, Q cfRoots, Q cfExits, Q events) {
+		return createEphemeral(cfg, cfRoots, cfExits, events, null);
+	}
 
-		// create a new edge
-		SandboxEdge pcgEdge = sandbox.createEdge(from, to);
-		pcgEdge.tag(XCSG.Edge);
-		pcgEdge.tag(PCGEdge.PCGEdge);
-		if (conditionValue != null){
-			pcgEdge.putAttr(XCSG.conditionValue, conditionValue);
+	/**
+	 * Constructs an ephemeral PCG for the given CFG, selected CFG roots, and
+	 * the events of interest, abandoning construction if the given monitor is
+	 * canceled. Note that roots, exits, and events must all be contained
+	 * within the given cfg.
+	 * 
+	 * @param cfg
+	 * @param cfRoots
+	 * @param cfExits
+	 * @param events
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static EphemeralPCG createEphemeral(Q cfg, Q cfRoots, Q cfExits, Q events, IProgressMonitor monitor) {
+		if(CommonQueries.isEmpty(cfg)){
+			throw new RuntimeException("Control flow graph is empty! Is the containing function a library function?");
 		}
-		
-		if(infeasible) {
-			pcgEdge.tag("INFEASIBLE");
+		// see PCGFactory.create for some design choice related to relaxing root/exit requirements
+		boolean relaxNonEmptyRootsRequirement = true;
+		boolean relaxNonEmptyExitsRequirement = true;
+		if(PCGPreferences.getSnapshot().isExceptionalControlFlowPruningEnabled()){
+			cfg = ExceptionalControlFlowPruner.prune(cfg, cfRoots, cfExits, events);
+			checkCanceled(monitor);
 		}
+		UniqueEntryExitControlFlowGraph ucfg = new UniqueEntryExitControlFlowGraph(cfg.eval(), cfRoots.eval().nodes(), relaxNonEmptyRootsRequirement, cfExits.eval().nodes(), relaxNonEmptyExitsRequirement, CommonsPreferences.isMasterEntryExitContainmentRelationshipsEnabled());
+		checkCanceled(monitor);
+		return createEphemeral(ucfg, events, monitor);
+	}
 
-		pcg.edges().add(pcgEdge);
-		return pcgEdge;
+	/**
+	 * Constructs an ephemeral PCG for the given unique entry/exit control flow
+	 * graph and a set of events. Nothing is written to the Atlas graph (see
+	 * EphemeralPCG).
+	 * 
+	 * @param ucfg
+	 * @param events
+	 * @return
+	 */
+	public static EphemeralPCG createEphemeral(UniqueEntryExitControlFlowGraph ucfg, Q events){
+		return createEphemeral(ucfg, events, null);
 	}
 
-	private void labelBackEdges(Graph atlasPCG, Node masterEntry) {
-		LoopIdentification loops = new LoopIdentification(atlasPCG, masterEntry);
-		for (Edge reentryEdge : loops.getReentryEdges()) {
-			reentryEdge.tag(PCG.PCGEdge.PCGReentryEdge);
-		}
-		for (Edge loopbackEdge : loops.getLoopbacks()) {
-			loopbackEdge.tag(PCG.PCGEdge.PCGBackEdge);
+	/**
+	 * Constructs an ephemeral PCG for the given unique entry/exit control flow
+	 * graph and a set of events, abandoning construction if the given monitor
+	 * is canceled
+	 * 
+	 * @param ucfg
+	 * @param events
+	 * @param monitor the monitor checked for cancellation (may be null)
+	 * @return
+	 */
+	public static EphemeralPCG createEphemeral(UniqueEntryExitControlFlowGraph ucfg, Q events, IProgressMonitor monitor){
+		AtlasSet<Node> eventSet = events.intersection(Common.toQ(ucfg.getCFG())).eval().nodes();
+		PCGCompactionEngine engine = new PCGCompactionEngine(PCGCompactionEngine.adapt(ucfg), PCGCompactionEngine.TagSet.PCG_TAGS, eventSet, monitor);
+		return new EphemeralPCG(engine.compactInSandbox(), ucfg, eventSet);
+	}
+
+	/**
+	 * Abandons construction if the given monitor was canceled
+	 * @param monitor the monitor to check (may be null)
+	 */
+	static void checkCanceled(IProgressMonitor monitor){
+		if(monitor != null && monitor.isCanceled()){
+			throw new OperationCanceledException("PCG construction was canceled.");
 		}
 	}
 
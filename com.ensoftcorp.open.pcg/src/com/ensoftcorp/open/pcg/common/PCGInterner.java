@@ -0,0 +1,590 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.pcg.log.Log;
+
+/**
+ * An interning table for structurally identical PCGs.
+ *
+ * PCGs are reduced to a canonical form (a canonical numbering of the PCG
+ * nodes, the role of each node and the condition value labeled edges between
+ * them) which is hashed to a structural hash. PCGs with the same canonical
+ * form share a single Shape and only retain a mapping from the canonical node
+ * numbering to their own nodes.
+ *
+ * The canonical numbering is a depth first traversal from the master entry
+ * whose successors are ordered by edge label and a color refinement of the
+ * nodes, so two PCGs with the same shape are always exactly isomorphic under
+ * their node mappings. Highly symmetric PCGs may occasionally not be
+ * recognized as identical, in which case they are interned as separate shapes.
+ *
+ * Interned PCGs may be retained under a key. The bulk construction paths of
+ * PCGFactory retain the PCGs they construct in the interner of PCGCaches
+ * under their PCG cache keys, so the interned PCGs of changed functions are
+ * invalidated with the other caches.
+ */
+public class PCGInterner {
+
+	private static final String ENTRY = "ENTRY";
+	private static final String EXIT = "EXIT";
+	private static final String EVENT = "EVENT-";
+	private static final String IF = "IF";
+	private static final String LOOP = "LOOP";
+	private static final String SWITCH = "SWITCH";
+	private static final String NODE = "NODE";
+
+	/**
+	 * A canonical PCG structure shared by all structurally identical PCGs
+	 */
+	public static class Shape {
+		private final String hash;
+		private final String[] roles;
+		private final int[] edges;
+		private final String[] edgeLabels;
+		private int references = 0;
+
+		private Shape(String hash, String[] roles, int[] edges, String[] edgeLabels){
+			this.hash = hash;
+			this.roles = roles;
+			this.edges = edges;
+			this.edgeLabels = edgeLabels;
+		}
+
+		/**
+		 * Returns the structural hash of this shape
+		 * @return
+		 */
+		public String getHash(){
+			return hash;
+		}
+
+		/**
+		 * Returns the number of nodes in this shape
+		 * @return
+		 */
+		public int getNodeCount(){
+			return roles.length;
+		}
+
+		/**
+		 * Returns the number of edges in this shape
+		 * @return
+		 */
+		public int getEdgeCount(){
+			return edgeLabels.length;
+		}
+
+		/**
+		 * Returns the role (entry, exit, event and condition kind) of the
+		 * node with the given canonical index
+		 * @param node
+		 * @return
+		 */
+		public String getRole(int node){
+			return roles[node];
+		}
+
+		/**
+		 * Returns the (from, to) canonical node index pair of the edge at the given position
+		 * @param edge
+		 * @return
+		 */
+		public int[] getEdge(int edge){
+			return new int[]{ edges[edge*2], edges[(edge*2)+1] };
+		}
+
+		/**
+		 * Returns the condition value label of the edge at the given
+		 * position (empty if the edge is unconditional)
+		 * @param edge
+		 * @return
+		 */
+		public String getEdgeLabel(int edge){
+			return edgeLabels[edge];
+		}
+
+		/**
+		 * Returns the number of PCGs interned to this shape
+		 * @return
+		 */
+		public synchronized int getReferences(){
+			return references;
+		}
+
+		private boolean matches(String[] roles, int[] edges, String[] edgeLabels){
+			return Arrays.equals(this.roles, roles) && Arrays.equals(this.edges, edges) && Arrays.equals(this.edgeLabels, edgeLabels);
+		}
+	}
+
+	/**
+	 * A PCG represented as a shared shape and a mapping from the canonical
+	 * node numbering of the shape to the nodes of the PCG
+	 */
+	public static class InternedPCG {
+		private final Shape shape;
+		private final Node[] nodes;
+		private final String instanceID;
+
+		private InternedPCG(Shape shape, Node[] nodes, String instanceID){
+			this.shape = shape;
+			this.nodes = nodes;
+			this.instanceID = instanceID;
+		}
+
+		/**
+		 * Returns the shared shape
+		 * @return
+		 */
+		public Shape getShape(){
+			return shape;
+		}
+
+		/**
+		 * Returns the PCG node with the given canonical index
+		 * @param canonicalIndex
+		 * @return
+		 */
+		public Node getNode(int canonicalIndex){
+			return nodes[canonicalIndex];
+		}
+
+		/**
+		 * Returns the instance ID of the interned PCG
+		 * @return
+		 */
+		public String getInstanceID(){
+			return instanceID;
+		}
+	}
+
+	private final Map<String,List<Shape>> shapes = new HashMap<String,List<Shape>>();
+	private final Map<String,InternedPCG> instances = new HashMap<String,InternedPCG>();
+	private long interned = 0;
+
+	/**
+	 * Interns the given PCG, sharing the shape of any previously interned
+	 * structurally identical PCG
+	 * @param pcg
+	 * @return
+	 */
+	public InternedPCG intern(PCG pcg){
+		Canonicalizer canonical = new Canonicalizer(pcg);
+		Shape shape;
+		synchronized (this) {
+			List<Shape> candidates = shapes.get(canonical.hash);
+			if(candidates == null){
+				candidates = new ArrayList<Shape>(1);
+				shapes.put(canonical.hash, candidates);
+			}
+			shape = null;
+			for(Shape candidate : candidates){
+				if(candidate.matches(canonical.roles, canonical.edges, canonical.edgeLabels)){
+					shape = candidate;
+					break;
+				}
+			}
+			if(shape == null){
+				shape = new Shape(canonical.hash, canonical.roles, canonical.edges, canonical.edgeLabels);
+				candidates.add(shape);
+			}
+			interned++;
+		}
+		synchronized (shape) {
+			shape.references++;
+		}
+		return new InternedPCG(shape, canonical.nodes, pcg.getInstanceID());
+	}
+
+	/**
+	 * Interns the given PCG and retains the interned PCG under the given key
+	 * (such as its PCG cache key). If a PCG with the same instance ID is
+	 * already retained under the key it is returned without canonicalizing
+	 * the given PCG again.
+	 * @param key
+	 * @param pcg
+	 * @return
+	 */
+	public InternedPCG intern(String key, PCG pcg){
+		synchronized (this) {
+			InternedPCG existing = instances.get(key);
+			if(existing != null && existing.getInstanceID().equalsIgnoreCase(pcg.getInstanceID())){
+				return existing;
+			}
+		}
+		InternedPCG result = intern(pcg);
+		synchronized (this) {
+			InternedPCG replaced = instances.put(key, result);
+			if(replaced != null){
+				release(replaced.getShape());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the interned PCG retained under the given key or null if no
+	 * PCG is retained under the key
+	 * @param key
+	 * @return
+	 */
+	public synchronized InternedPCG get(String key){
+		return instances.get(key);
+	}
+
+	/**
+	 * Removes the retained interned PCGs whose keys match the given
+	 * predicate, shapes that are no longer referenced are removed
+	 * @param predicate
+	 * @return the number of interned PCGs removed
+	 */
+	public synchronized int invalidateIf(Predicate<? super String> predicate){
+		int removed = 0;
+		Iterator<Map.Entry<String,InternedPCG>> iterator = instances.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<String,InternedPCG> entry = iterator.next();
+			if(predicate.test(entry.getKey())){
+				iterator.remove();
+				release(entry.getValue().getShape());
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the number of retained interned PCGs
+	 * @return
+	 */
+	public synchronized int size(){
+		return instances.size();
+	}
+
+	/**
+	 * Releases a reference to the given shape, removing the shape if it is
+	 * no longer referenced
+	 */
+	private void release(Shape shape){
+		synchronized (shape) {
+			shape.references--;
+			if(shape.references > 0){
+				return;
+			}
+		}
+		List<Shape> candidates = shapes.get(shape.getHash());
+		if(candidates != null){
+			candidates.remove(shape);
+			if(candidates.isEmpty()){
+				shapes.remove(shape.getHash());
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of PCGs interned
+	 * @return
+	 */
+	public synchronized long getInternedCount(){
+		return interned;
+	}
+
+	/**
+	 * Returns the number of unique shapes found
+	 * @return
+	 */
+	public synchronized int getUniqueShapeCount(){
+		int count = 0;
+		for(List<Shape> candidates : shapes.values()){
+			count += candidates.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the unique shapes found
+	 * @return
+	 */
+	public synchronized List<Shape> getShapes(){
+		List<Shape> result = new ArrayList<Shape>();
+		for(List<Shape> candidates : shapes.values()){
+			result.addAll(candidates);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all interned shapes
+	 */
+	public synchronized void clear(){
+		shapes.clear();
+		instances.clear();
+		interned = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Interned " + interned + " PCGs into " + getUniqueShapeCount() + " unique shapes";
+	}
+
+	/**
+	 * Interns each of the given PCGs and logs the number of unique shapes found
+	 * @param pcgs
+	 * @return
+	 */
+	public static PCGInterner internAll(Collection<PCG> pcgs){
+		PCGInterner interner = new PCGInterner();
+		for(PCG pcg : pcgs){
+			interner.intern(pcg);
+		}
+		Log.info(interner.toString());
+		return interner;
+	}
+
+	/**
+	 * Returns the structural hash of the given PCG. Structurally identical
+	 * PCGs have the same hash regardless of the function that contains them.
+	 * @param pcg
+	 * @return
+	 */
+	public static String getStructuralHash(PCG pcg){
+		return new Canonicalizer(pcg).hash;
+	}
+
+	/**
+	 * Computes the canonical form of a PCG
+	 */
+	private static class Canonicalizer {
+
+		private Node[] nodes;
+		private String[] roles;
+		private int[] edges;
+		private String[] edgeLabels;
+		private String hash;
+
+		private Canonicalizer(PCG pcg){
+			Graph graph = pcg.getPCG().eval();
+			AtlasSet<Node> events = pcg.getEvents().eval().nodes();
+
+			// number the nodes locally
+			List<Node> localNodes = new ArrayList<Node>();
+			Map<Node,Integer> localIndices = new HashMap<Node,Integer>();
+			for(Node node : graph.nodes()){
+				localIndices.put(node, localNodes.size());
+				localNodes.add(node);
+			}
+			int size = localNodes.size();
+
+			// record the local adjacency with edge labels
+			List<List<int[]>> successors = new ArrayList<List<int[]>>(size);
+			List<List<int[]>> predecessors = new ArrayList<List<int[]>>(size);
+			for(int i=0; i<size; i++){
+				successors.add(new ArrayList<int[]>());
+				predecessors.add(new ArrayList<int[]>());
+			}
+			List<String> labels = new ArrayList<String>();
+			Map<String,Integer> labelIndices = new HashMap<String,Integer>();
+			for(Edge edge : graph.edges()){
+				Integer from = localIndices.get(edge.from());
+				Integer to = localIndices.get(edge.to());
+				if(from == null || to == null){
+					continue;
+				}
+				String label = edge.hasAttr(XCSG.conditionValue) ? edge.getAttr(XCSG.conditionValue).toString() : "";
+				Integer labelIndex = labelIndices.get(label);
+				if(labelIndex == null){
+					labelIndex = labels.size();
+					labels.add(label);
+					labelIndices.put(label, labelIndex);
+				}
+				successors.get(from).add(new int[]{to, labelIndex});
+				predecessors.get(to).add(new int[]{from, labelIndex});
+			}
+
+			// initial colors are the node roles
+			String[] localRoles = new String[size];
+			for(int i=0; i<size; i++){
+				localRoles[i] = getRole(localNodes.get(i), pcg, events);
+			}
+			int[] colors = recolor(localRoles);
+
+			// refine the colors by neighborhood until the partition is stable
+			int colorCount = countColors(colors);
+			for(int round=0; round<size; round++){
+				String[] signatures = new String[size];
+				for(int i=0; i<size; i++){
+					signatures[i] = colors[i] + "|" + getNeighborhood(successors.get(i), colors, labels) + "|" + getNeighborhood(predecessors.get(i), colors, labels);
+				}
+				int[] refined = recolor(signatures);
+				int refinedCount = countColors(refined);
+				colors = refined;
+				if(refinedCount == colorCount){
+					break;
+				}
+				colorCount = refinedCount;
+			}
+
+			// canonical depth first numbering from the master entry
+			final int[] finalColors = colors;
+			int[] canonicalIndices = new int[size];
+			Arrays.fill(canonicalIndices, -1);
+			List<Integer> order = new ArrayList<Integer>(size);
+			List<Integer> starts = new ArrayList<Integer>();
+			Integer entry = localIndices.get(pcg.getMasterEntry());
+			if(entry != null){
+				starts.add(entry);
+			}
+			List<Integer> remaining = new ArrayList<Integer>();
+			for(int i=0; i<size; i++){
+				remaining.add(i);
+			}
+			Collections.sort(remaining, (a,b) -> Integer.compare(finalColors[a], finalColors[b]));
+			starts.addAll(remaining);
+			for(Integer start : starts){
+				if(canonicalIndices[start] != -1){
+					continue;
+				}
+				Deque<Integer> stack = new ArrayDeque<Integer>();
+				stack.push(start);
+				while(!stack.isEmpty()){
+					int current = stack.pop();
+					if(canonicalIndices[current] != -1){
+						continue;
+					}
+					canonicalIndices[current] = order.size();
+					order.add(current);
+					List<int[]> ordered = new ArrayList<int[]>(successors.get(current));
+					Collections.sort(ordered, (a,b) -> {
+						int result = labels.get(a[1]).compareTo(labels.get(b[1]));
+						return result != 0 ? result : Integer.compare(finalColors[a[0]], finalColors[b[0]]);
+					});
+					// push in reverse so the first successor is visited first
+					for(int i=ordered.size()-1; i>=0; i--){
+						if(canonicalIndices[ordered.get(i)[0]] == -1){
+							stack.push(ordered.get(i)[0]);
+						}
+					}
+				}
+			}
+
+			// build the canonical form
+			this.nodes = new Node[size];
+			this.roles = new String[size];
+			for(int i=0; i<size; i++){
+				nodes[canonicalIndices[i]] = localNodes.get(i);
+				roles[canonicalIndices[i]] = localRoles[i];
+			}
+			List<long[]> sortedEdges = new ArrayList<long[]>();
+			for(int from=0; from<size; from++){
+				for(int[] successor : successors.get(from)){
+					sortedEdges.add(new long[]{canonicalIndices[from], canonicalIndices[successor[0]], successor[1]});
+				}
+			}
+			Collections.sort(sortedEdges, (a,b) -> {
+				int result = Long.compare(a[0], b[0]);
+				if(result == 0) result = Long.compare(a[1], b[1]);
+				return result != 0 ? result : labels.get((int) a[2]).compareTo(labels.get((int) b[2]));
+			});
+			this.edges = new int[sortedEdges.size() * 2];
+			this.edgeLabels = new String[sortedEdges.size()];
+			for(int i=0; i<sortedEdges.size(); i++){
+				long[] edge = sortedEdges.get(i);
+				edges[i*2] = (int) edge[0];
+				edges[(i*2)+1] = (int) edge[1];
+				edgeLabels[i] = labels.get((int) edge[2]);
+			}
+
+			StringBuilder form = new StringBuilder();
+			form.append(Arrays.toString(roles));
+			for(int i=0; i<edgeLabels.length; i++){
+				form.append(edges[i*2]).append('>').append(edges[(i*2)+1]).append(':').append(edgeLabels[i]).append(';');
+			}
+			this.hash = sha1(form.toString());
+		}
+
+		private static String getRole(Node node, PCG pcg, AtlasSet<Node> events){
+			if(node.equals(pcg.getMasterEntry())){
+				return ENTRY;
+			}
+			if(node.equals(pcg.getMasterExit())){
+				return EXIT;
+			}
+			String kind = NODE;
+			if(node.taggedWith(XCSG.ControlFlowIfCondition)){
+				kind = IF;
+			} else if(node.taggedWith(XCSG.ControlFlowLoopCondition)){
+				kind = LOOP;
+			} else if(node.taggedWith(XCSG.ControlFlowSwitchCondition)){
+				kind = SWITCH;
+			}
+			return events.contains(node) ? (EVENT + kind) : kind;
+		}
+
+		private static String getNeighborhood(List<int[]> neighbors, int[] colors, List<String> labels){
+			List<String> neighborhood = new ArrayList<String>(neighbors.size());
+			for(int[] neighbor : neighbors){
+				neighborhood.add(labels.get(neighbor[1]) + ":" + colors[neighbor[0]]);
+			}
+			Collections.sort(neighborhood);
+			return neighborhood.toString();
+		}
+
+		/**
+		 * Assigns each distinct signature a color by its sorted position, so
+		 * that colors are comparable across PCGs
+		 */
+		private static int[] recolor(String[] signatures){
+			List<String> distinct = new ArrayList<String>(new TreeSet<String>(Arrays.asList(signatures)));
+			Map<String,Integer> colorMap = new HashMap<String,Integer>();
+			for(int i=0; i<distinct.size(); i++){
+				colorMap.put(distinct.get(i), i);
+			}
+			int[] colors = new int[signatures.length];
+			for(int i=0; i<signatures.length; i++){
+				colors[i] = colorMap.get(signatures[i]);
+			}
+			return colors;
+		}
+
+		private static int countColors(int[] colors){
+			int max = -1;
+			for(int color : colors){
+				max = Math.max(max, color);
+			}
+			return max + 1;
+		}
+
+		private static String sha1(String value){
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-1");
+				byte[] array = md.digest(value.getBytes());
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < array.length; ++i) {
+					sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
+				}
+				return sb.toString().toUpperCase();
+			} catch (NoSuchAlgorithmException e) {
+				Log.error("SHA-1 hashing is not supported!", e);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+}
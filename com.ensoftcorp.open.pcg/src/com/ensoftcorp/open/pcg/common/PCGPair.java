@@ -0,0 +1,52 @@
+package com.ensoftcorp.open.pcg.common;
+
+/**
+ * The PCGs of the normal and the exceptional control flow graph of a
+ * function for the same events
+ */
+public class PCGPair {
+
+	private final PCG normal;
+	private final PCG exceptional;
+
+	PCGPair(PCG normal, PCG exceptional){
+		this.normal = normal;
+		this.exceptional = exceptional;
+	}
+
+	/**
+	 * Returns the PCG of the control flow graph without exceptional control flow
+	 * @return
+	 */
+	public PCG getNormalPCG(){
+		return normal;
+	}
+
+	/**
+	 * Returns the PCG of the control flow graph with exceptional control flow
+	 * @return
+	 */
+	public PCG getExceptionalPCG(){
+		return exceptional;
+	}
+
+	/**
+	 * Returns the exceptional PCG if exceptionalControlFlow is true, otherwise
+	 * the normal PCG
+	 * @param exceptionalControlFlow
+	 * @return
+	 */
+	public PCG get(boolean exceptionalControlFlow){
+		return exceptionalControlFlow ? exceptional : normal;
+	}
+
+	/**
+	 * Returns true if the exceptional control flow does not affect the
+	 * projection, in which case both PCGs are the same instance
+	 * @return
+	 */
+	public boolean isShared(){
+		return normal == exceptional;
+	}
+
+}
@@ -0,0 +1,287 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.ensoftcorp.atlas.core.db.graph.Node;
+
+/**
+ * The master entry to master exit paths of a PCG with bounded loop unrolling.
+ *
+ * A path may take at most loopBound loop back edges (the back edges of a
+ * depth first search from the master entry, see PCGQueryIndex), so with a
+ * loop bound of 0 the paths are the acyclic paths of the PCG. Paths are node
+ * sequences, parallel edges with different condition values are not
+ * distinguished.
+ *
+ * Paths are enumerated lazily by a depth first search with an explicit stack
+ * that only descends into nodes from which the exit can still be reached
+ * within the remaining loop bound, so every step of the search leads to a
+ * path. The enumeration reuses a single Path buffer, which is only valid
+ * until the next path is requested (use Path.toList to retain a path). The
+ * number of paths is computed up front by dynamic programming so callers can
+ * decide whether to enumerate them at all.
+ */
+public class PCGPaths implements Iterable<PCGPaths.Path> {
+
+	/**
+	 * A view of the current path of an enumeration
+	 */
+	public static class Path {
+		private final PCGQueryIndex index;
+		private int[] nodes;
+		private int length;
+
+		private Path(PCGQueryIndex index, int capacity){
+			this.index = index;
+			this.nodes = new int[capacity];
+			this.length = 0;
+		}
+
+		/**
+		 * Returns the number of nodes on the path, including the master
+		 * entry and exit
+		 * @return
+		 */
+		public int size(){
+			return length;
+		}
+
+		/**
+		 * Returns the node at the given position of the path
+		 * @param position
+		 * @return
+		 */
+		public Node get(int position){
+			if(position < 0 || position >= length){
+				throw new IndexOutOfBoundsException("Position " + position + " is not on a path of length " + length + ".");
+			}
+			return index.getNode(nodes[position]);
+		}
+
+		/**
+		 * Returns a copy of the path
+		 * @return
+		 */
+		public List<Node> toList(){
+			List<Node> result = new ArrayList<Node>(length);
+			for(int i=0; i<length; i++){
+				result.add(index.getNode(nodes[i]));
+			}
+			return result;
+		}
+
+		private void push(int node){
+			if(length == nodes.length){
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			}
+			nodes[length++] = node;
+		}
+
+		@Override
+		public String toString() {
+			return toList().toString();
+		}
+	}
+
+	private final PCGQueryIndex index;
+	private final int loopBound;
+	private final long pathLimit;
+
+	// paths[b][v] is the number of paths from v to the exit taking at most b back edges
+	private final BigInteger[][] paths;
+
+	/**
+	 * Creates the paths of the given PCG that take at most loopBound loop back
+	 * edges, of which at most pathLimit are enumerated
+	 * @param pcg
+	 * @param loopBound the maximum number of back edges on a path (0 for acyclic paths)
+	 * @param pathLimit the maximum number of paths to enumerate
+	 */
+	public PCGPaths(PCG pcg, int loopBound, long pathLimit){
+		if(loopBound < 0){
+			throw new IllegalArgumentException("Loop bound must not be negative.");
+		}
+		if(pathLimit < 0){
+			throw new IllegalArgumentException("Path limit must not be negative.");
+		}
+		this.index = pcg.getQueryIndex();
+		this.loopBound = loopBound;
+		this.pathLimit = pathLimit;
+		this.paths = countPaths();
+	}
+
+	/**
+	 * Returns the number of paths from the master entry to the master exit
+	 * within the loop bound (regardless of the path limit)
+	 * @return
+	 */
+	public BigInteger count(){
+		return paths[loopBound][index.getEntryIndex()];
+	}
+
+	/**
+	 * Returns the loop bound
+	 * @return
+	 */
+	public int getLoopBound(){
+		return loopBound;
+	}
+
+	/**
+	 * Returns the path limit
+	 * @return
+	 */
+	public long getPathLimit(){
+		return pathLimit;
+	}
+
+	/**
+	 * Returns a lazy iterator over the paths. The returned Path is reused
+	 * by the iterator and changes on each call to next.
+	 */
+	@Override
+	public Iterator<Path> iterator() {
+		return new PathIterator();
+	}
+
+	/**
+	 * Returns a sequential stream over the paths. The streamed Path is reused
+	 * and must be copied (Path.toList) if it is retained.
+	 * @return
+	 */
+	public Stream<Path> stream(){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	private BigInteger[][] countPaths(){
+		int[][] successors = index.getSuccessors();
+		boolean[][] backEdges = index.getBackEdges();
+		int[] postorder = index.getPostorder();
+		int exit = index.getExitIndex();
+		BigInteger[][] paths = new BigInteger[loopBound + 1][index.size()];
+		for(int bound=0; bound<=loopBound; bound++){
+			Arrays.fill(paths[bound], BigInteger.ZERO);
+			// successors along forward edges come first in postorder
+			for(int node : postorder){
+				if(node == exit){
+					paths[bound][node] = BigInteger.ONE;
+					continue;
+				}
+				BigInteger count = BigInteger.ZERO;
+				for(int s=0; s<successors[node].length; s++){
+					if(!backEdges[node][s]){
+						count = count.add(paths[bound][successors[node][s]]);
+					} else if(bound > 0){
+						count = count.add(paths[bound - 1][successors[node][s]]);
+					}
+				}
+				paths[bound][node] = count;
+			}
+		}
+		return paths;
+	}
+
+	private class PathIterator implements Iterator<Path> {
+
+		private final int[][] successors = index.getSuccessors();
+		private final boolean[][] backEdges = index.getBackEdges();
+		private final int exit = index.getExitIndex();
+
+		// the search stack, the path holds the nodes and these hold the
+		// remaining loop bound and next successor position of each node
+		private final Path path;
+		private int[] bounds;
+		private int[] positions;
+
+		private long enumerated = 0;
+		private boolean ready = false;
+
+		private PathIterator(){
+			int capacity = Math.max(16, index.size());
+			this.path = new Path(index, capacity);
+			this.bounds = new int[capacity];
+			this.positions = new int[capacity];
+			int entry = index.getEntryIndex();
+			if(pathLimit > 0 && paths[loopBound][entry].signum() > 0){
+				push(entry, loopBound);
+				ready = entry == exit;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if(!ready && path.length > 0 && enumerated < pathLimit){
+				ready = advance();
+			}
+			return ready && enumerated < pathLimit;
+		}
+
+		@Override
+		public Path next() {
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			enumerated++;
+			return path;
+		}
+
+		/**
+		 * Advances the search to the next path, returns false if there are no
+		 * more paths
+		 */
+		private boolean advance(){
+			while(path.length > 0){
+				int top = path.length - 1;
+				int node = path.nodes[top];
+				if(node == exit){
+					// backtrack from the last path, paths end at the exit
+					path.length--;
+					continue;
+				}
+				int bound = bounds[top];
+				int[] nodeSuccessors = successors[node];
+				boolean descended = false;
+				while(positions[top] < nodeSuccessors.length){
+					int s = positions[top]++;
+					int successor = nodeSuccessors[s];
+					int successorBound = backEdges[node][s] ? bound - 1 : bound;
+					if(successorBound >= 0 && paths[successorBound][successor].signum() > 0){
+						push(successor, successorBound);
+						descended = true;
+						break;
+					}
+				}
+				if(descended){
+					if(path.nodes[path.length - 1] == exit){
+						return true;
+					}
+				} else {
+					path.length--;
+				}
+			}
+			return false;
+		}
+
+		private void push(int node, int bound){
+			int position = path.length;
+			path.push(node);
+			if(position == bounds.length){
+				bounds = Arrays.copyOf(bounds, path.nodes.length);
+				positions = Arrays.copyOf(positions, path.nodes.length);
+			}
+			bounds[position] = bound;
+			positions[position] = 0;
+		}
+	}
+
+}
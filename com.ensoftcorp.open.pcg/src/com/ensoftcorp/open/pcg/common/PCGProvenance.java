@@ -0,0 +1,79 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.BitSet;
+import java.util.Map;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.query.Q;
+import com.ensoftcorp.atlas.core.script.Common;
+
+/**
+ * The control flow nodes summarized by each edge of a PCG, recorded during
+ * compaction when edge provenance is enabled (see
+ * PCGPreferences.EDGE_PROVENANCE).
+ *
+ * The nodes of the compacted graph are numbered densely and the summarized
+ * nodes of each edge are stored as a bitset, so expanding a PCG edge to the
+ * part of the control flow graph it replaces is a lookup instead of a graph
+ * search. Provenance belongs to a PCG instance and not to the (shared) Atlas
+ * PCG edges, because the same edge may summarize different nodes in PCGs of
+ * different events.
+ */
+public class PCGProvenance {
+
+	private final Graph graph;
+	private final Node[] nodes;
+	private final Map<Edge,BitSet> edges;
+
+	PCGProvenance(Graph graph, Node[] nodes, Map<Edge,BitSet> edges){
+		this.graph = graph;
+		this.nodes = nodes;
+		this.edges = edges;
+	}
+
+	/**
+	 * Returns the control flow nodes that were consumed into the given PCG
+	 * edge, which is empty for edges that were retained from the control
+	 * flow graph
+	 * @param pcgEdge
+	 * @return
+	 */
+	public AtlasSet<Node> getSummarizedNodes(Edge pcgEdge){
+		AtlasSet<Node> result = new AtlasHashSet<Node>();
+		BitSet bits = edges.get(pcgEdge);
+		if(bits != null){
+			for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)){
+				result.add(nodes[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the subgraph of the compacted graph that the given PCG edge
+	 * summarizes, that is the graph induced by the summarized nodes and the
+	 * endpoints of the edge
+	 * @param pcgEdge
+	 * @return
+	 */
+	public Q getSummarizedSubgraph(Edge pcgEdge){
+		AtlasSet<Node> subgraphNodes = getSummarizedNodes(pcgEdge);
+		subgraphNodes.add(pcgEdge.from());
+		subgraphNodes.add(pcgEdge.to());
+		return Common.toQ(subgraphNodes).induce(Common.toQ(graph));
+	}
+
+	/**
+	 * Returns true if provenance was recorded for the given PCG edge
+	 * @param pcgEdge
+	 * @return
+	 */
+	public boolean contains(Edge pcgEdge){
+		return edges.containsKey(pcgEdge);
+	}
+
+}
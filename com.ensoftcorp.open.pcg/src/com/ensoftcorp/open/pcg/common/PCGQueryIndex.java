@@ -0,0 +1,556 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+
+/**
+ * An in-memory index of a PCG that answers reachability, dominance and path
+ * counting queries without traversing the Atlas graph.
+ *
+ * The PCG nodes are numbered densely. Reachability is answered from the
+ * transitive closure of the PCG, computed once per strongly connected
+ * component as a bitset (nodes of the same component share a bitset).
+ * Dominance is answered from pre/post numbers of the dominator tree rooted at
+ * the master entry. Path counts are the number of acyclic paths, that is
+ * paths in the graph without the loop back edges found by a depth first
+ * search from the master entry, and are exact (no overflow).
+ *
+ * The closure takes a bit per pair of nodes in the worst case, which is
+ * intended for PCGs (which are usually small) and not for CFGs.
+ */
+public class PCGQueryIndex {
+
+	private final Node[] nodes;
+	private final Map<Node,Integer> numbers;
+	private final int entry;
+	private final int exit;
+	private final AtlasSet<Node> events;
+
+	// adjacency, back edges of a depth first search from the entry and its postorder
+	private final int[][] successors;
+	private final boolean[][] backEdges;
+	private final int[] postorder;
+
+	// transitive closure by node (nodes in the same SCC share a bitset)
+	private final BitSet[] closure;
+
+	// dominator tree, immediate dominator and pre/post numbering (-1 if unreachable from the entry)
+	private final int[] dominators;
+	private final int[] dominatorPreorder;
+	private final int[] dominatorPostorder;
+
+	// acyclic path counts from the entry to each node and from each node to the exit
+	private final BigInteger[] pathsFromEntry;
+	private final BigInteger[] pathsToExit;
+
+	/**
+	 * Builds the query index of the given PCG
+	 * @param pcg
+	 */
+	public PCGQueryIndex(PCG pcg){
+		Graph graph = pcg.getPCG().eval();
+		this.events = pcg.getEvents().eval().nodes();
+
+		// number the nodes
+		int size = (int) graph.nodes().size();
+		this.nodes = new Node[size];
+		this.numbers = new HashMap<Node,Integer>();
+		for(Node node : graph.nodes()){
+			numbers.put(node, numbers.size());
+			nodes[numbers.get(node)] = node;
+		}
+		this.entry = indexOf(pcg.getMasterEntry());
+		this.exit = indexOf(pcg.getMasterExit());
+
+		// index the adjacency, parallel edges (different condition values) are merged
+		List<Set<Integer>> successorSets = new ArrayList<Set<Integer>>();
+		List<Set<Integer>> predecessorSets = new ArrayList<Set<Integer>>();
+		for(int i=0; i<size; i++){
+			successorSets.add(new LinkedHashSet<Integer>());
+			predecessorSets.add(new LinkedHashSet<Integer>());
+		}
+		for(Edge edge : graph.edges()){
+			Integer from = numbers.get(edge.from());
+			Integer to = numbers.get(edge.to());
+			if(from != null && to != null){
+				successorSets.get(from).add(to);
+				predecessorSets.get(to).add(from);
+			}
+		}
+		this.successors = toArrays(successorSets);
+		int[][] predecessors = toArrays(predecessorSets);
+
+		this.closure = computeClosure(successors);
+
+		// depth first search from the entry for the acyclic subgraph and the dominators
+		List<Integer> postorder = new ArrayList<Integer>();
+		this.backEdges = new boolean[size][];
+		for(int i=0; i<size; i++){
+			backEdges[i] = new boolean[successors[i].length];
+		}
+		depthFirstSearch(postorder);
+		this.postorder = new int[postorder.size()];
+		for(int i=0; i<postorder.size(); i++){
+			this.postorder[i] = postorder.get(i);
+		}
+
+		this.dominators = computeDominators(predecessors, postorder);
+		this.dominatorPreorder = new int[size];
+		this.dominatorPostorder = new int[size];
+		numberDominatorTree();
+
+		// count the acyclic paths in topological (reverse post) order
+		this.pathsFromEntry = new BigInteger[size];
+		this.pathsToExit = new BigInteger[size];
+		Arrays.fill(pathsFromEntry, BigInteger.ZERO);
+		Arrays.fill(pathsToExit, BigInteger.ZERO);
+		pathsFromEntry[entry] = BigInteger.ONE;
+		for(int i=postorder.size()-1; i>=0; i--){
+			int node = postorder.get(i);
+			for(int s=0; s<successors[node].length; s++){
+				if(!backEdges[node][s]){
+					int successor = successors[node][s];
+					pathsFromEntry[successor] = pathsFromEntry[successor].add(pathsFromEntry[node]);
+				}
+			}
+		}
+		pathsToExit[exit] = BigInteger.ONE;
+		for(int node : postorder){
+			if(node == exit){
+				continue;
+			}
+			BigInteger paths = BigInteger.ZERO;
+			for(int s=0; s<successors[node].length; s++){
+				if(!backEdges[node][s]){
+					paths = paths.add(pathsToExit[successors[node][s]]);
+				}
+			}
+			pathsToExit[node] = paths;
+		}
+	}
+
+	/**
+	 * Returns the number of nodes in the index
+	 * @return
+	 */
+	public int size(){
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the dense number of the given PCG node
+	 * @param node
+	 * @return
+	 */
+	public int indexOf(Node node){
+		Integer number = numbers.get(node);
+		if(number == null){
+			throw new IllegalArgumentException("Node is not a node of the PCG.");
+		}
+		return number;
+	}
+
+	/**
+	 * Returns the PCG node with the given dense number
+	 * @param index
+	 * @return
+	 */
+	public Node getNode(int index){
+		return nodes[index];
+	}
+
+	/**
+	 * Returns true if there is a non-empty path from the given node to the
+	 * other given node (a node only reaches itself if it is part of a cycle)
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public boolean canReach(Node from, Node to){
+		return closure[indexOf(from)].get(indexOf(to));
+	}
+
+	/**
+	 * Returns the nodes reachable from the given node by a non-empty path
+	 * @param from
+	 * @return
+	 */
+	public AtlasSet<Node> getReachable(Node from){
+		return toNodes(closure[indexOf(from)]);
+	}
+
+	/**
+	 * Returns true if the given node dominates the other given node, that is
+	 * every path from the master entry to the other node passes through the
+	 * given node (a node dominates itself)
+	 * @param dominator
+	 * @param node
+	 * @return
+	 */
+	public boolean dominates(Node dominator, Node node){
+		int a = indexOf(dominator);
+		int b = indexOf(node);
+		if(dominators[a] == -1 || dominators[b] == -1){
+			return false;
+		}
+		return dominatorPreorder[a] <= dominatorPreorder[b] && dominatorPostorder[b] <= dominatorPostorder[a];
+	}
+
+	/**
+	 * Returns the immediate dominator of the given node or null if the node
+	 * is the master entry or is not reachable from the master entry
+	 * @param node
+	 * @return
+	 */
+	public Node getImmediateDominator(Node node){
+		int index = indexOf(node);
+		if(index == entry || dominators[index] == -1){
+			return null;
+		}
+		return nodes[dominators[index]];
+	}
+
+	/**
+	 * Returns the events that lie on every path from the master entry to the
+	 * master exit, in the order they occur on those paths
+	 * @return
+	 */
+	public List<Node> getEventsOnEveryPath(){
+		List<Node> result = new ArrayList<Node>();
+		if(dominators[exit] == -1){
+			return result;
+		}
+		for(int node = exit; node != entry; node = dominators[node]){
+			if(events.contains(nodes[node])){
+				result.add(nodes[node]);
+			}
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Returns true if the given node lies on every path from the master entry
+	 * to the master exit
+	 * @param node
+	 * @return
+	 */
+	public boolean isOnEveryPath(Node node){
+		return dominates(node, nodes[exit]);
+	}
+
+	/**
+	 * Returns the number of acyclic paths from the master entry to the master exit
+	 * @return
+	 */
+	public BigInteger getPathCount(){
+		return pathsFromEntry[exit];
+	}
+
+	/**
+	 * Returns the number of acyclic paths from the master entry to the master
+	 * exit that pass through the given node
+	 * @param node
+	 * @return
+	 */
+	public BigInteger getPathCount(Node node){
+		int index = indexOf(node);
+		return pathsFromEntry[index].multiply(pathsToExit[index]);
+	}
+
+	/**
+	 * Returns the number of acyclic paths from the master entry to the given node
+	 * @param node
+	 * @return
+	 */
+	public BigInteger getPathCountFromEntry(Node node){
+		return pathsFromEntry[indexOf(node)];
+	}
+
+	/**
+	 * Returns the number of acyclic paths from the given node to the master exit
+	 * @param node
+	 * @return
+	 */
+	public BigInteger getPathCountToExit(Node node){
+		return pathsToExit[indexOf(node)];
+	}
+
+	/**
+	 * Returns the dense number of the master entry
+	 * @return
+	 */
+	int getEntryIndex(){
+		return entry;
+	}
+
+	/**
+	 * Returns the dense number of the master exit
+	 * @return
+	 */
+	int getExitIndex(){
+		return exit;
+	}
+
+	/**
+	 * Returns the successors of each node by dense number
+	 * @return
+	 */
+	int[][] getSuccessors(){
+		return successors;
+	}
+
+	/**
+	 * Returns for each successor of each node whether the edge is a back edge
+	 * of the depth first search from the master entry
+	 * @return
+	 */
+	boolean[][] getBackEdges(){
+		return backEdges;
+	}
+
+	/**
+	 * Returns the nodes reachable from the master entry in depth first
+	 * search postorder, which is a reverse topological order of the graph
+	 * without back edges
+	 * @return
+	 */
+	int[] getPostorder(){
+		return postorder;
+	}
+
+	private AtlasSet<Node> toNodes(BitSet bits){
+		AtlasSet<Node> result = new AtlasHashSet<Node>();
+		for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)){
+			result.add(nodes[i]);
+		}
+		return result;
+	}
+
+	private static int[][] toArrays(List<Set<Integer>> sets){
+		int[][] result = new int[sets.size()][];
+		for(int i=0; i<sets.size(); i++){
+			result[i] = new int[sets.get(i).size()];
+			int j = 0;
+			for(int value : sets.get(i)){
+				result[i][j++] = value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the transitive closure from the strongly connected components
+	 * (Tarjan's algorithm), which are completed in reverse topological order
+	 */
+	private static BitSet[] computeClosure(int[][] successors){
+		int size = successors.length;
+		BitSet[] closure = new BitSet[size];
+		int[] index = new int[size];
+		int[] lowlink = new int[size];
+		boolean[] onStack = new boolean[size];
+		Arrays.fill(index, -1);
+		Deque<Integer> components = new ArrayDeque<Integer>();
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		int counter = 0;
+		for(int root=0; root<size; root++){
+			if(index[root] != -1){
+				continue;
+			}
+			index[root] = lowlink[root] = counter++;
+			components.push(root);
+			onStack[root] = true;
+			stack.push(root);
+			positions.push(0);
+			while(!stack.isEmpty()){
+				int node = stack.peek();
+				int position = positions.pop();
+				if(position < successors[node].length){
+					positions.push(position + 1);
+					int successor = successors[node][position];
+					if(index[successor] == -1){
+						index[successor] = lowlink[successor] = counter++;
+						components.push(successor);
+						onStack[successor] = true;
+						stack.push(successor);
+						positions.push(0);
+					} else if(onStack[successor]){
+						lowlink[node] = Math.min(lowlink[node], index[successor]);
+					}
+				} else {
+					stack.pop();
+					if(!stack.isEmpty()){
+						int parent = stack.peek();
+						lowlink[parent] = Math.min(lowlink[parent], lowlink[node]);
+					}
+					if(lowlink[node] == index[node]){
+						// pop the component, all successor components are complete
+						List<Integer> component = new ArrayList<Integer>();
+						int member;
+						do {
+							member = components.pop();
+							onStack[member] = false;
+							component.add(member);
+						} while(member != node);
+						BitSet reachable = new BitSet(size);
+						boolean cyclic = component.size() > 1;
+						for(int m : component){
+							for(int successor : successors[m]){
+								if(successor == m){
+									cyclic = true;
+								}
+								if(closure[successor] != null){
+									reachable.set(successor);
+									reachable.or(closure[successor]);
+								}
+							}
+						}
+						if(cyclic){
+							for(int m : component){
+								reachable.set(m);
+							}
+						}
+						for(int m : component){
+							closure[m] = reachable;
+						}
+					}
+				}
+			}
+		}
+		return closure;
+	}
+
+	/**
+	 * Computes a depth first search postorder from the entry and marks the
+	 * edges to nodes on the current search path as back edges
+	 */
+	private void depthFirstSearch(List<Integer> postorder){
+		boolean[] visited = new boolean[nodes.length];
+		boolean[] onPath = new boolean[nodes.length];
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		visited[entry] = true;
+		onPath[entry] = true;
+		stack.push(entry);
+		positions.push(0);
+		while(!stack.isEmpty()){
+			int node = stack.peek();
+			int position = positions.pop();
+			if(position < successors[node].length){
+				positions.push(position + 1);
+				int successor = successors[node][position];
+				if(onPath[successor]){
+					backEdges[node][position] = true;
+				} else if(!visited[successor]){
+					visited[successor] = true;
+					onPath[successor] = true;
+					stack.push(successor);
+					positions.push(0);
+				}
+			} else {
+				stack.pop();
+				onPath[node] = false;
+				postorder.add(node);
+			}
+		}
+	}
+
+	/**
+	 * Computes the immediate dominators using the iterative algorithm of
+	 * Cooper, Harvey and Kennedy
+	 */
+	private int[] computeDominators(int[][] predecessors, List<Integer> postorder){
+		int[] order = new int[nodes.length];
+		for(int i=0; i<postorder.size(); i++){
+			order[postorder.get(i)] = i;
+		}
+		int[] dominators = new int[nodes.length];
+		Arrays.fill(dominators, -1);
+		dominators[entry] = entry;
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			// reverse postorder, skipping the entry which is last in postorder
+			for(int i=postorder.size()-2; i>=0; i--){
+				int node = postorder.get(i);
+				int dominator = -1;
+				for(int predecessor : predecessors[node]){
+					if(dominators[predecessor] != -1){
+						dominator = (dominator == -1) ? predecessor : intersect(predecessor, dominator, dominators, order);
+					}
+				}
+				if(dominator != -1 && dominator != dominators[node]){
+					dominators[node] = dominator;
+					changed = true;
+				}
+			}
+		}
+		return dominators;
+	}
+
+	private static int intersect(int a, int b, int[] dominators, int[] order){
+		while(a != b){
+			while(order[a] < order[b]){
+				a = dominators[a];
+			}
+			while(order[b] < order[a]){
+				b = dominators[b];
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Numbers the dominator tree in pre and post order so that dominance
+	 * queries are interval containment checks
+	 */
+	private void numberDominatorTree(){
+		List<List<Integer>> children = new ArrayList<List<Integer>>();
+		for(int i=0; i<nodes.length; i++){
+			children.add(new ArrayList<Integer>());
+		}
+		for(int i=0; i<nodes.length; i++){
+			if(i != entry && dominators[i] != -1){
+				children.get(dominators[i]).add(i);
+			}
+		}
+		int counter = 0;
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		Deque<Integer> positions = new ArrayDeque<Integer>();
+		dominatorPreorder[entry] = counter++;
+		stack.push(entry);
+		positions.push(0);
+		while(!stack.isEmpty()){
+			int node = stack.peek();
+			int position = positions.pop();
+			if(position < children.get(node).size()){
+				positions.push(position + 1);
+				int child = children.get(node).get(position);
+				dominatorPreorder[child] = counter++;
+				stack.push(child);
+				positions.push(0);
+			} else {
+				stack.pop();
+				dominatorPostorder[node] = counter++;
+			}
+		}
+	}
+
+}
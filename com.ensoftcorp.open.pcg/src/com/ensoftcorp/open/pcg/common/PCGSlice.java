@@ -7,13 +7,31 @@ import com.ensoftcorp.atlas.core.query.Q;
 import com.ensoftcorp.atlas.core.script.Common;
 import com.ensoftcorp.atlas.core.xcsg.XCSG;
 import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.common.cache.PCGCaches;
 import com.ensoftcorp.open.slice.analysis.ProgramDependenceGraph;
 
 public class PCGSlice {
 
 	public static PCG getPCGSlice(Q events, int reverse, int forward){
 		Node function = CommonQueries.getContainingFunction(events.eval().nodes().one());
-		return getPCGSlice(CommonQueries.cfg(function), CommonQueries.dfg(function), events, reverse, forward);
+		Graph cfg = CommonQueries.cfg(function).eval();
+		return getPCGSlice(cfg, Common.toQ(getProgramDependenceGraph(function, cfg)), events.eval().nodes(), reverse, forward);
+	}
+	
+	/**
+	 * Returns the events of the PCG slice of the given events (which must be
+	 * contained in a single function) without constructing the PCG, so that
+	 * the PCGs of the slices of several functions can be constructed together
+	 * (see PCGFactory.createPerFunction)
+	 * @param events
+	 * @param reverse
+	 * @param forward
+	 * @return
+	 */
+	public static Q getSliceEvents(Q events, int reverse, int forward){
+		Node function = CommonQueries.getContainingFunction(events.eval().nodes().one());
+		Graph cfg = CommonQueries.cfg(function).eval();
+		return getSliceEvents(cfg, Common.toQ(getProgramDependenceGraph(function, cfg)), events.eval().nodes(), reverse, forward);
 	}
 	
 	public static PCG getPCGSlice(Q cfg, Q dfg, Q events, int reverse, int forward){
@@ -21,10 +39,34 @@ public class PCGSlice {
 	}
 	
 	public static PCG getPCGSlice(Graph cfg, Graph dfg, AtlasSet<Node> events, int reverse, int forward){
-		events = Common.toQ(events).intersection(Common.toQ(cfg)).nodes(XCSG.ControlFlow_Node).eval().nodes();
-
 		// get the program dependence graph
 		Q pdg = new ProgramDependenceGraph(cfg, dfg).getGraph();
+		return getPCGSlice(cfg, pdg, events, reverse, forward);
+	}
+	
+	/**
+	 * Returns the program dependence graph of the given function, which is
+	 * cached until the function changes
+	 * @param function
+	 * @param cfg
+	 * @return
+	 */
+	private static Graph getProgramDependenceGraph(Node function, Graph cfg){
+		String key = PCGCaches.getFunctionKey(cfg, "PDG");
+		Graph pdg = PCGCaches.getPDGCache().get(key);
+		if(pdg == null){
+			pdg = new ProgramDependenceGraph(cfg, CommonQueries.dfg(function).eval()).getGraph().eval();
+			PCGCaches.getPDGCache().put(key, pdg);
+		}
+		return pdg;
+	}
+	
+	private static PCG getPCGSlice(Graph cfg, Q pdg, AtlasSet<Node> events, int reverse, int forward){
+		return PCGFactory.create(Common.toQ(cfg), getSliceEvents(cfg, pdg, events, reverse, forward));
+	}
+	
+	private static Q getSliceEvents(Graph cfg, Q pdg, AtlasSet<Node> events, int reverse, int forward){
+		events = Common.toQ(events).intersection(Common.toQ(cfg)).nodes(XCSG.ControlFlow_Node).eval().nodes();
 		
 		Q reverseSliceEvents;
 		if(reverse == Integer.MAX_VALUE){
@@ -40,8 +82,7 @@ public class PCGSlice {
 			forwardSliceEvents = Common.toQ(events).forwardStepOn(pdg, forward);
 		}
 		
-		Q sliceEvents = Common.toQ(events).union(reverseSliceEvents, forwardSliceEvents);
-		return PCGFactory.create(Common.toQ(cfg), sliceEvents);
+		return Common.toQ(events).union(reverseSliceEvents, forwardSliceEvents);
 	}
 	
 	// what follows below is a bunch of code that was written to convince myself that 
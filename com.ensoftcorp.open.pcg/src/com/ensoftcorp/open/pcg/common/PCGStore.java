@@ -0,0 +1,529 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.graph.UncheckedGraph;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.pcg.common.PCG.PCGEdge;
+
+/**
+ * A memory efficient store for large collections of PCGs.
+ *
+ * The control flow graph of each function (identified by its PCG master
+ * entry) is indexed once, assigning each CFG node and edge a dense integer
+ * index. Each stored PCG is then represented by bitsets over that index (the
+ * CFG, roots, exits, events and PCG nodes) and a compact list of index pairs
+ * and condition values for its PCG edges, instead of its own graph and
+ * address sets. PCGs are materialized again on demand.
+ *
+ * PCGs are stored under their PCG cache keys. The bulk construction paths
+ * of PCGFactory retain their results here rather than in the PCG cache (see
+ * PCGCaches.getPCGStore), so large batches of PCGs stay cheap to retain and
+ * are materialized on the next lookup.
+ */
+public class PCGStore {
+
+	// rough per element costs used to estimate the retained memory
+	private static final int ESTIMATED_REFERENCE_SIZE = 8;
+	private static final int ESTIMATED_MAP_ENTRY_SIZE = 48;
+
+	/**
+	 * A dense, append only numbering of the control flow nodes and edges of a
+	 * single function. Indices are never reassigned, so bitsets created
+	 * against the index remain valid as the index grows.
+	 */
+	public static class CFGIndex {
+
+		private final Node masterEntry;
+		private final Node masterExit;
+		private final ArrayList<Node> nodes = new ArrayList<Node>();
+		private final Map<Node,Integer> nodeIndices = new HashMap<Node,Integer>();
+		private final ArrayList<Edge> edges = new ArrayList<Edge>();
+		private final Map<Edge,Integer> edgeIndices = new HashMap<Edge,Integer>();
+
+		private CFGIndex(Node masterEntry, Node masterExit){
+			this.masterEntry = masterEntry;
+			this.masterExit = masterExit;
+		}
+
+		/**
+		 * Returns the master entry node of the indexed function
+		 * @return
+		 */
+		public Node getMasterEntry(){
+			return masterEntry;
+		}
+
+		/**
+		 * Returns the master exit node of the indexed function
+		 * @return
+		 */
+		public Node getMasterExit(){
+			return masterExit;
+		}
+
+		/**
+		 * Returns the index of the given node, indexing the node if necessary
+		 * @param node
+		 * @return
+		 */
+		public synchronized int indexOf(Node node){
+			Integer index = nodeIndices.get(node);
+			if(index == null){
+				index = nodes.size();
+				nodes.add(node);
+				nodeIndices.put(node, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the index of the given edge, indexing the edge if necessary
+		 * @param edge
+		 * @return
+		 */
+		public synchronized int indexOf(Edge edge){
+			Integer index = edgeIndices.get(edge);
+			if(index == null){
+				index = edges.size();
+				edges.add(edge);
+				edgeIndices.put(edge, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the node with the given index
+		 * @param index
+		 * @return
+		 */
+		public synchronized Node getNode(int index){
+			return nodes.get(index);
+		}
+
+		/**
+		 * Returns the number of indexed nodes
+		 * @return
+		 */
+		public synchronized int getNodeCount(){
+			return nodes.size();
+		}
+
+		/**
+		 * Returns the number of indexed edges
+		 * @return
+		 */
+		public synchronized int getEdgeCount(){
+			return edges.size();
+		}
+
+		/**
+		 * Returns the estimated number of bytes retained by this index
+		 * (a list slot and a hash map entry for each indexed node and edge)
+		 * @return
+		 */
+		public synchronized long getEstimatedSize(){
+			return (long) (nodes.size() + edges.size()) * (ESTIMATED_REFERENCE_SIZE + ESTIMATED_MAP_ENTRY_SIZE);
+		}
+
+		/**
+		 * Returns a bitset of the indices of the given nodes
+		 * @param nodes
+		 * @return
+		 */
+		public BitSet toNodeBitSet(AtlasSet<Node> nodes){
+			BitSet result = new BitSet();
+			for(Node node : nodes){
+				result.set(indexOf(node));
+			}
+			return result;
+		}
+
+		/**
+		 * Returns a bitset of the indices of the given edges
+		 * @param edges
+		 * @return
+		 */
+		public BitSet toEdgeBitSet(AtlasSet<Edge> edges){
+			BitSet result = new BitSet();
+			for(Edge edge : edges){
+				result.set(indexOf(edge));
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the nodes with the indices in the given bitset
+		 * @param bits
+		 * @return
+		 */
+		public synchronized AtlasSet<Node> getNodes(BitSet bits){
+			AtlasSet<Node> result = new AtlasHashSet<Node>();
+			for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)){
+				result.add(nodes.get(i));
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the edges with the indices in the given bitset
+		 * @param bits
+		 * @return
+		 */
+		public synchronized AtlasSet<Edge> getEdges(BitSet bits){
+			AtlasSet<Edge> result = new AtlasHashSet<Edge>();
+			for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i+1)){
+				result.add(edges.get(i));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The compact representation of a single PCG instance
+	 */
+	public static class CompactPCG {
+
+		private final CFGIndex index;
+		private final String instanceID;
+		private final BitSet cfgNodes;
+		private final BitSet cfgEdges;
+		private final BitSet roots;
+		private final BitSet exits;
+		private final BitSet events;
+		private final BitSet pcgNodes;
+
+		// pcg edges are stored as pairs of node indices (from, to) with
+		// the condition value of each edge (or null if unconditional)
+		private final int[] pcgEdges;
+		private final Object[] conditionValues;
+
+		private final long creationTime;
+		private final long lastAccessTime;
+		private final String givenName;
+
+		private CompactPCG(CFGIndex index, PCG pcg){
+			this.index = index;
+			this.instanceID = pcg.getInstanceID();
+			Graph cfg = pcg.getCFG().eval();
+			this.cfgNodes = index.toNodeBitSet(cfg.nodes());
+			this.cfgEdges = index.toEdgeBitSet(cfg.edges());
+			this.roots = index.toNodeBitSet(pcg.getRoots().eval().nodes());
+			this.exits = index.toNodeBitSet(pcg.getExits().eval().nodes());
+			this.events = index.toNodeBitSet(pcg.getEvents().eval().nodes());
+			Graph pcgGraph = pcg.getPCG().eval();
+			this.pcgNodes = index.toNodeBitSet(pcgGraph.nodes());
+			AtlasSet<Edge> edges = pcgGraph.edges();
+			this.pcgEdges = new int[(int) edges.size() * 2];
+			this.conditionValues = new Object[(int) edges.size()];
+			int i = 0;
+			for(Edge edge : edges){
+				pcgEdges[i*2] = index.indexOf(edge.from());
+				pcgEdges[(i*2)+1] = index.indexOf(edge.to());
+				conditionValues[i] = edge.hasAttr(XCSG.conditionValue) ? edge.getAttr(XCSG.conditionValue) : null;
+				i++;
+			}
+			this.creationTime = pcg.getCreationTime();
+			this.lastAccessTime = pcg.getLastAccessTime();
+			this.givenName = pcg.getGivenName();
+		}
+
+		/**
+		 * Returns the instance ID of the stored PCG
+		 * @return
+		 */
+		public String getInstanceID(){
+			return instanceID;
+		}
+
+		/**
+		 * Returns the index this PCG was stored against
+		 * @return
+		 */
+		public CFGIndex getIndex(){
+			return index;
+		}
+
+		/**
+		 * Returns the PCG node indices
+		 * @return
+		 */
+		public BitSet getNodeBits(){
+			return (BitSet) pcgNodes.clone();
+		}
+
+		/**
+		 * Returns the event node indices
+		 * @return
+		 */
+		public BitSet getEventBits(){
+			return (BitSet) events.clone();
+		}
+
+		/**
+		 * Returns the number of PCG nodes
+		 * @return
+		 */
+		public int getNodeCount(){
+			return pcgNodes.cardinality();
+		}
+
+		/**
+		 * Returns the number of PCG edges
+		 * @return
+		 */
+		public int getEdgeCount(){
+			return conditionValues.length;
+		}
+
+		/**
+		 * Returns the (from, to) node index pair of the PCG edge at the given position
+		 * @param edge
+		 * @return
+		 */
+		public int[] getEdge(int edge){
+			return new int[]{ pcgEdges[edge*2], pcgEdges[(edge*2)+1] };
+		}
+
+		/**
+		 * Returns the condition value of the PCG edge at the given position or
+		 * null if the edge is unconditional
+		 * @param edge
+		 * @return
+		 */
+		public Object getConditionValue(int edge){
+			return conditionValues[edge];
+		}
+
+		/**
+		 * Returns the estimated number of bytes retained by this compact PCG,
+		 * excluding the shared index
+		 * @return
+		 */
+		public long getEstimatedSize(){
+			long size = (cfgNodes.size() + cfgEdges.size() + roots.size() + exits.size() + events.size() + pcgNodes.size()) / 8;
+			size += (long) pcgEdges.length * 4;
+			size += (long) conditionValues.length * ESTIMATED_REFERENCE_SIZE;
+			return size;
+		}
+
+		/**
+		 * Materializes the stored PCG
+		 * @return
+		 */
+		public PCG toPCG(){
+			AtlasSet<Node> nodes = index.getNodes(pcgNodes);
+			AtlasSet<Edge> edges = new AtlasHashSet<Edge>();
+			for(int i=0; i<conditionValues.length; i++){
+				Node from = index.getNode(pcgEdges[i*2]);
+				Node to = index.getNode(pcgEdges[(i*2)+1]);
+				Edge edge = findPCGEdge(from, to, conditionValues[i]);
+				if(edge == null){
+					throw new RuntimeException("Could not materialize stored PCG " + instanceID + ", a PCG edge no longer exists.");
+				}
+				edges.add(edge);
+			}
+			Graph pcg = new UncheckedGraph(nodes, edges);
+			Graph cfg = new UncheckedGraph(index.getNodes(cfgNodes), index.getEdges(cfgEdges));
+			return new PCG(pcg, cfg, index.getMasterEntry(), index.getNodes(roots), index.getMasterExit(), index.getNodes(exits),
+					index.getNodes(events), instanceID, creationTime, lastAccessTime, givenName);
+		}
+
+		/** find the PCG edge between the given nodes with the given XCSG.conditionValue */
+		private static Edge findPCGEdge(Node from, Node to, Object conditionValue){
+			for(Edge edge : Graph.U.edges(from, NodeDirection.OUT)){
+				if(edge.taggedWith(PCGEdge.PCGEdge) && edge.to().equals(to)){
+					boolean hasAttr = edge.hasAttr(XCSG.conditionValue);
+					if(conditionValue == null){
+						if(!hasAttr){
+							return edge;
+						}
+					} else if(hasAttr && conditionValue.equals(edge.getAttr(XCSG.conditionValue))){
+						return edge;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Map<Node,CFGIndex> indices = new HashMap<Node,CFGIndex>();
+	private final Map<String,CompactPCG> instances = new LinkedHashMap<String,CompactPCG>();
+
+	/**
+	 * Stores the given PCG under the given key, replacing any PCG stored
+	 * under the same key
+	 * @param key
+	 * @param pcg
+	 * @return the compact representation of the PCG
+	 */
+	public synchronized CompactPCG add(String key, PCG pcg){
+		CFGIndex index = indices.get(pcg.getMasterEntry());
+		if(index == null){
+			index = new CFGIndex(pcg.getMasterEntry(), pcg.getMasterExit());
+			indices.put(pcg.getMasterEntry(), index);
+		}
+		CompactPCG compactPCG = new CompactPCG(index, pcg);
+		instances.put(key, compactPCG);
+		return compactPCG;
+	}
+
+	/**
+	 * Returns the compact representation of the PCG stored under the given
+	 * key or null if no PCG is stored under the key
+	 * @param key
+	 * @return
+	 */
+	public synchronized CompactPCG getCompact(String key){
+		return instances.get(key);
+	}
+
+	/**
+	 * Materializes the PCG stored under the given key or returns null if no
+	 * PCG is stored under the key. A stored PCG that can no longer be
+	 * materialized (because its PCG edges were removed) is removed.
+	 * @param key
+	 * @return
+	 */
+	public PCG get(String key){
+		CompactPCG compactPCG = getCompact(key);
+		if(compactPCG == null){
+			return null;
+		}
+		try {
+			return compactPCG.toPCG();
+		} catch (RuntimeException e){
+			remove(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if a PCG is stored under the given key
+	 * @param key
+	 * @return
+	 */
+	public synchronized boolean contains(String key){
+		return instances.containsKey(key);
+	}
+
+	/**
+	 * Removes the PCG stored under the given key
+	 * @param key
+	 * @return the removed PCG or null if no PCG was stored under the key
+	 */
+	public synchronized CompactPCG remove(String key){
+		CompactPCG removed = instances.remove(key);
+		if(removed != null){
+			release(removed.getIndex());
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the stored PCGs whose keys match the given predicate, indices
+	 * that are no longer referenced by a stored PCG are removed
+	 * @param predicate
+	 * @return the number of stored PCGs removed
+	 */
+	public synchronized int invalidateIf(Predicate<? super String> predicate){
+		int removed = 0;
+		Iterator<Map.Entry<String,CompactPCG>> iterator = instances.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<String,CompactPCG> entry = iterator.next();
+			if(predicate.test(entry.getKey())){
+				iterator.remove();
+				release(entry.getValue().getIndex());
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/** removes the given index if no stored PCG references it */
+	private void release(CFGIndex index){
+		for(CompactPCG compactPCG : instances.values()){
+			if(compactPCG.getIndex() == index){
+				return;
+			}
+		}
+		indices.remove(index.getMasterEntry());
+	}
+
+	/**
+	 * Returns the stored PCGs
+	 * @return
+	 */
+	public synchronized Collection<CompactPCG> getInstances(){
+		return new ArrayList<CompactPCG>(instances.values());
+	}
+
+	/**
+	 * Returns the index of the function with the given master entry or null
+	 * if no PCGs have been stored for the function
+	 * @param masterEntry
+	 * @return
+	 */
+	public synchronized CFGIndex getIndex(Node masterEntry){
+		return indices.get(masterEntry);
+	}
+
+	/**
+	 * Returns the number of stored PCGs
+	 * @return
+	 */
+	public synchronized int size(){
+		return instances.size();
+	}
+
+	/**
+	 * Returns the number of indexed functions
+	 * @return
+	 */
+	public synchronized int getIndexedFunctionCount(){
+		return indices.size();
+	}
+
+	/**
+	 * Returns the estimated number of bytes retained by the stored PCGs and
+	 * the indices they reference
+	 * @return
+	 */
+	public synchronized long getEstimatedSize(){
+		long size = 0;
+		for(CFGIndex index : indices.values()){
+			size += index.getEstimatedSize();
+		}
+		for(CompactPCG compactPCG : instances.values()){
+			size += compactPCG.getEstimatedSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all stored PCGs and indices
+	 */
+	public synchronized void clear(){
+		instances.clear();
+		indices.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Stored " + instances.size() + " compact PCGs of " + indices.size() + " functions (~" + (getEstimatedSize() / 1024) + " KB)";
+	}
+
+}
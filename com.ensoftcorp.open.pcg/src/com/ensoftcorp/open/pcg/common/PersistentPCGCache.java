@@ -0,0 +1,456 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.GraphElement.NodeDirection;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.graph.UncheckedGraph;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.atlas.core.xcsg.XCSG;
+import com.ensoftcorp.open.commons.algorithms.UniqueEntryExitControlFlowGraph;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.Activator;
+import com.ensoftcorp.open.pcg.log.Log;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * An on-disk cache of PCGs that survives re-indexing.
+ *
+ * Serialized PCG instances (see PCG.PCGInstances) refer to Atlas addresses and
+ * are useless after a re-index. This cache instead stores each PCG by the
+ * index independent identity of its function and the content fingerprint of
+ * its control flow graph (see FunctionFingerprint), with every node referred
+ * to by its canonical number. After a re-index the PCG of an unchanged
+ * function is restored by renumbering the new control flow graph and
+ * recreating the PCG edges, which is much cheaper than recomputing the PCG.
+ *
+ * Each function is stored in its own file in the plugin state location. The
+ * number of PCGs kept per function is bounded by the maximum serialized PCG
+ * instances per function preference.
+ */
+public class PersistentPCGCache {
+
+	private static final String CACHE_DIRECTORY = "pcg-cache";
+	private static final int MASTER_ENTRY = -1;
+	private static final int MASTER_EXIT = -2;
+
+	private static final String JSON_FUNCTION = "function";
+	private static final String JSON_INSTANCES = "instances";
+	private static final String JSON_FINGERPRINT = "fingerprint";
+	private static final String JSON_ROOTS = "roots";
+	private static final String JSON_EXITS = "exits";
+	private static final String JSON_EVENTS = "events";
+	private static final String JSON_LABELED = "labeled";
+	private static final String JSON_NODES = "nodes";
+	private static final String JSON_EDGES = "edges";
+	private static final String JSON_LAST_ACCESS_TIME = "last-access";
+
+	private static final Object lock = new Object();
+
+	private PersistentPCGCache(){}
+
+	/**
+	 * Restores a previously cached PCG for the given unique entry/exit control
+	 * flow graph and events or returns null if the PCG was not cached (or the
+	 * function has changed since it was cached)
+	 *
+	 * @param ucfg
+	 * @param events
+	 * @param labelBackEdges
+	 * @return
+	 */
+	public static PCG restore(UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events, boolean labelBackEdges){
+		Node function = getFunction(ucfg);
+		if(function == null){
+			return null;
+		}
+		FunctionFingerprint fingerprint = FunctionFingerprint.compute(function, ucfg.getCFG());
+		JSONObject key = getKey(fingerprint, ucfg, events, labelBackEdges);
+		if(key == null){
+			return null;
+		}
+		synchronized (lock) {
+			File file = getCacheFile(fingerprint.getFunctionIdentity());
+			JSONObject cache = read(file, fingerprint.getFunctionIdentity());
+			if(cache == null){
+				return null;
+			}
+			JSONObject instance = find(cache, key);
+			if(instance == null){
+				return null;
+			}
+			PCG pcg;
+			try {
+				pcg = decode(instance, fingerprint, ucfg, events);
+			} catch (Exception e){
+				Log.warning("Could not restore cached PCG for " + fingerprint.getFunctionIdentity(), e);
+				return null;
+			}
+			if(pcg != null){
+				touch(instance);
+				write(file, cache);
+			}
+			return pcg;
+		}
+	}
+
+	/**
+	 * Stores the given PCG in the on-disk cache
+	 * @param pcg
+	 * @param ucfg the unique entry/exit control flow graph the PCG was constructed from
+	 * @param labelBackEdges true if the PCG was constructed with labeled back edges
+	 */
+	@SuppressWarnings("unchecked")
+	public static void store(PCG pcg, UniqueEntryExitControlFlowGraph ucfg, boolean labelBackEdges){
+		Node function = getFunction(ucfg);
+		if(function == null){
+			return;
+		}
+		FunctionFingerprint fingerprint = FunctionFingerprint.compute(function, ucfg.getCFG());
+		JSONObject key = getKey(fingerprint, ucfg, pcg.getEvents().eval().nodes(), labelBackEdges);
+		if(key == null){
+			return;
+		}
+		JSONObject instance = encode(key, pcg, fingerprint, ucfg);
+		if(instance == null){
+			return;
+		}
+		synchronized (lock) {
+			File file = getCacheFile(fingerprint.getFunctionIdentity());
+			JSONObject cache = read(file, fingerprint.getFunctionIdentity());
+			if(cache == null){
+				cache = new JSONObject();
+				cache.put(JSON_FUNCTION, fingerprint.getFunctionIdentity());
+				cache.put(JSON_INSTANCES, new JSONArray());
+			}
+			JSONArray instances = (JSONArray) cache.get(JSON_INSTANCES);
+			JSONObject existing = find(cache, key);
+			if(existing != null){
+				instances.remove(existing);
+			}
+			instances.add(instance);
+
+			// evict the least recently accessed instances of the function if there are too many
+			int maxInstances = PCGPreferences.getSnapshot().getMaxPCGInstancesPerFunction();
+			if(maxInstances > 0 && instances.size() > maxInstances){
+				List<JSONObject> sortedInstances = new ArrayList<JSONObject>();
+				for(Object json : instances){
+					sortedInstances.add((JSONObject) json);
+				}
+				Collections.sort(sortedInstances, (a,b) -> Long.compare(getLastAccessTime(b), getLastAccessTime(a)));
+				JSONArray retainedInstances = new JSONArray();
+				retainedInstances.addAll(sortedInstances.subList(0, maxInstances));
+				cache.put(JSON_INSTANCES, retainedInstances);
+			}
+			write(file, cache);
+		}
+	}
+
+	/**
+	 * Deletes the cached PCGs of the functions with the given identities from disk
+	 * @param functionIdentities
+	 */
+	public static void remove(Collection<String> functionIdentities){
+		synchronized (lock) {
+			for(String functionIdentity : functionIdentities){
+				File file = getCacheFile(functionIdentity);
+				if(file.exists() && read(file, functionIdentity) != null && !file.delete()){
+					Log.warning("Could not delete cached PCG file " + file.getAbsolutePath());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes all cached PCGs from disk
+	 */
+	public static void clear(){
+		synchronized (lock) {
+			File directory = getCacheDirectory();
+			File[] files = directory.listFiles();
+			if(files != null){
+				for(File file : files){
+					if(!file.delete()){
+						Log.warning("Could not delete cached PCG file " + file.getAbsolutePath());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory containing the cached PCGs
+	 * @return
+	 */
+	public static File getCacheDirectory(){
+		return Activator.getDefault().getStateLocation().append(CACHE_DIRECTORY).toFile();
+	}
+
+	private static File getCacheFile(String functionIdentity){
+		return new File(getCacheDirectory(), FunctionFingerprint.sha1(functionIdentity) + ".json");
+	}
+
+	private static Node getFunction(UniqueEntryExitControlFlowGraph ucfg){
+		return CommonQueries.getContainingFunctions(Common.toQ(ucfg.getCFG())).eval().nodes().one();
+	}
+
+	/**
+	 * Returns the index independent key of a PCG instance or null if the
+	 * instance cannot be keyed
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONObject getKey(FunctionFingerprint fingerprint, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events, boolean labelBackEdges){
+		JSONArray roots = getSortedNumbers(fingerprint, ucfg.getRoots());
+		JSONArray exits = getSortedNumbers(fingerprint, ucfg.getExits());
+		JSONArray eventNumbers = getSortedNumbers(fingerprint, events);
+		if(roots == null || exits == null || eventNumbers == null){
+			return null;
+		}
+		JSONObject key = new JSONObject();
+		key.put(JSON_FINGERPRINT, fingerprint.getContentHash());
+		key.put(JSON_ROOTS, roots);
+		key.put(JSON_EXITS, exits);
+		key.put(JSON_EVENTS, eventNumbers);
+		key.put(JSON_LABELED, labelBackEdges);
+		return key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONArray getSortedNumbers(FunctionFingerprint fingerprint, AtlasSet<Node> nodes){
+		List<Long> numbers = new ArrayList<Long>();
+		for(Node node : nodes){
+			int number = fingerprint.getNumber(node);
+			if(number < 0){
+				return null;
+			}
+			numbers.add((long) number);
+		}
+		Collections.sort(numbers);
+		JSONArray result = new JSONArray();
+		result.addAll(numbers);
+		return result;
+	}
+
+	private static JSONObject find(JSONObject cache, JSONObject key){
+		for(Object instance : (JSONArray) cache.get(JSON_INSTANCES)){
+			JSONObject json = (JSONObject) instance;
+			boolean match = true;
+			for(Object property : key.keySet()){
+				if(!key.get(property).equals(json.get(property))){
+					match = false;
+					break;
+				}
+			}
+			if(match){
+				return json;
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject encode(JSONObject key, PCG pcg, FunctionFingerprint fingerprint, UniqueEntryExitControlFlowGraph ucfg){
+		JSONObject instance = new JSONObject();
+		instance.putAll(key);
+
+		JSONArray nodes = new JSONArray();
+		for(Node node : pcg.getPCG().eval().nodes()){
+			long number = getNumber(fingerprint, ucfg, node);
+			if(number == Long.MIN_VALUE){
+				return null;
+			}
+			nodes.add(number);
+		}
+		instance.put(JSON_NODES, nodes);
+
+		JSONArray edges = new JSONArray();
+		for(Edge edge : pcg.getPCG().eval().edges()){
+			long from = getNumber(fingerprint, ucfg, edge.from());
+			long to = getNumber(fingerprint, ucfg, edge.to());
+			if(from == Long.MIN_VALUE || to == Long.MIN_VALUE){
+				return null;
+			}
+			JSONArray tags = new JSONArray();
+			for(String tag : edge.tags()){
+				tags.add(tag);
+			}
+			Object conditionValue = edge.getAttr(XCSG.conditionValue);
+			JSONArray json = new JSONArray();
+			json.add(from);
+			json.add(to);
+			json.add(conditionValue == null ? null : conditionValue.getClass().getSimpleName());
+			json.add(conditionValue == null ? null : conditionValue.toString());
+			json.add(tags);
+			edges.add(json);
+		}
+		instance.put(JSON_EDGES, edges);
+		touch(instance);
+		return instance;
+	}
+
+	private static long getNumber(FunctionFingerprint fingerprint, UniqueEntryExitControlFlowGraph ucfg, Node node){
+		if(node.equals(ucfg.getEntryNode())){
+			return MASTER_ENTRY;
+		} else if(node.equals(ucfg.getExitNode())){
+			return MASTER_EXIT;
+		}
+		int number = fingerprint.getNumber(node);
+		return number < 0 ? Long.MIN_VALUE : number;
+	}
+
+	private static Node getNode(FunctionFingerprint fingerprint, UniqueEntryExitControlFlowGraph ucfg, Object number){
+		int value = Integer.parseInt(number.toString());
+		if(value == MASTER_ENTRY){
+			return ucfg.getEntryNode();
+		} else if(value == MASTER_EXIT){
+			return ucfg.getExitNode();
+		}
+		return fingerprint.getNode(value);
+	}
+
+	private static PCG decode(JSONObject instance, FunctionFingerprint fingerprint, UniqueEntryExitControlFlowGraph ucfg, AtlasSet<Node> events){
+		AtlasSet<Node> pcgNodes = new AtlasHashSet<Node>();
+		for(Object number : (JSONArray) instance.get(JSON_NODES)){
+			pcgNodes.add(getNode(fingerprint, ucfg, number));
+		}
+
+		// resolve the existing edges before creating any edges, so that nothing
+		// is written to the Atlas graph if the instance cannot be restored
+		AtlasSet<Edge> pcgEdges = new AtlasHashSet<Edge>();
+		List<JSONArray> missingEdges = new ArrayList<JSONArray>();
+		Graph graph = ucfg.getGraph();
+		for(Object value : (JSONArray) instance.get(JSON_EDGES)){
+			JSONArray json = (JSONArray) value;
+			Node from = getNode(fingerprint, ucfg, json.get(0));
+			Node to = getNode(fingerprint, ucfg, json.get(1));
+			Object conditionValue = decodeConditionValue((String) json.get(2), (String) json.get(3));
+			JSONArray tags = (JSONArray) json.get(4);
+			Edge edge = findEdge(graph, from, to, conditionValue);
+			if(edge == null){
+				if(tags.contains(XCSG.ControlFlow_Edge)){
+					// the retained control flow edge no longer exists
+					return null;
+				}
+				missingEdges.add(json);
+			} else {
+				tag(edge, tags);
+				pcgEdges.add(edge);
+			}
+		}
+		for(JSONArray json : missingEdges){
+			Edge edge = Graph.U.createEdge(getNode(fingerprint, ucfg, json.get(0)), getNode(fingerprint, ucfg, json.get(1)));
+			Object conditionValue = decodeConditionValue((String) json.get(2), (String) json.get(3));
+			if(conditionValue != null){
+				edge.putAttr(XCSG.conditionValue, conditionValue);
+			}
+			tag(edge, (JSONArray) json.get(4));
+			pcgEdges.add(edge);
+		}
+
+		pcgNodes.add(ucfg.getEntryNode());
+		pcgNodes.add(ucfg.getExitNode());
+		ucfg.getEntryNode().tag(PCG.PCGNode.PCGMasterEntry);
+		ucfg.getExitNode().tag(PCG.PCGNode.PCGMasterExit);
+		return new PCG(new UncheckedGraph(pcgNodes, pcgEdges), ucfg, events);
+	}
+
+	private static void tag(Edge edge, JSONArray tags){
+		for(Object tag : tags){
+			edge.tag(tag.toString());
+		}
+	}
+
+	/**
+	 * Finds an existing edge of the unique entry/exit control flow graph or an
+	 * existing PCG edge between the given nodes with the given condition value
+	 */
+	private static Edge findEdge(Graph graph, Node from, Node to, Object conditionValue){
+		for(Edge edge : Graph.U.edges(from, NodeDirection.OUT)){
+			if(!edge.to().equals(to)){
+				continue;
+			}
+			if(!graph.edges().contains(edge) && !edge.taggedWith(PCG.PCGEdge.PCGEdge)){
+				continue;
+			}
+			Object edgeConditionValue = edge.getAttr(XCSG.conditionValue);
+			if(conditionValue == null ? edgeConditionValue == null : conditionValue.equals(edgeConditionValue)){
+				return edge;
+			}
+		}
+		return null;
+	}
+
+	private static Object decodeConditionValue(String type, String value){
+		if(type == null || value == null){
+			return null;
+		} else if(type.equals(Boolean.class.getSimpleName())){
+			return Boolean.valueOf(value);
+		} else if(type.equals(Integer.class.getSimpleName())){
+			return Integer.valueOf(value);
+		} else if(type.equals(Long.class.getSimpleName())){
+			return Long.valueOf(value);
+		} else {
+			return value;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void touch(JSONObject instance){
+		instance.put(JSON_LAST_ACCESS_TIME, System.currentTimeMillis());
+	}
+
+	private static long getLastAccessTime(JSONObject instance){
+		try {
+			return Long.parseLong(instance.get(JSON_LAST_ACCESS_TIME).toString());
+		} catch (Exception e){
+			return -1L;
+		}
+	}
+
+	private static JSONObject read(File file, String functionIdentity){
+		if(!file.exists()){
+			return null;
+		}
+		try (Reader reader = new FileReader(file)) {
+			JSONObject cache = (JSONObject) new JSONParser().parse(reader);
+			// guard against hash collisions of function identities
+			if(!functionIdentity.equals(cache.get(JSON_FUNCTION))){
+				return null;
+			}
+			return cache;
+		} catch (Exception e){
+			Log.warning("Could not read cached PCGs from " + file.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	private static void write(File file, JSONObject cache){
+		File directory = file.getParentFile();
+		if(!directory.exists() && !directory.mkdirs()){
+			Log.warning("Could not create PCG cache directory " + directory.getAbsolutePath());
+			return;
+		}
+		try (Writer writer = new FileWriter(file)) {
+			writer.write(cache.toJSONString());
+		} catch (Exception e){
+			Log.warning("Could not write cached PCGs to " + file.getAbsolutePath(), e);
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+package com.ensoftcorp.open.pcg.common;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+
+/**
+ * The immediate post-dominators and the post-dominance frontier of a unique
+ * entry/exit graph, computed with the algorithm of Cooper, Harvey and
+ * Kennedy ("A Simple, Fast Dominance Algorithm") on the reversed graph.
+ *
+ * The post-dominance of a supergraph (such as the exceptional control flow
+ * graph of a function, given the post-dominance of its normal control flow
+ * graph) shares the work for the common part. The post-dominators of a node
+ * only depend on the paths from the node to the exit, so a node that cannot
+ * reach any node whose successors differ between the two graphs has the
+ * same immediate post-dominator and contributes the same frontier edges in
+ * both graphs. Only the remaining nodes are recomputed.
+ *
+ * The frontier is an adjacency map from each node to the nodes in its
+ * post-dominance frontier, as used by PCGCompactionEngine to compute the
+ * implied events.
+ */
+class PostDominance {
+
+	private static final int UNDEFINED = -1;
+
+	private final Node entry;
+	private final Node exit;
+	private final Node[] nodes;
+	private final Map<Node,Integer> indices;
+	private final int[][] successors;
+	private final int[] ipdoms;
+	private final Map<Node,AtlasSet<Node>> frontier;
+
+	/**
+	 * Computes the post-dominance of the given graph
+	 * @param graph
+	 * @return
+	 */
+	static PostDominance compute(PCGCompactionEngine.GraphAdapter graph){
+		PostDominance result = new PostDominance(graph);
+		result.computePostDominators(new BitSet());
+		result.computeFrontier(new BitSet(), null);
+		return result;
+	}
+
+	/**
+	 * Computes the post-dominance of the given supergraph of this graph,
+	 * reusing the post-dominators and frontier of the nodes that cannot reach
+	 * any node whose successors differ between the two graphs. The master
+	 * entry and exit nodes of the two graphs correspond to each other.
+	 * @param supergraph
+	 * @return
+	 */
+	PostDominance extend(PCGCompactionEngine.GraphAdapter supergraph){
+		PostDominance result = new PostDominance(supergraph);
+		BitSet common = result.getCommonNodes(this);
+		for(int i = common.nextSetBit(0); i >= 0; i = common.nextSetBit(i + 1)){
+			int ipdom = ipdoms[indices.get(toThisGraph(result.nodes[i], result))];
+			result.ipdoms[i] = ipdom == UNDEFINED ? UNDEFINED : result.indices.get(toGraph(nodes[ipdom], result));
+		}
+		result.computePostDominators(common);
+		result.computeFrontier(common, this);
+		return result;
+	}
+
+	/**
+	 * Returns the post-dominance frontier of each node
+	 * @return
+	 */
+	Map<Node,AtlasSet<Node>> getFrontier(){
+		return frontier;
+	}
+
+	private PostDominance(PCGCompactionEngine.GraphAdapter graph){
+		this.entry = graph.getEntryNode();
+		this.exit = graph.getExitNode();
+		Graph g = graph.getGraph();
+		this.nodes = new Node[(int) g.nodes().size()];
+		this.indices = new HashMap<Node,Integer>();
+		for(Node node : g.nodes()){
+			nodes[indices.size()] = node;
+			indices.put(node, indices.size());
+		}
+		Set<Integer>[] successorSets = newSets(nodes.length);
+		for(Edge edge : g.edges()){
+			Integer from = indices.get(edge.from());
+			Integer to = indices.get(edge.to());
+			if(from != null && to != null){
+				successorSets[from].add(to);
+			}
+		}
+		this.successors = new int[nodes.length][];
+		for(int i=0; i<nodes.length; i++){
+			successors[i] = toArray(successorSets[i]);
+		}
+		this.ipdoms = new int[nodes.length];
+		Arrays.fill(ipdoms, UNDEFINED);
+		this.frontier = new HashMap<Node,AtlasSet<Node>>();
+	}
+
+	/**
+	 * Returns the nodes of this graph that cannot reach a node whose
+	 * successors differ from the successors of the corresponding node in
+	 * the given subgraph (or that has no corresponding node)
+	 */
+	private BitSet getCommonNodes(PostDominance subgraph){
+		// the nodes that differ between the two graphs
+		int[][] predecessors = getPredecessors();
+		BitSet reachesDifference = new BitSet(nodes.length);
+		Deque<Integer> worklist = new ArrayDeque<Integer>();
+		for(int i=0; i<nodes.length; i++){
+			Integer s = subgraph.indices.get(toGraph(nodes[i], subgraph));
+			boolean differs = s == null || successors[i].length != subgraph.successors[s].length;
+			if(!differs){
+				for(int successor : subgraph.successors[s]){
+					Integer t = indices.get(subgraph.toGraph(subgraph.nodes[successor], this));
+					if(t == null || Arrays.binarySearch(successors[i], t) < 0){
+						differs = true;
+						break;
+					}
+				}
+			}
+			if(differs){
+				reachesDifference.set(i);
+				worklist.push(i);
+			}
+		}
+
+		// and the nodes that can reach them
+		while(!worklist.isEmpty()){
+			for(int predecessor : predecessors[worklist.pop()]){
+				if(!reachesDifference.get(predecessor)){
+					reachesDifference.set(predecessor);
+					worklist.push(predecessor);
+				}
+			}
+		}
+		BitSet common = new BitSet(nodes.length);
+		common.set(0, nodes.length);
+		common.andNot(reachesDifference);
+		return common;
+	}
+
+	/**
+	 * Computes the immediate post-dominators of all nodes except the given
+	 * nodes, whose immediate post-dominators are already known
+	 */
+	private void computePostDominators(BitSet known){
+		Integer exitIndex = indices.get(exit);
+		if(exitIndex == null){
+			return;
+		}
+
+		// number the nodes in postorder of the reversed graph from the exit,
+		// nodes that cannot reach the exit have no post-dominators
+		int[][] predecessors = getPredecessors();
+		int[] postorder = new int[nodes.length];
+		Arrays.fill(postorder, UNDEFINED);
+		int[] order = new int[nodes.length];
+		int count = 0;
+		BitSet visited = new BitSet(nodes.length);
+		Deque<int[]> stack = new ArrayDeque<int[]>();
+		visited.set(exitIndex);
+		stack.push(new int[]{ exitIndex, 0 });
+		while(!stack.isEmpty()){
+			int[] frame = stack.peek();
+			if(frame[1] < predecessors[frame[0]].length){
+				int predecessor = predecessors[frame[0]][frame[1]++];
+				if(!visited.get(predecessor)){
+					visited.set(predecessor);
+					stack.push(new int[]{ predecessor, 0 });
+				}
+			} else {
+				stack.pop();
+				postorder[frame[0]] = count;
+				order[count++] = frame[0];
+			}
+		}
+
+		// iterate to the fixed point in reverse postorder
+		ipdoms[exitIndex] = exitIndex;
+		boolean changed = true;
+		while(changed){
+			changed = false;
+			for(int i=count-1; i>=0; i--){
+				int node = order[i];
+				if(node == exitIndex || known.get(node)){
+					continue;
+				}
+				int ipdom = UNDEFINED;
+				for(int successor : successors[node]){
+					if(ipdoms[successor] != UNDEFINED && postorder[successor] != UNDEFINED){
+						ipdom = ipdom == UNDEFINED ? successor : intersect(successor, ipdom, postorder);
+					}
+				}
+				if(ipdom != ipdoms[node]){
+					ipdoms[node] = ipdom;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private int intersect(int a, int b, int[] postorder){
+		while(a != b){
+			while(postorder[a] < postorder[b]){
+				a = ipdoms[a];
+			}
+			while(postorder[b] < postorder[a]){
+				b = ipdoms[b];
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Computes the frontier contributed by each branch node, copying the
+	 * contributions of the given common nodes from the given subgraph
+	 */
+	private void computeFrontier(BitSet common, PostDominance subgraph){
+		if(subgraph != null){
+			for(Map.Entry<Node,AtlasSet<Node>> entry : subgraph.frontier.entrySet()){
+				Node node = subgraph.toGraph(entry.getKey(), this);
+				for(Node branch : entry.getValue()){
+					Node translatedBranch = subgraph.toGraph(branch, this);
+					Integer branchIndex = indices.get(translatedBranch);
+					if(branchIndex != null && common.get(branchIndex)){
+						addFrontier(node, translatedBranch);
+					}
+				}
+			}
+		}
+		for(int branch=0; branch<nodes.length; branch++){
+			if(common.get(branch) || successors[branch].length < 2 || ipdoms[branch] == UNDEFINED){
+				continue;
+			}
+			for(int successor : successors[branch]){
+				if(ipdoms[successor] == UNDEFINED){
+					// successors that cannot reach the exit are not post-dominated
+					continue;
+				}
+				int runner = successor;
+				while(runner != UNDEFINED && runner != ipdoms[branch]){
+					addFrontier(nodes[runner], nodes[branch]);
+					int next = ipdoms[runner];
+					runner = next == runner ? UNDEFINED : next;
+				}
+			}
+		}
+	}
+
+	private void addFrontier(Node node, Node branch){
+		AtlasSet<Node> branches = frontier.get(node);
+		if(branches == null){
+			branches = new AtlasHashSet<Node>();
+			frontier.put(node, branches);
+		}
+		branches.add(branch);
+	}
+
+	/**
+	 * Returns the node of the given graph corresponding to the given node of
+	 * this graph (the master entry and exit nodes correspond to each other)
+	 */
+	private Node toGraph(Node node, PostDominance graph){
+		if(node.equals(entry)){
+			return graph.entry;
+		} else if(node.equals(exit)){
+			return graph.exit;
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the node of this graph corresponding to the given node of the
+	 * given graph
+	 */
+	private Node toThisGraph(Node node, PostDominance graph){
+		return graph.toGraph(node, this);
+	}
+
+	private int[][] getPredecessors(){
+		Set<Integer>[] predecessorSets = newSets(nodes.length);
+		for(int i=0; i<nodes.length; i++){
+			for(int successor : successors[i]){
+				predecessorSets[successor].add(i);
+			}
+		}
+		int[][] predecessors = new int[nodes.length][];
+		for(int i=0; i<nodes.length; i++){
+			predecessors[i] = toArray(predecessorSets[i]);
+		}
+		return predecessors;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<Integer>[] newSets(int size){
+		Set<Integer>[] sets = new Set[size];
+		for(int i=0; i<size; i++){
+			sets[i] = new LinkedHashSet<Integer>();
+		}
+		return sets;
+	}
+
+	/** returns the values of the given set as a sorted array */
+	private static int[] toArray(Set<Integer> set){
+		int[] result = new int[set.size()];
+		int i = 0;
+		for(Integer value : set){
+			result[i++] = value;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+}
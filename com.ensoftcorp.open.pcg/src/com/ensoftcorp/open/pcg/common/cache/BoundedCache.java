@@ -0,0 +1,185 @@
+package com.ensoftcorp.open.pcg.common.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * A thread safe least recently used cache whose capacity is read from a
+ * supplier (typically a preference) each time an entry is added, so that
+ * capacity changes take effect without recreating the cache.
+ *
+ * A capacity of zero or less disables the cache.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class BoundedCache<K,V> {
+
+	private final String name;
+	private final IntSupplier capacity;
+	private final LinkedHashMap<K,V> entries = new LinkedHashMap<K,V>(16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Creates a new cache
+	 * @param name a name used when reporting cache statistics
+	 * @param capacity the maximum number of entries to retain
+	 */
+	public BoundedCache(String name, IntSupplier capacity){
+		this.name = name;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the name of this cache
+	 * @return
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Returns the cached value for the given key or null if the key is not cached
+	 * @param key
+	 * @return
+	 */
+	public synchronized V get(K key){
+		V value = entries.get(key);
+		if(value == null){
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Caches the given value, evicting the least recently used entries if the
+	 * cache is over capacity
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put(K key, V value){
+		if(value == null || capacity.getAsInt() <= 0){
+			return;
+		}
+		entries.put(key, value);
+		trim();
+	}
+
+	/**
+	 * Removes the given key from the cache
+	 * @param key
+	 * @return the removed value or null if the key was not cached
+	 */
+	public synchronized V remove(K key){
+		return entries.remove(key);
+	}
+
+	/**
+	 * Removes all entries whose key satisfies the given predicate
+	 * @param predicate
+	 * @return the number of entries removed
+	 */
+	public synchronized int invalidateIf(Predicate<? super K> predicate){
+		int removed = 0;
+		Iterator<K> keys = entries.keySet().iterator();
+		while(keys.hasNext()){
+			if(predicate.test(keys.next())){
+				keys.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes all entries whose key and value satisfy the given predicate
+	 * @param predicate
+	 * @return the number of entries removed
+	 */
+	public synchronized int invalidateEntriesIf(BiPredicate<? super K, ? super V> predicate){
+		int removed = 0;
+		Iterator<Map.Entry<K,V>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<K,V> entry = iterator.next();
+			if(predicate.test(entry.getKey(), entry.getValue())){
+				iterator.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public synchronized void invalidateAll(){
+		entries.clear();
+	}
+
+	/**
+	 * Returns a snapshot of the currently cached keys, least recently used first
+	 * @return
+	 */
+	public synchronized List<K> keys(){
+		return new ArrayList<K>(entries.keySet());
+	}
+
+	/**
+	 * Returns the number of cached entries
+	 * @return
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found a cached value
+	 * @return
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that did not find a cached value
+	 * @return
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Returns the number of entries evicted due to the capacity bound
+	 * @return
+	 */
+	public synchronized long getEvictions(){
+		return evictions;
+	}
+
+	private void trim(){
+		int limit = Math.max(0, capacity.getAsInt());
+		Iterator<Map.Entry<K,V>> iterator = entries.entrySet().iterator();
+		while(entries.size() > limit && iterator.hasNext()){
+			iterator.next();
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return name + " cache [size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.ensoftcorp.open.pcg.common.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
+import com.ensoftcorp.atlas.core.db.graph.Node;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
+import com.ensoftcorp.atlas.core.script.Common;
+import com.ensoftcorp.open.commons.analysis.CommonQueries;
+import com.ensoftcorp.open.pcg.common.FunctionChangeTracker;
+import com.ensoftcorp.open.pcg.common.PCG;
+import com.ensoftcorp.open.pcg.common.PCGInterner;
+import com.ensoftcorp.open.pcg.common.PCGStore;
+import com.ensoftcorp.open.pcg.preferences.PCGPreferences;
+
+/**
+ * The in-memory caches used during PCG construction.
+ *
+ * The frontier cache maps a unique entry/exit graph fingerprint to the
+ * frontier (as an adjacency map) used to compute implied events. The PCG
+ * cache maps a PCG instance ID to a previously constructed PCG. The PDG cache
+ * maps a function to its program dependence graph. The frontier and PCG
+ * caches are sized by the current PCGPreferences snapshot, the PDG cache
+ * shares the PCG cache size.
+ *
+ * PCGs are cached by their canonical instance ID, which is computed from the
+ * implied events rather than the explicit events, so different selections
+ * that imply the same events share a cached PCG. The number of PCG cache hits
+ * that were served to such an equivalent (but different) selection is
+ * counted separately (see getEquivalentSelectionHits).
+ *
+ * The PCG interner retains the structural shape of the PCGs constructed by
+ * the bulk construction paths, keyed by their PCG cache keys. The PCG store
+ * retains the PCGs of the bulk construction paths compactly (as bitsets over
+ * a per function index) under the same keys, they are materialized again on
+ * the next PCG cache miss.
+ *
+ * All cache keys are prefixed with the addresses of the functions the cached
+ * value was computed from (see getFunctionKey), so that the entries of
+ * changed functions can be invalidated selectively when the index changes
+ * (see FunctionChangeTracker).
+ */
+public class PCGCaches {
+
+	private static final char FUNCTION_KEY_SEPARATOR = '|';
+
+	private static final BoundedCache<String,Map<Node,AtlasSet<Node>>> frontiers = new BoundedCache<String,Map<Node,AtlasSet<Node>>>("Frontier", () -> PCGPreferences.getSnapshot().getFrontierCacheSize());
+
+	private static final BoundedCache<String,PCG> pcgs = new BoundedCache<String,PCG>("PCG", () -> PCGPreferences.getSnapshot().getPCGCacheSize());
+
+	private static final BoundedCache<String,Graph> pdgs = new BoundedCache<String,Graph>("PDG", () -> PCGPreferences.getSnapshot().getPCGCacheSize());
+
+	private static final PCGInterner interner = new PCGInterner();
+
+	private static final PCGStore store = new PCGStore();
+
+	private static final AtomicLong equivalentSelectionHits = new AtomicLong();
+
+	private PCGCaches(){}
+
+	/**
+	 * Returns the frontier cache
+	 * @return
+	 */
+	public static BoundedCache<String,Map<Node,AtlasSet<Node>>> getFrontierCache(){
+		return frontiers;
+	}
+
+	/**
+	 * Returns the constructed PCG cache
+	 * @return
+	 */
+	public static BoundedCache<String,PCG> getPCGCache(){
+		return pcgs;
+	}
+
+	/**
+	 * Returns the program dependence graph cache
+	 * @return
+	 */
+	public static BoundedCache<String,Graph> getPDGCache(){
+		return pdgs;
+	}
+
+	/**
+	 * Returns the interner of the PCGs constructed by bulk construction
+	 * @return
+	 */
+	public static PCGInterner getPCGInterner(){
+		return interner;
+	}
+
+	/**
+	 * Returns the compact store of the PCGs constructed by bulk construction
+	 * @return
+	 */
+	public static PCGStore getPCGStore(){
+		return store;
+	}
+
+	/**
+	 * Records a PCG cache hit for an event selection that differs from the
+	 * selection the cached PCG was constructed for
+	 */
+	public static void recordEquivalentSelectionHit(){
+		equivalentSelectionHits.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of PCG cache hits for event selections that differ
+	 * from the selection the cached PCG was constructed for, but imply the
+	 * same events
+	 * @return
+	 */
+	public static long getEquivalentSelectionHits(){
+		return equivalentSelectionHits.get();
+	}
+
+	/**
+	 * Returns a summary of the cache statistics
+	 * @return
+	 */
+	public static String getStatistics(){
+		return frontiers.toString() + "\n"
+				+ pcgs.toString() + " (equivalent selection hits=" + getEquivalentSelectionHits() + ")\n"
+				+ pdgs.toString() + "\n"
+				+ interner.toString() + "\n"
+				+ store.toString();
+	}
+
+	/**
+	 * Returns a cache key for the given value key of a value computed from
+	 * the given graph, prefixed with the addresses of the functions that
+	 * contain the graph
+	 * @param graph
+	 * @param key
+	 * @return
+	 */
+	public static String getFunctionKey(Graph graph, String key){
+		List<String> addresses = new ArrayList<String>();
+		for(Node function : CommonQueries.getContainingFunctions(Common.toQ(graph)).eval().nodes()){
+			addresses.add(function.address().toAddressString());
+		}
+		Collections.sort(addresses);
+		return String.join(",", addresses) + FUNCTION_KEY_SEPARATOR + key;
+	}
+
+	/**
+	 * Returns true if the cached value with the given key may be retained
+	 * under the given changes
+	 * @param key
+	 * @param changes
+	 * @return
+	 */
+	private static boolean isRetained(String key, FunctionChangeTracker.Changes changes){
+		int separator = key.indexOf(FUNCTION_KEY_SEPARATOR);
+		if(separator <= 0){
+			return false;
+		}
+		for(String address : key.substring(0, separator).split(",")){
+			if(!changes.isRetained(address)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if all the edges of the given PCG still exist
+	 * @param pcg
+	 * @return
+	 */
+	private static boolean exists(PCG pcg){
+		for(Edge edge : pcg.getPCG().eval().edges()){
+			if(CommonQueries.getGraphElementByAddress(edge.address().toAddressString()) == null){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the cached frontiers, PCGs, PDGs, interned and stored PCGs that may
+	 * not be retained under the given changes
+	 * @param changes
+	 */
+	public static void invalidate(FunctionChangeTracker.Changes changes){
+		if(changes.isFullInvalidation()){
+			invalidateAll();
+		} else {
+			frontiers.invalidateIf(key -> !isRetained(key, changes));
+			pdgs.invalidateIf(key -> !isRetained(key, changes));
+			pcgs.invalidateEntriesIf((key, pcg) -> !isRetained(key, changes) || !exists(pcg));
+			interner.invalidateIf(key -> !isRetained(key, changes));
+			store.invalidateIf(key -> !isRetained(key, changes));
+		}
+	}
+
+	/**
+	 * Removes all cached frontiers, PCGs, PDGs, interned and stored PCGs
+	 */
+	public static void invalidateAll(){
+		frontiers.invalidateAll();
+		pcgs.invalidateAll();
+		pdgs.invalidateAll();
+		interner.clear();
+		store.clear();
+	}
+
+}
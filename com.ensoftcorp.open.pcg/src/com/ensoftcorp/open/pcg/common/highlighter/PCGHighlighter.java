@@ -1,9 +1,13 @@
 package com.ensoftcorp.open.pcg.common.highlighter;
 
 import java.awt.Color;
+import java.util.List;
 
 import com.ensoftcorp.atlas.core.db.graph.Edge;
+import com.ensoftcorp.atlas.core.db.graph.Graph;
 import com.ensoftcorp.atlas.core.db.graph.GraphElement;
+import com.ensoftcorp.atlas.core.db.set.AtlasHashSet;
+import com.ensoftcorp.atlas.core.db.set.AtlasSet;
 import com.ensoftcorp.atlas.core.markup.IMarkup;
 import com.ensoftcorp.atlas.core.markup.Markup;
 import com.ensoftcorp.atlas.core.markup.MarkupProperty;
@@ -24,9 +28,59 @@ public class PCGHighlighter {
 	public static final Color pcgExplicitEvent = new java.awt.Color(255, 253, 40); // selection color
 	public static final Color pcgImplicitEvent = java.awt.Color.CYAN;
 	public static final Color ipcgMaster = java.awt.Color.GRAY;
+	private static final Color[] functionColors = new Color[]{
+			new Color(255, 204, 153), new Color(204, 229, 255), new Color(204, 255, 204), 
+			new Color(229, 204, 255), new Color(255, 204, 229), new Color(229, 229, 204)};
 	
+	/**
+	 * Returns the markup for a PCG.
+	 * 
+	 * Note: This markup applies to every PCG edge in the index, which becomes
+	 * more expensive to evaluate as more PCGs are created. Prefer
+	 * getPCGMarkup(pcg, events), which only considers the displayed PCG.
+	 * 
+	 * @param events
+	 * @return
+	 */
+	@Deprecated
 	public static IMarkup getPCGMarkup(Q events) {
-		
+		// the markup applies to every PCG edge in the index
+		return createPCGMarkup(Query.universe().edges(PCGEdge.PCGEdge), Query.universe().edges(PCGEdge.PCGBackEdge), events);
+	}
+	
+	/**
+	 * Returns the markup for the given PCG. Only the elements of the given PCG
+	 * are considered, so the cost of computing the markup depends on the size
+	 * of the displayed PCG and not the number of PCGs in the index.
+	 * 
+	 * @param pcg
+	 * @param events
+	 * @return
+	 */
+	public static IMarkup getPCGMarkup(Q pcg, Q events) {
+		AtlasSet<Edge> pcgEdges = new AtlasHashSet<Edge>();
+		AtlasSet<Edge> pcgBackEdges = new AtlasHashSet<Edge>();
+		for(Edge edge : pcg.eval().edges()){
+			if(edge.taggedWith(PCGEdge.PCGEdge)){
+				pcgEdges.add(edge);
+			}
+			if(edge.taggedWith(PCGEdge.PCGBackEdge)){
+				pcgBackEdges.add(edge);
+			}
+		}
+		return createPCGMarkup(Common.toQ(pcgEdges), Common.toQ(pcgBackEdges), events);
+	}
+	
+	/**
+	 * Returns the PCG markup (condition value labels, edge colors and event
+	 * colors) for the given PCG edges and PCG back edges
+	 * 
+	 * @param pcgEdges
+	 * @param pcgBackEdges
+	 * @param events
+	 * @return
+	 */
+	private static Markup createPCGMarkup(Q pcgEdges, Q pcgBackEdges, Q events) {
 		// labels for conditionValue
 		Markup m2 = new Markup() {
 			
@@ -44,13 +98,11 @@ public class PCGHighlighter {
 		Markup m = new Markup(m2);
 
 		// treat event flow edges as control flow edges
-		Q cfEdge = Query.universe().edges(PCGEdge.PCGEdge);
-		m.setEdge(cfEdge, MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
+		m.setEdge(pcgEdges, MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
 		
 		// highlight control flow edges
 		CFGHighlighter.applyHighlightsForCFG(m);
 		
-		Q pcgBackEdges = Query.universe().edges(PCGEdge.PCGBackEdge);
 		m.setEdge(pcgBackEdges, MarkupProperty.EDGE_COLOR, Color.BLUE.darker());
 		
 		// color events (this should override previous settings)
@@ -59,6 +111,29 @@ public class PCGHighlighter {
 		return m;
 	}
 	
+	/**
+	 * Returns the markup for the union of the PCGs of several functions. The
+	 * master entry and exit nodes of each function's PCG are colored so that
+	 * the PCGs can be told apart.
+	 * 
+	 * @param pcgs
+	 * @param events
+	 * @return
+	 */
+	public static IMarkup getPCGMarkup(List<Q> pcgs, Q events) {
+		Q union = Common.empty();
+		for(Q pcg : pcgs){
+			union = union.union(pcg);
+		}
+		Markup m = new Markup(getPCGMarkup(union, events));
+		int color = 0;
+		for(Q pcg : pcgs){
+			Q masterNodes = pcg.nodes(PCGNode.PCGMasterEntry, PCGNode.PCGMasterExit);
+			m.setNode(masterNodes, MarkupProperty.NODE_BACKGROUND_COLOR, functionColors[color++ % functionColors.length]);
+		}
+		return m;
+	}
+	
 	public static Markup getICFGPCGMarkup(Q icfgpcg, Q events) {
 		events = events.nodes(XCSG.ControlFlow_Node);
 		Markup m = new Markup();
@@ -80,14 +155,16 @@ public class PCGHighlighter {
 	public static Markup getIPCGMarkup(Q ipcg, Q events) {
 		events = events.nodes(XCSG.ControlFlow_Node);
 		Markup m = new Markup();
+		
+		AtlasSet<Edge> callEdges = new AtlasHashSet<Edge>();
+		AtlasSet<Edge> cfEdges = new AtlasHashSet<Edge>();
+		partitionIPCGEdges(ipcg.eval(), callEdges, cfEdges);
 
 		// gray and dot the call edges
-		Q callEdges = Query.universe().edges(XCSG.Call).retainEdges();
-		m.setEdge(callEdges, MarkupProperty.EDGE_STYLE, MarkupProperty.LineStyle.DASHED_DOTTED);
+		m.setEdge(Common.toQ(callEdges), MarkupProperty.EDGE_STYLE, MarkupProperty.LineStyle.DASHED_DOTTED);
 		
 		// treat event flow edges as control flow edges
-		Q cfEdge = Query.universe().edges(PCGEdge.PCGEdge, IPCGEdge.InterproceduralPCGEdge);
-		m.setEdge(cfEdge, MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
+		m.setEdge(Common.toQ(cfEdges), MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
 		
 		// highlight control flow edges
 		CFGHighlighter.applyHighlightsForCFG(m);
@@ -98,10 +175,14 @@ public class PCGHighlighter {
 	public static Markup getIPCGMarkup(Q ipcg, Q events, Q selectedAncestors, Q selectedExpansions) {
 		events = events.nodes(XCSG.ControlFlow_Node);
 		Markup m = new Markup();
+		
+		Graph ipcgGraph = ipcg.eval();
+		AtlasSet<Edge> callEdges = new AtlasHashSet<Edge>();
+		AtlasSet<Edge> cfEdges = new AtlasHashSet<Edge>();
+		partitionIPCGEdges(ipcgGraph, callEdges, cfEdges);
 
 		// gray and dot the call edges
-		Q callEdges = Query.universe().edges(XCSG.Call).retainEdges();
-		m.setEdge(callEdges, MarkupProperty.EDGE_STYLE, MarkupProperty.LineStyle.DASHED_DOTTED);
+		m.setEdge(Common.toQ(callEdges), MarkupProperty.EDGE_STYLE, MarkupProperty.LineStyle.DASHED_DOTTED);
 		
 		// highlight the IPCG root function red
 		Q ipcgCallGraph = IPCG.getIPCGCallGraph(CommonQueries.getContainingFunctions(events), selectedAncestors);
@@ -111,15 +192,15 @@ public class PCGHighlighter {
 		// highlight the master entry/exit nodes of root function red
 		Q ipcgCallGraphRootMasterNodes = ipcgCallGraphRoots.children().nodes(PCGNode.PCGMasterEntry, PCGNode.PCGMasterExit);
 		// alternatively it could be disconnected, so just grab them by traversing the functions CFG
-		Q eventFlowEdges = Query.universe().edges(PCGEdge.PCGEdge);
+		// (only the event flow edges of the displayed IPCG need to be considered)
+		Q eventFlowEdges = Common.toQ(ipcgGraph).edges(PCGEdge.PCGEdge);
 		Q functionCFG = CommonQueries.cfg(ipcgCallGraphRootMasterNodes);
 		ipcgCallGraphRootMasterNodes = ipcgCallGraphRootMasterNodes.union(eventFlowEdges.predecessors(functionCFG).nodes(PCGNode.PCGMasterEntry));
 		ipcgCallGraphRootMasterNodes = ipcgCallGraphRootMasterNodes.union(eventFlowEdges.successors(functionCFG).nodes(PCGNode.PCGMasterExit));
 		m.setNode(ipcgCallGraphRootMasterNodes, MarkupProperty.NODE_BACKGROUND_COLOR, ipcgMaster);
 
 		// treat event flow edges as control flow edges
-		Q cfEdge = Query.universe().edges(PCGEdge.PCGEdge, IPCGEdge.InterproceduralPCGEdge);
-		m.setEdge(cfEdge, MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
+		m.setEdge(Common.toQ(cfEdges), MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
 		
 		// highlight control flow edges
 		CFGHighlighter.applyHighlightsForCFG(m);
@@ -132,4 +213,59 @@ public class PCGHighlighter {
 		return m;
 	}
 	
+	/**
+	 * Returns the markup for the given IPCG result. The IPCG call graph, the
+	 * implicit callsite events and the root master nodes are taken from the
+	 * result, so the IPCG analysis is not repeated.
+	 *
+	 * @param ipcg
+	 * @return
+	 */
+	public static Markup getIPCGMarkup(IPCG ipcg) {
+		Q events = ipcg.getEvents().nodes(XCSG.ControlFlow_Node);
+		Markup m = new Markup();
+
+		AtlasSet<Edge> callEdges = new AtlasHashSet<Edge>();
+		AtlasSet<Edge> cfEdges = new AtlasHashSet<Edge>();
+		partitionIPCGEdges(ipcg.getIPCG().eval(), callEdges, cfEdges);
+
+		// gray and dot the call edges
+		m.setEdge(Common.toQ(callEdges), MarkupProperty.EDGE_STYLE, MarkupProperty.LineStyle.DASHED_DOTTED);
+
+		// highlight the IPCG root function and the master entry/exit nodes of root function
+		m.setNode(ipcg.getCallGraphRoots(), MarkupProperty.NODE_BACKGROUND_COLOR, ipcgMaster);
+		m.setNode(ipcg.getRootMasterNodes(), MarkupProperty.NODE_BACKGROUND_COLOR, ipcgMaster);
+
+		// treat event flow edges as control flow edges
+		m.setEdge(Common.toQ(cfEdges), MarkupProperty.EDGE_COLOR, CFGHighlighter.cfgDefault);
+
+		// highlight control flow edges
+		CFGHighlighter.applyHighlightsForCFG(m);
+
+		// color the events and implicit callsite events (this should override previous settings)
+		m.setNode(events, MarkupProperty.NODE_BACKGROUND_COLOR, pcgExplicitEvent);
+		m.setNode(ipcg.getImplicitCallsiteEvents(), MarkupProperty.NODE_BACKGROUND_COLOR, pcgImplicitEvent);
+
+		return m;
+	}
+
+	/**
+	 * Sorts the edges of the given IPCG into call edges and event flow edges
+	 * in a single pass over the displayed graph
+	 * 
+	 * @param ipcg
+	 * @param callEdges
+	 * @param eventFlowEdges
+	 */
+	private static void partitionIPCGEdges(Graph ipcg, AtlasSet<Edge> callEdges, AtlasSet<Edge> eventFlowEdges){
+		for(Edge edge : ipcg.edges()){
+			if(edge.taggedWith(XCSG.Call)){
+				callEdges.add(edge);
+			}
+			if(edge.taggedWith(PCGEdge.PCGEdge) || edge.taggedWith(IPCGEdge.InterproceduralPCGEdge)){
+				eventFlowEdges.add(edge);
+			}
+		}
+	}
+	
 }
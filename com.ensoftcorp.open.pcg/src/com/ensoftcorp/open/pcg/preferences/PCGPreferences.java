@@ -41,10 +41,433 @@ public class PCGPreferences extends AbstractPreferenceInitializer {
 		return serializePCGInstancesValue;
 	}
 	
+	/**
+	 * The maximum number of smart view results to cache (0 disables caching)
+	 */
+	public static final String SMART_VIEW_CACHE_SIZE = "SMART_VIEW_CACHE_SIZE";
+	public static final Integer SMART_VIEW_CACHE_SIZE_DEFAULT = 32;
+	private static int smartViewCacheSizeValue = SMART_VIEW_CACHE_SIZE_DEFAULT;
+	
+	/**
+	 * Configures the smart view result cache size
+	 */
+	public static void setSmartViewCacheSize(int size){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(SMART_VIEW_CACHE_SIZE, size);
+		loadPreferences();
+	}
+	
+	public static int getSmartViewCacheSize(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return smartViewCacheSizeValue;
+	}
+	
+	/**
+	 * The maximum number of serialized PCG instances retained by the PCG collector
+	 */
+	public static final String MAX_PCG_INSTANCES = "MAX_PCG_INSTANCES";
+	public static final Integer MAX_PCG_INSTANCES_DEFAULT = 1000;
+	private static int maxPCGInstancesValue = MAX_PCG_INSTANCES_DEFAULT;
+	
+	/**
+	 * Configures the maximum number of retained PCG instances
+	 */
+	public static void setMaxPCGInstances(int instances){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(MAX_PCG_INSTANCES, instances);
+		loadPreferences();
+	}
+	
+	public static int getMaxPCGInstances(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return maxPCGInstancesValue;
+	}
+	
+	/**
+	 * The number of worker threads used for batch and IPCG construction
+	 */
+	public static final String WORKER_THREADS = "WORKER_THREADS";
+	public static final Integer WORKER_THREADS_DEFAULT = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private static int workerThreadsValue = WORKER_THREADS_DEFAULT;
+	
+	/**
+	 * Configures the number of worker threads
+	 */
+	public static void setWorkerThreads(int threads){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(WORKER_THREADS, threads);
+		loadPreferences();
+	}
+	
+	public static int getWorkerThreads(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return workerThreadsValue;
+	}
+	
+	/**
+	 * The maximum number of (post) dominance frontiers to cache (0 disables caching)
+	 */
+	public static final String FRONTIER_CACHE_SIZE = "FRONTIER_CACHE_SIZE";
+	public static final Integer FRONTIER_CACHE_SIZE_DEFAULT = 128;
+	private static int frontierCacheSizeValue = FRONTIER_CACHE_SIZE_DEFAULT;
+	
+	/**
+	 * Configures the frontier cache size
+	 */
+	public static void setFrontierCacheSize(int size){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(FRONTIER_CACHE_SIZE, size);
+		loadPreferences();
+	}
+	
+	public static int getFrontierCacheSize(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return frontierCacheSizeValue;
+	}
+	
+	/**
+	 * The maximum number of constructed PCG instances to cache in memory (0 disables caching)
+	 */
+	public static final String PCG_CACHE_SIZE = "PCG_CACHE_SIZE";
+	public static final Integer PCG_CACHE_SIZE_DEFAULT = 256;
+	private static int pcgCacheSizeValue = PCG_CACHE_SIZE_DEFAULT;
+	
+	/**
+	 * Configures the PCG instance cache size
+	 */
+	public static void setPCGCacheSize(int size){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(PCG_CACHE_SIZE, size);
+		loadPreferences();
+	}
+	
+	public static int getPCGCacheSize(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return pcgCacheSizeValue;
+	}
+	
+	/**
+	 * The maximum number of serialized PCG instances per function (0 is unlimited)
+	 */
+	public static final String MAX_PCG_INSTANCES_PER_FUNCTION = "MAX_PCG_INSTANCES_PER_FUNCTION";
+	public static final Integer MAX_PCG_INSTANCES_PER_FUNCTION_DEFAULT = 64;
+	private static int maxPCGInstancesPerFunctionValue = MAX_PCG_INSTANCES_PER_FUNCTION_DEFAULT;
+	
+	/**
+	 * Configures the maximum number of serialized PCG instances per function
+	 */
+	public static void setMaxPCGInstancesPerFunction(int instances){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(MAX_PCG_INSTANCES_PER_FUNCTION, instances);
+		loadPreferences();
+	}
+	
+	public static int getMaxPCGInstancesPerFunction(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return maxPCGInstancesPerFunctionValue;
+	}
+	
+	/**
+	 * The time budget in milliseconds for constructing a single PCG (0 is unlimited)
+	 */
+	public static final String CONSTRUCTION_TIME_BUDGET = "CONSTRUCTION_TIME_BUDGET";
+	public static final Integer CONSTRUCTION_TIME_BUDGET_DEFAULT = 0;
+	private static int constructionTimeBudgetValue = CONSTRUCTION_TIME_BUDGET_DEFAULT;
+	
+	/**
+	 * Configures the PCG construction time budget
+	 */
+	public static void setConstructionTimeBudget(int milliseconds){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(CONSTRUCTION_TIME_BUDGET, milliseconds);
+		loadPreferences();
+	}
+	
+	public static int getConstructionTimeBudget(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return constructionTimeBudgetValue;
+	}
+	
+	/**
+	 * Enable/disable the on-disk PCG cache that survives re-indexing
+	 */
+	public static final String PERSISTENT_PCG_CACHE = "PERSISTENT_PCG_CACHE";
+	public static final Boolean PERSISTENT_PCG_CACHE_DEFAULT = false;
+	private static boolean persistentPCGCacheValue = PERSISTENT_PCG_CACHE_DEFAULT;
+	
+	/**
+	 * Configures the on-disk PCG cache
+	 */
+	public static void enablePersistentPCGCache(boolean enabled){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(PERSISTENT_PCG_CACHE, enabled);
+		loadPreferences();
+	}
+	
+	public static boolean isPersistentPCGCacheEnabled(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return persistentPCGCacheValue;
+	}
+	
+	/**
+	 * Enable/disable tracking function changes across index generations so
+	 * that cached results of unchanged functions are retained
+	 */
+	public static final String TRACK_FUNCTION_CHANGES = "TRACK_FUNCTION_CHANGES";
+	public static final Boolean TRACK_FUNCTION_CHANGES_DEFAULT = false;
+	private static boolean trackFunctionChangesValue = TRACK_FUNCTION_CHANGES_DEFAULT;
+	
+	/**
+	 * Configures function change tracking
+	 */
+	public static void enableFunctionChangeTracking(boolean enabled){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(TRACK_FUNCTION_CHANGES, enabled);
+		loadPreferences();
+	}
+	
+	public static boolean isFunctionChangeTrackingEnabled(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return trackFunctionChangesValue;
+	}
+	
+	/**
+	 * Enable/disable collapsing event-free single entry/single exit regions before node consumption
+	 */
+	public static final String REGION_PRECOMPACTION = "REGION_PRECOMPACTION";
+	public static final Boolean REGION_PRECOMPACTION_DEFAULT = true;
+	private static boolean regionPrecompactionValue = REGION_PRECOMPACTION_DEFAULT;
+	
+	/**
+	 * Configures region pre-compaction
+	 */
+	public static void enableRegionPrecompaction(boolean enabled){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(REGION_PRECOMPACTION, enabled);
+		loadPreferences();
+	}
+	
+	public static boolean isRegionPrecompactionEnabled(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return regionPrecompactionValue;
+	}
+	
+	/**
+	 * Enable/disable pruning exceptional control flow that cannot affect the projection before constructing a PCG
+	 */
+	public static final String EXCEPTIONAL_CONTROL_FLOW_PRUNING = "EXCEPTIONAL_CONTROL_FLOW_PRUNING";
+	public static final Boolean EXCEPTIONAL_CONTROL_FLOW_PRUNING_DEFAULT = true;
+	private static boolean exceptionalControlFlowPruningValue = EXCEPTIONAL_CONTROL_FLOW_PRUNING_DEFAULT;
+	
+	/**
+	 * Configures exceptional control flow pruning
+	 */
+	public static void enableExceptionalControlFlowPruning(boolean enabled){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(EXCEPTIONAL_CONTROL_FLOW_PRUNING, enabled);
+		loadPreferences();
+	}
+	
+	public static boolean isExceptionalControlFlowPruningEnabled(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return exceptionalControlFlowPruningValue;
+	}
+	
+	/**
+	 * Enable/disable recording the control flow nodes summarized by each PCG edge
+	 */
+	public static final String EDGE_PROVENANCE = "EDGE_PROVENANCE";
+	public static final Boolean EDGE_PROVENANCE_DEFAULT = false;
+	private static boolean edgeProvenanceValue = EDGE_PROVENANCE_DEFAULT;
+	
+	/**
+	 * Configures PCG edge provenance recording
+	 */
+	public static void enableEdgeProvenance(boolean enabled){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(EDGE_PROVENANCE, enabled);
+		loadPreferences();
+	}
+	
+	public static boolean isEdgeProvenanceEnabled(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return edgeProvenanceValue;
+	}
+	
+	/**
+	 * Configures the maximum number of functions the events of a smart view selection may span
+	 */
+	public static final String SMART_VIEW_FUNCTION_LIMIT = "SMART_VIEW_FUNCTION_LIMIT";
+	public static final Integer SMART_VIEW_FUNCTION_LIMIT_DEFAULT = 8;
+	private static int smartViewFunctionLimitValue = SMART_VIEW_FUNCTION_LIMIT_DEFAULT;
+	
+	/**
+	 * Configures the smart view function limit
+	 */
+	public static void setSmartViewFunctionLimit(int smartViewFunctionLimit){
+		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
+		preferences.setValue(SMART_VIEW_FUNCTION_LIMIT, smartViewFunctionLimit);
+		loadPreferences();
+	}
+	
+	public static int getSmartViewFunctionLimit(){
+		if(!initialized){
+			loadPreferences();
+		}
+		return smartViewFunctionLimitValue;
+	}
+	
+	/**
+	 * An immutable snapshot of the preference values. The snapshot is
+	 * rebuilt each time the preferences are loaded, so hot loops can read
+	 * preference values without accessing the preference store.
+	 */
+	public static class Snapshot {
+		private final boolean serializePCGInstances;
+		private final int smartViewCacheSize;
+		private final int maxPCGInstances;
+		private final int workerThreads;
+		private final int frontierCacheSize;
+		private final int pcgCacheSize;
+		private final int maxPCGInstancesPerFunction;
+		private final int constructionTimeBudget;
+		private final boolean persistentPCGCache;
+		private final boolean trackFunctionChanges;
+		private final boolean regionPrecompaction;
+		private final boolean exceptionalControlFlowPruning;
+		private final boolean edgeProvenance;
+		private final int smartViewFunctionLimit;
+		
+		private Snapshot(){
+			this.serializePCGInstances = serializePCGInstancesValue;
+			this.smartViewCacheSize = smartViewCacheSizeValue;
+			this.maxPCGInstances = maxPCGInstancesValue;
+			this.workerThreads = Math.max(1, workerThreadsValue);
+			this.frontierCacheSize = frontierCacheSizeValue;
+			this.pcgCacheSize = pcgCacheSizeValue;
+			this.maxPCGInstancesPerFunction = maxPCGInstancesPerFunctionValue;
+			this.constructionTimeBudget = constructionTimeBudgetValue;
+			this.persistentPCGCache = persistentPCGCacheValue;
+			this.trackFunctionChanges = trackFunctionChangesValue;
+			this.regionPrecompaction = regionPrecompactionValue;
+			this.exceptionalControlFlowPruning = exceptionalControlFlowPruningValue;
+			this.edgeProvenance = edgeProvenanceValue;
+			this.smartViewFunctionLimit = smartViewFunctionLimitValue;
+		}
+
+		public boolean isSerializePCGInstancesEnabled() {
+			return serializePCGInstances;
+		}
+
+		public int getSmartViewCacheSize() {
+			return smartViewCacheSize;
+		}
+
+		public int getMaxPCGInstances() {
+			return maxPCGInstances;
+		}
+
+		public int getWorkerThreads() {
+			return workerThreads;
+		}
+
+		public int getFrontierCacheSize() {
+			return frontierCacheSize;
+		}
+
+		public int getPCGCacheSize() {
+			return pcgCacheSize;
+		}
+
+		public int getMaxPCGInstancesPerFunction() {
+			return maxPCGInstancesPerFunction;
+		}
+
+		public int getConstructionTimeBudget() {
+			return constructionTimeBudget;
+		}
+
+		public boolean isPersistentPCGCacheEnabled() {
+			return persistentPCGCache;
+		}
+
+		public boolean isFunctionChangeTrackingEnabled() {
+			return trackFunctionChanges;
+		}
+
+		public boolean isRegionPrecompactionEnabled() {
+			return regionPrecompaction;
+		}
+
+		public boolean isExceptionalControlFlowPruningEnabled() {
+			return exceptionalControlFlowPruning;
+		}
+
+		public boolean isEdgeProvenanceEnabled() {
+			return edgeProvenance;
+		}
+
+		public int getSmartViewFunctionLimit() {
+			return smartViewFunctionLimit;
+		}
+	}
+	
+	private static volatile Snapshot snapshot = null;
+	
+	/**
+	 * Returns a snapshot of the current preference values
+	 * @return
+	 */
+	public static Snapshot getSnapshot(){
+		Snapshot result = snapshot;
+		if(result == null){
+			loadPreferences();
+			result = snapshot;
+		}
+		return result;
+	}
+	
 	@Override
 	public void initializeDefaultPreferences() {
 		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
 		preferences.setDefault(SERIALIZE_PCG_INSTANCES, SERIALIZE_PCG_INSTANCES_DEFAULT);
+		preferences.setDefault(SMART_VIEW_CACHE_SIZE, SMART_VIEW_CACHE_SIZE_DEFAULT);
+		preferences.setDefault(MAX_PCG_INSTANCES, MAX_PCG_INSTANCES_DEFAULT);
+		preferences.setDefault(WORKER_THREADS, WORKER_THREADS_DEFAULT);
+		preferences.setDefault(FRONTIER_CACHE_SIZE, FRONTIER_CACHE_SIZE_DEFAULT);
+		preferences.setDefault(PCG_CACHE_SIZE, PCG_CACHE_SIZE_DEFAULT);
+		preferences.setDefault(MAX_PCG_INSTANCES_PER_FUNCTION, MAX_PCG_INSTANCES_PER_FUNCTION_DEFAULT);
+		preferences.setDefault(CONSTRUCTION_TIME_BUDGET, CONSTRUCTION_TIME_BUDGET_DEFAULT);
+		preferences.setDefault(PERSISTENT_PCG_CACHE, PERSISTENT_PCG_CACHE_DEFAULT);
+		preferences.setDefault(TRACK_FUNCTION_CHANGES, TRACK_FUNCTION_CHANGES_DEFAULT);
+		preferences.setDefault(REGION_PRECOMPACTION, REGION_PRECOMPACTION_DEFAULT);
+		preferences.setDefault(EXCEPTIONAL_CONTROL_FLOW_PRUNING, EXCEPTIONAL_CONTROL_FLOW_PRUNING_DEFAULT);
+		preferences.setDefault(EDGE_PROVENANCE, EDGE_PROVENANCE_DEFAULT);
+		preferences.setDefault(SMART_VIEW_FUNCTION_LIMIT, SMART_VIEW_FUNCTION_LIMIT_DEFAULT);
 	}
 	
 	/**
@@ -53,6 +476,19 @@ public class PCGPreferences extends AbstractPreferenceInitializer {
 	public static void restoreDefaults() {
 		IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
 		preferences.setValue(SERIALIZE_PCG_INSTANCES, SERIALIZE_PCG_INSTANCES_DEFAULT);
+		preferences.setValue(SMART_VIEW_CACHE_SIZE, SMART_VIEW_CACHE_SIZE_DEFAULT);
+		preferences.setValue(MAX_PCG_INSTANCES, MAX_PCG_INSTANCES_DEFAULT);
+		preferences.setValue(WORKER_THREADS, WORKER_THREADS_DEFAULT);
+		preferences.setValue(FRONTIER_CACHE_SIZE, FRONTIER_CACHE_SIZE_DEFAULT);
+		preferences.setValue(PCG_CACHE_SIZE, PCG_CACHE_SIZE_DEFAULT);
+		preferences.setValue(MAX_PCG_INSTANCES_PER_FUNCTION, MAX_PCG_INSTANCES_PER_FUNCTION_DEFAULT);
+		preferences.setValue(CONSTRUCTION_TIME_BUDGET, CONSTRUCTION_TIME_BUDGET_DEFAULT);
+		preferences.setValue(PERSISTENT_PCG_CACHE, PERSISTENT_PCG_CACHE_DEFAULT);
+		preferences.setValue(TRACK_FUNCTION_CHANGES, TRACK_FUNCTION_CHANGES_DEFAULT);
+		preferences.setValue(REGION_PRECOMPACTION, REGION_PRECOMPACTION_DEFAULT);
+		preferences.setValue(EXCEPTIONAL_CONTROL_FLOW_PRUNING, EXCEPTIONAL_CONTROL_FLOW_PRUNING_DEFAULT);
+		preferences.setValue(EDGE_PROVENANCE, EDGE_PROVENANCE_DEFAULT);
+		preferences.setValue(SMART_VIEW_FUNCTION_LIMIT, SMART_VIEW_FUNCTION_LIMIT_DEFAULT);
 		loadPreferences();
 	}
 	
@@ -63,9 +499,23 @@ public class PCGPreferences extends AbstractPreferenceInitializer {
 		try {
 			IPreferenceStore preferences = Activator.getDefault().getPreferenceStore();
 			serializePCGInstancesValue = preferences.getBoolean(SERIALIZE_PCG_INSTANCES);
+			smartViewCacheSizeValue = preferences.getInt(SMART_VIEW_CACHE_SIZE);
+			maxPCGInstancesValue = preferences.getInt(MAX_PCG_INSTANCES);
+			workerThreadsValue = preferences.getInt(WORKER_THREADS);
+			frontierCacheSizeValue = preferences.getInt(FRONTIER_CACHE_SIZE);
+			pcgCacheSizeValue = preferences.getInt(PCG_CACHE_SIZE);
+			maxPCGInstancesPerFunctionValue = preferences.getInt(MAX_PCG_INSTANCES_PER_FUNCTION);
+			constructionTimeBudgetValue = preferences.getInt(CONSTRUCTION_TIME_BUDGET);
+			persistentPCGCacheValue = preferences.getBoolean(PERSISTENT_PCG_CACHE);
+			trackFunctionChangesValue = preferences.getBoolean(TRACK_FUNCTION_CHANGES);
+			regionPrecompactionValue = preferences.getBoolean(REGION_PRECOMPACTION);
+			exceptionalControlFlowPruningValue = preferences.getBoolean(EXCEPTIONAL_CONTROL_FLOW_PRUNING);
+			edgeProvenanceValue = preferences.getBoolean(EDGE_PROVENANCE);
+			smartViewFunctionLimitValue = preferences.getInt(SMART_VIEW_FUNCTION_LIMIT);
 		} catch (Exception e){
 			Log.warning("Error accessing PCG analysis preferences, using defaults...", e);
 		}
+		snapshot = new Snapshot();
 		initialized = true;
 	}
 